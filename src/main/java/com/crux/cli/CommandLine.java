@@ -44,8 +44,8 @@ public class CommandLine {
                 "Update all entities matching the filter with the provided JSON body.",
                 "update"));
         entries.add(new HelpEntry(
-                "get entities using filter <filter>",
-                "Return all entities matching the filter expression as JSON.",
+                "get entities using filter <filter> [order by <field> [asc|desc]] [limit N] [offset N]",
+                "Return the entities matching the filter expression as JSON, optionally sorted and paged.",
                 "get entities", "query"));
         entries.add(new HelpEntry(
                 "get field <path> from <id>",
@@ -55,13 +55,21 @@ public class CommandLine {
                 "get some [N]",
                 "Print up to N entities from the store (default 5).",
                 "get some", "list"));
+        entries.add(new HelpEntry(
+                "search text <field> \"<keywords>\" [N]",
+                "Return the N (default 5) entities whose field best matches the keywords, ranked by BM25.",
+                "search", "text"));
+        entries.add(new HelpEntry(
+                "explain <filter>",
+                "Run the filter and print its plan: index or scan per step, estimated and actual counts, time.",
+                "explain", "profile"));
         entries.add(new HelpEntry(
                 "generate <N>",
                 "Generate N synthetic entities with random values.",
                 "generate"));
         entries.add(new HelpEntry(
-                "find similar <id> [N]",
-                "Return the top N (default 5) entities similar to the given id based on vector distance.",
+                "find similar <id> [N] [exact] [where <filter>]",
+                "Return the top N (default 5) entities similar to the given id based on vector distance, optionally among those matching a filter; 'exact' skips the index.",
                 "find", "similar"));
         entries.add(new HelpEntry(
                 "show history <id>",
@@ -71,6 +79,10 @@ public class CommandLine {
                 "create transform function { <expr> -> <field>; ... }",
                 "Define a reusable transformation from existing entities into a new set of entities.",
                 "create", "transform"));
+        entries.add(new HelpEntry(
+                "create trigram index <field>",
+                "Index the three-letter sequences of a string field to speed up 'contains' filters.",
+                "create trigram", "trigram"));
         entries.add(new HelpEntry(
                 "apply transform function from set <src> to <dest>",
                 "Execute the active transform function against every entity in <src> and store the result in <dest>.",
@@ -145,6 +157,7 @@ public class CommandLine {
             }
             System.out.print(prompt);
         }
+        store.close();
     }
 
     void handle(String line) {
@@ -309,9 +322,19 @@ public class CommandLine {
         try {
             String rest = line.substring("find similar".length()).trim();
             if (rest.isEmpty()) {
-                throw new CliException("usage: find similar <id> [topN]");
+                throw new CliException("usage: find similar <id> [topN] [exact] [where <filter>]");
+            }
+            QueryExpression filter = null;
+            String[] clauses = rest.split("(?i)\\s+where\\s+", 2);
+            if (clauses.length == 2) {
+                rest = clauses[0].trim();
+                filter = parser.parse(clauses[1].trim());
             }
             String[] parts = rest.split("\\s+");
+            boolean exact = parts.length > 1 && "exact".equalsIgnoreCase(parts[parts.length - 1]);
+            if (exact) {
+                parts = Arrays.copyOf(parts, parts.length - 1);
+            }
             String id = parts[0];
             int top = 5;
             if (parts.length > 1) {
@@ -324,7 +347,7 @@ public class CommandLine {
             if (top <= 0) {
                 throw new CliException("topN must be greater than zero");
             }
-            List<Entity> res = store.findSimilar(id, top);
+            List<Entity> res = exact ? store.findSimilarExact(id, top, filter) : store.findSimilar(id, top, filter);
             System.out.println(gson.toJson(res.stream().map(Entity::getFields).collect(Collectors.toList())));
         } catch (CliException e) {
             throw e;
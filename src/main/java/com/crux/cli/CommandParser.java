@@ -1,6 +1,7 @@
 package com.crux.cli;
 
-import com.crux.query.QueryExpression;
+import com.crux.pipeline.Pipeline;
+import com.crux.query.FilterParser;
 import com.crux.store.Entity;
 
 import java.util.ArrayList;
@@ -89,6 +90,8 @@ public class CommandParser {
             case "get" -> parseGet(t);
             case "generate" -> parseGenerate(t);
             case "find" -> parseFind(t);
+            case "explain" -> parseExplain(t);
+            case "search" -> parseSearch(t);
             case "create" -> parseCreate(t);
             case "apply" -> parseApply(t);
             case "show" -> parseShow(t);
@@ -156,21 +159,31 @@ public class CommandParser {
     private Command parseGet(Tokenizer t) {
         String second = t.next();
         if (second == null) {
-            throw new CliException("usage: get entities using filter <filter> | get field <path> from <id> | get some [N]");
+            throw new CliException("usage: get entities using filter <filter> [order by <field> [asc|desc]] [limit N] [offset N] | get field <path> from <id> | get some [N]");
         }
         if ("entities".equalsIgnoreCase(second)) {
             String using = t.next();
             String filterTok = t.next();
             if (!"using".equalsIgnoreCase(using) || !"filter".equalsIgnoreCase(filterTok)) {
-                throw new CliException("usage: get entities using filter <filter>");
+                throw new CliException("usage: get entities using filter <filter> [order by <field> [asc|desc]] [limit N] [offset N]");
             }
             String expr = t.rest();
             if (expr.isEmpty()) {
                 throw new CliException("filter expression is required");
             }
             return cli -> {
-                QueryExpression q = cli.parser.parse(expr);
-                List<Entity> res = cli.store.query(q);
+                FilterParser.Query q = cli.parser.parseQuery(expr);
+                Pipeline<Entity> matches = Pipeline.from(cli.store, q.filter());
+                if (q.orderBy() != null) {
+                    matches = matches.orderBy(q.orderBy(), q.descending());
+                }
+                if (q.offset() > 0) {
+                    matches = matches.offset(q.offset());
+                }
+                if (q.limit() >= 0) {
+                    matches = matches.limit(q.limit());
+                }
+                List<Entity> res = matches.toList();
                 System.out.println(cli.gson.toJson(res.stream().map(Entity::getFields).collect(Collectors.toList())));
             };
         }
@@ -212,6 +225,44 @@ public class CommandParser {
         throw new CliException("unknown get command. Type 'help get' for options.");
     }
 
+    private Command parseExplain(Tokenizer t) {
+        String expr = t.rest();
+        if (expr.isEmpty()) {
+            throw new CliException("usage: explain <filter>");
+        }
+        return cli -> System.out.println(cli.store.explain(cli.parser.parse(expr)));
+    }
+
+    private Command parseSearch(Tokenizer t) {
+        String second = t.next();
+        String field = t.next();
+        String query = t.next();
+        if (!"text".equalsIgnoreCase(second) || field == null || query == null) {
+            throw new CliException("usage: search text <field> \"<keywords>\" [N]");
+        }
+        if (query.length() >= 2 && (query.charAt(0) == '"' || query.charAt(0) == '\'')) {
+            query = query.substring(1, query.length() - 1);
+        }
+        int n = 5;
+        if (t.hasNext()) {
+            String token = t.next();
+            try {
+                n = Integer.parseInt(token);
+            } catch (NumberFormatException e) {
+                throw new CliException("usage: search text <field> \"<keywords>\" [N] where N is an integer", e);
+            }
+            if (n <= 0 || t.hasNext()) {
+                throw new CliException("usage: search text <field> \"<keywords>\" [N]");
+            }
+        }
+        String keywords = query;
+        int count = n;
+        return cli -> {
+            List<Entity> res = cli.store.searchText(field, keywords, count);
+            System.out.println(cli.gson.toJson(res.stream().map(Entity::getFields).collect(Collectors.toList())));
+        };
+    }
+
     private Command parseGenerate(Tokenizer t) {
         String rest = t.rest();
         if (rest.isEmpty()) {
@@ -225,7 +276,7 @@ public class CommandParser {
         if ("similar".equalsIgnoreCase(second)) {
             String rest = t.rest();
             if (rest.isEmpty()) {
-                throw new CliException("usage: find similar <id> [topN]");
+                throw new CliException("usage: find similar <id> [topN] [exact] [where <filter>]");
             }
             return cli -> cli.findSimilar("find similar " + rest);
         }
@@ -245,6 +296,17 @@ public class CommandParser {
             }
             return cli -> cli.createTransformFunction("create transform function " + rest);
         }
+        if ("trigram".equalsIgnoreCase(second)) {
+            String third = t.next();
+            String field = t.next();
+            if (!"index".equalsIgnoreCase(third) || field == null || t.hasNext()) {
+                throw new CliException("usage: create trigram index <field>");
+            }
+            return cli -> {
+                cli.store.createTrigramIndex(field);
+                System.out.println("trigram index created on " + field);
+            };
+        }
         throw new CliException("unknown create command. Type 'help create' for options.");
     }
 
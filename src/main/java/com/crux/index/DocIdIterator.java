@@ -0,0 +1,240 @@
+package com.crux.index;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.IntPredicate;
+
+/**
+ * Forward-only cursor over ascending entity ordinals.
+ * <p>
+ * A cursor starts before its first ordinal ({@link #docId()} is -1) and
+ * ends on {@link #NO_MORE_DOCS}. Besides stepping with {@link #nextDoc()}
+ * it can skip ahead with {@link #advance(int)}, which is what lets
+ * {@link #and} intersect cursors by leapfrogging: every cursor jumps
+ * straight to the candidate proposed by the others instead of visiting
+ * the ordinals in between.
+ */
+public interface DocIdIterator {
+    int NO_MORE_DOCS = Integer.MAX_VALUE;
+
+    /** The current ordinal, -1 before the first call and {@link #NO_MORE_DOCS} once exhausted. */
+    int docId();
+
+    /** Moves to the next ordinal and returns it. */
+    int nextDoc();
+
+    /**
+     * Moves to the first ordinal at or after {@code target} and returns it;
+     * {@code target} must be greater than {@link #docId()}.
+     */
+    int advance(int target);
+
+    /** Upper bound on the number of ordinals left, used to order intersections. */
+    long cost();
+
+    static DocIdIterator empty() {
+        return new DocIdIterator() {
+            private int doc = -1;
+
+            @Override
+            public int docId() {
+                return doc;
+            }
+
+            @Override
+            public int nextDoc() {
+                return doc = NO_MORE_DOCS;
+            }
+
+            @Override
+            public int advance(int target) {
+                return doc = NO_MORE_DOCS;
+            }
+
+            @Override
+            public long cost() {
+                return 0;
+            }
+        };
+    }
+
+    /** Ordinals produced by every one of {@code iterators}. */
+    static DocIdIterator and(List<DocIdIterator> iterators) {
+        if (iterators.isEmpty()) {
+            return empty();
+        }
+        if (iterators.size() == 1) {
+            return iterators.get(0);
+        }
+        DocIdIterator[] sorted = iterators.toArray(new DocIdIterator[0]);
+        Arrays.sort(sorted, Comparator.comparingLong(DocIdIterator::cost));
+        return new DocIdIterator() {
+            private final DocIdIterator lead = sorted[0];
+            private int doc = -1;
+
+            @Override
+            public int docId() {
+                return doc;
+            }
+
+            @Override
+            public int nextDoc() {
+                return doc = leapfrog(lead.nextDoc());
+            }
+
+            @Override
+            public int advance(int target) {
+                return doc = leapfrog(lead.advance(target));
+            }
+
+            @Override
+            public long cost() {
+                return lead.cost();
+            }
+
+            /** Drives every cursor to the candidate until all agree on one. */
+            private int leapfrog(int candidate) {
+                restart:
+                while (candidate != NO_MORE_DOCS) {
+                    for (int i = 1; i < sorted.length; i++) {
+                        int other = sorted[i].docId();
+                        if (other < candidate) {
+                            other = sorted[i].advance(candidate);
+                        }
+                        if (other > candidate) {
+                            candidate = lead.advance(other);
+                            continue restart;
+                        }
+                    }
+                    return candidate;
+                }
+                return NO_MORE_DOCS;
+            }
+        };
+    }
+
+    /** Ordinals produced by at least one of {@code iterators}. */
+    static DocIdIterator or(List<DocIdIterator> iterators) {
+        if (iterators.isEmpty()) {
+            return empty();
+        }
+        if (iterators.size() == 1) {
+            return iterators.get(0);
+        }
+        DocIdIterator[] subs = iterators.toArray(new DocIdIterator[0]);
+        return new DocIdIterator() {
+            private int doc = -1;
+
+            @Override
+            public int docId() {
+                return doc;
+            }
+
+            @Override
+            public int nextDoc() {
+                return doc == NO_MORE_DOCS ? doc : advance(doc + 1);
+            }
+
+            @Override
+            public int advance(int target) {
+                int min = NO_MORE_DOCS;
+                for (DocIdIterator sub : subs) {
+                    int d = sub.docId();
+                    if (d < target) {
+                        d = sub.advance(target);
+                    }
+                    min = Math.min(min, d);
+                }
+                return doc = min;
+            }
+
+            @Override
+            public long cost() {
+                long total = 0;
+                for (DocIdIterator sub : subs) {
+                    total += sub.cost();
+                }
+                return total;
+            }
+        };
+    }
+
+    /** Ordinals produced by {@code include} but not by {@code exclude}. */
+    static DocIdIterator andNot(DocIdIterator include, DocIdIterator exclude) {
+        return new DocIdIterator() {
+            private int doc = -1;
+
+            @Override
+            public int docId() {
+                return doc;
+            }
+
+            @Override
+            public int nextDoc() {
+                return doc = skipExcluded(include.nextDoc());
+            }
+
+            @Override
+            public int advance(int target) {
+                return doc = skipExcluded(include.advance(target));
+            }
+
+            @Override
+            public long cost() {
+                return include.cost();
+            }
+
+            private int skipExcluded(int candidate) {
+                while (candidate != NO_MORE_DOCS) {
+                    int excluded = exclude.docId();
+                    if (excluded < candidate) {
+                        excluded = exclude.advance(candidate);
+                    }
+                    if (excluded != candidate) {
+                        return candidate;
+                    }
+                    candidate = include.nextDoc();
+                }
+                return NO_MORE_DOCS;
+            }
+        };
+    }
+
+    /**
+     * Ordinals produced by {@code iterator} that pass {@code test}, for
+     * conditions no index can answer; each ordinal is tested on its own.
+     */
+    static DocIdIterator filter(DocIdIterator iterator, IntPredicate test) {
+        return new DocIdIterator() {
+            private int doc = -1;
+
+            @Override
+            public int docId() {
+                return doc;
+            }
+
+            @Override
+            public int nextDoc() {
+                return doc = skipRejected(iterator.nextDoc());
+            }
+
+            @Override
+            public int advance(int target) {
+                return doc = skipRejected(iterator.advance(target));
+            }
+
+            @Override
+            public long cost() {
+                return iterator.cost();
+            }
+
+            private int skipRejected(int candidate) {
+                while (candidate != NO_MORE_DOCS && !test.test(candidate)) {
+                    candidate = iterator.nextDoc();
+                }
+                return candidate;
+            }
+        };
+    }
+}
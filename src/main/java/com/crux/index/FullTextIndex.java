@@ -0,0 +1,152 @@
+package com.crux.index;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Inverted index over the words of one string field, ranked with Okapi BM25.
+ * <p>
+ * Values are split into lower-case runs of letters and digits. Every term
+ * keeps the ordinals of the entities using it together with how often each
+ * does, and every entity its number of terms, which is all BM25 needs:
+ * <pre>
+ *   score(d) = sum over query terms t of
+ *              idf(t) * tf(t, d) * (K1 + 1) / (tf(t, d) + K1 * (1 - B + B * len(d) / avglen))
+ *   idf(t)   = ln(1 + (N - df(t) + 0.5) / (df(t) + 0.5))
+ * </pre>
+ * Like {@link IndexManager}, writers only lock the term they touch.
+ */
+final class FullTextIndex {
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+
+    private final Map<String, Term> terms = new ConcurrentHashMap<>();
+    private final Map<Integer, Integer> lengths = new ConcurrentHashMap<>();
+    private final LongAdder totalLength = new LongAdder();
+
+    /** The entities using one term and how often each of them does. */
+    private static final class Term {
+        private final OrdinalSet ordinals = new OrdinalSet();
+        private final Map<Integer, Integer> frequencies = new HashMap<>();
+        private boolean retired;
+    }
+
+    void add(int ordinal, String lowerText) {
+        Map<String, Integer> counts = count(lowerText);
+        if (counts.isEmpty()) {
+            return;
+        }
+        int length = 0;
+        for (var entry : counts.entrySet()) {
+            length += entry.getValue();
+            while (true) {
+                Term term = terms.computeIfAbsent(entry.getKey(), k -> new Term());
+                synchronized (term) {
+                    if (!term.retired) {
+                        term.ordinals.add(ordinal);
+                        term.frequencies.put(ordinal, entry.getValue());
+                        break;
+                    }
+                }
+            }
+        }
+        Integer previous = lengths.put(ordinal, length);
+        totalLength.add(length - (previous == null ? 0 : previous));
+    }
+
+    void remove(int ordinal, String lowerText) {
+        for (String word : count(lowerText).keySet()) {
+            Term term = terms.get(word);
+            if (term == null) {
+                continue;
+            }
+            synchronized (term) {
+                term.ordinals.remove(ordinal);
+                term.frequencies.remove(ordinal);
+                if (term.ordinals.isEmpty() && !term.retired) {
+                    term.retired = true;
+                    terms.remove(word, term);
+                }
+            }
+        }
+        Integer previous = lengths.remove(ordinal);
+        if (previous != null) {
+            totalLength.add(-previous);
+        }
+    }
+
+    /** Ordinals of the entities using at least one of the words of {@code query}. */
+    OrdinalSet matching(String query) {
+        OrdinalSet result = new OrdinalSet();
+        for (String word : count(query.toLowerCase(Locale.ROOT)).keySet()) {
+            Term term = terms.get(word);
+            if (term != null) {
+                synchronized (term) {
+                    result.or(term.ordinals);
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Upper bound on the number of entities {@link #matching} returns. */
+    long estimate(String query) {
+        long total = 0;
+        for (String word : count(query.toLowerCase(Locale.ROOT)).keySet()) {
+            Term term = terms.get(word);
+            if (term != null) {
+                synchronized (term) {
+                    total += term.ordinals.cardinality();
+                }
+            }
+        }
+        return total;
+    }
+
+    /** Scores the entities using the words of {@code query} and returns the {@code k} best, best first. */
+    List<IndexManager.ScoredOrdinal> search(String query, int k) {
+        int documents = lengths.size();
+        if (documents == 0 || k <= 0) {
+            return List.of();
+        }
+        double averageLength = Math.max(1.0, (double) totalLength.sum() / documents);
+        Map<Integer, Double> scores = new HashMap<>();
+        for (String word : count(query.toLowerCase(Locale.ROOT)).keySet()) {
+            Term term = terms.get(word);
+            if (term == null) {
+                continue;
+            }
+            synchronized (term) {
+                int df = term.ordinals.cardinality();
+                double idf = Math.log(1 + (documents - df + 0.5) / (df + 0.5));
+                for (var entry : term.frequencies.entrySet()) {
+                    int ordinal = entry.getKey();
+                    double tf = entry.getValue();
+                    double length = lengths.getOrDefault(ordinal, 0);
+                    double norm = tf + K1 * (1 - B + B * length / averageLength);
+                    scores.merge(ordinal, idf * tf * (K1 + 1) / norm, Double::sum);
+                }
+            }
+        }
+        TopK best = new TopK(Math.min(k, scores.size()));
+        scores.forEach(best::offer);
+        return best.toList();
+    }
+
+    /** Term frequencies of the words in {@code lowerText}. */
+    static Map<String, Integer> count(String lowerText) {
+        Map<String, Integer> counts = new HashMap<>();
+        int start = -1;
+        for (int i = 0; i <= lowerText.length(); i++) {
+            boolean word = i < lowerText.length() && Character.isLetterOrDigit(lowerText.charAt(i));
+            if (word && start < 0) {
+                start = i;
+            } else if (!word && start >= 0) {
+                counts.merge(lowerText.substring(start, i), 1, Integer::sum);
+                start = -1;
+            }
+        }
+        return counts;
+    }
+}
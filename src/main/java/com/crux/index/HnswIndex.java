@@ -0,0 +1,451 @@
+package com.crux.index;
+
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+
+/**
+ * Hierarchical navigable small world graph for approximate cosine
+ * similarity search over entity vectors.
+ * <p>
+ * Every vector becomes a node on a random number of layers, each layer a
+ * sparser subset of the one below. A search walks greedily through the
+ * upper layers to a good starting point and then explores the bottom layer
+ * best-first, looking at about {@link HnswOptions#efSearch} candidates
+ * instead of every vector. Vectors are stored normalized and packed into one
+ * {@code float[]} by node, so similarity is a {@link VectorKernels#dot} over
+ * a contiguous range.
+ * <p>
+ * Removing an entity only marks its node deleted: the node keeps routing
+ * searches but is no longer returned, and re-adding the same vector (as an
+ * update of other fields does) simply revives it. Once deleted nodes
+ * outnumber live ones the graph is rebuilt from the live vectors.
+ * <p>
+ * Searches share a read lock; changes take the write lock.
+ */
+public final class HnswIndex {
+    private static final Logger LOGGER = Logger.getLogger(HnswIndex.class.getName());
+    private static final int REBUILD_MIN_DELETED = 64;
+
+    private final HnswOptions options;
+    private final double levelFactor;
+    private final Random random = new Random(42);
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private int dimension = -1;
+    private float[] vectors = new float[0];
+    private int[] ordinals = new int[16];
+    /** links[node][layer][0] is the neighbour count, the neighbours follow. */
+    private int[][][] links = new int[16][][];
+    private final BitSet deleted = new BitSet();
+    private final Map<Integer, Integer> nodeOfOrdinal = new HashMap<>();
+    private int nodes;
+    private int live;
+    private int entry = -1;
+    private int topLayer = -1;
+
+    public HnswIndex(HnswOptions options) {
+        if (options == null) {
+            throw new IllegalArgumentException("options must be non-null");
+        }
+        this.options = options;
+        this.levelFactor = 1 / Math.log(options.m());
+    }
+
+    /** Indexes {@code vector} for {@code ordinal}, replacing any vector it had. */
+    public void add(int ordinal, float[] vector) {
+        lock.writeLock().lock();
+        try {
+            if (dimension < 0) {
+                dimension = vector.length;
+            } else if (vector.length != dimension) {
+                LOGGER.warning("Ignoring vector of dimension " + vector.length + ", the index holds " + dimension);
+                return;
+            }
+            float[] normalized = normalize(vector);
+            Integer existing = nodeOfOrdinal.get(ordinal);
+            if (existing != null) {
+                int offset = existing * dimension;
+                if (deleted.get(existing) && Arrays.equals(vectors, offset, offset + dimension, normalized, 0, dimension)) {
+                    deleted.clear(existing);
+                    live++;
+                    return;
+                }
+                delete(existing);
+            }
+            nodeOfOrdinal.put(ordinal, insert(ordinal, normalized));
+            live++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** Stops returning the vector of {@code ordinal}. */
+    public void remove(int ordinal) {
+        lock.writeLock().lock();
+        try {
+            Integer node = nodeOfOrdinal.get(ordinal);
+            if (node != null) {
+                delete(node);
+                if (nodes - live >= REBUILD_MIN_DELETED && nodes - live > live) {
+                    rebuild();
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** Number of vectors that searches can return. */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return live;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns up to {@code k} ordinals whose vectors are most similar to
+     * {@code query}, most similar first, examining {@code ef} candidates
+     * (at least {@code k}).
+     */
+    public List<IndexManager.ScoredOrdinal> search(float[] query, int k, int ef) {
+        lock.readLock().lock();
+        try {
+            if (entry < 0 || k <= 0 || query.length != dimension) {
+                return List.of();
+            }
+            float[] q = normalize(query);
+            int ep = entry;
+            for (int layer = topLayer; layer > 0; layer--) {
+                ep = greedy(q, ep, layer);
+            }
+            NodeHeap found = searchLayer(q, ep, Math.max(ef, k), 0);
+            int[] byDistance = found.drainAscending();
+            List<IndexManager.ScoredOrdinal> result = new ArrayList<>(Math.min(k, byDistance.length));
+            for (int node : byDistance) {
+                if (!deleted.get(node)) {
+                    result.add(new IndexManager.ScoredOrdinal(ordinals[node], 1 - distance(q, node)));
+                    if (result.size() == k) {
+                        break;
+                    }
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public List<IndexManager.ScoredOrdinal> search(float[] query, int k) {
+        return search(query, k, options.efSearch());
+    }
+
+    private void delete(int node) {
+        if (!deleted.get(node)) {
+            deleted.set(node);
+            live--;
+        }
+    }
+
+    private int insert(int ordinal, float[] vector) {
+        int level = (int) (-Math.log(1 - random.nextDouble()) * levelFactor);
+        int node = allocate(ordinal, vector, level);
+        if (entry < 0) {
+            entry = node;
+            topLayer = level;
+            return node;
+        }
+        int ep = entry;
+        for (int layer = topLayer; layer > level; layer--) {
+            ep = greedy(vector, ep, layer);
+        }
+        for (int layer = Math.min(level, topLayer); layer >= 0; layer--) {
+            NodeHeap found = searchLayer(vector, ep, options.efConstruction(), layer);
+            int[] candidates = found.drainAscending();
+            int[] selected = selectNeighbors(vector, 0, candidates, options.m());
+            int[] own = links[node][layer];
+            System.arraycopy(selected, 0, own, 1, selected.length);
+            own[0] = selected.length;
+            for (int neighbor : selected) {
+                connect(neighbor, node, layer);
+            }
+            ep = candidates[0];
+        }
+        if (level > topLayer) {
+            entry = node;
+            topLayer = level;
+        }
+        return node;
+    }
+
+    private int allocate(int ordinal, float[] vector, int level) {
+        if (nodes == ordinals.length) {
+            int capacity = nodes * 2;
+            ordinals = Arrays.copyOf(ordinals, capacity);
+            links = Arrays.copyOf(links, capacity);
+        }
+        if (vectors.length < ordinals.length * dimension) {
+            vectors = Arrays.copyOf(vectors, ordinals.length * dimension);
+        }
+        int node = nodes++;
+        System.arraycopy(vector, 0, vectors, node * dimension, dimension);
+        ordinals[node] = ordinal;
+        links[node] = new int[level + 1][];
+        for (int layer = 0; layer <= level; layer++) {
+            links[node][layer] = new int[maxLinks(layer) + 1];
+        }
+        return node;
+    }
+
+    /** Adds a link from {@code from} to {@code to}, pruning {@code from}'s list when it overflows. */
+    private void connect(int from, int to, int layer) {
+        int[] list = links[from][layer];
+        int count = list[0];
+        if (count < list.length - 1) {
+            list[++list[0]] = to;
+            return;
+        }
+        int[] candidates = Arrays.copyOfRange(list, 1, count + 2);
+        candidates[count] = to;
+        Integer[] order = new Integer[candidates.length];
+        float[] distances = new float[candidates.length];
+        for (int i = 0; i < candidates.length; i++) {
+            order[i] = i;
+            distances[i] = distance(from, candidates[i]);
+        }
+        Arrays.sort(order, Comparator.comparingDouble(i -> distances[i]));
+        int[] sorted = new int[candidates.length];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = candidates[order[i]];
+        }
+        int[] kept = selectNeighbors(vectors, from * dimension, sorted, count);
+        System.arraycopy(kept, 0, list, 1, kept.length);
+        list[0] = kept.length;
+    }
+
+    /**
+     * Picks up to {@code m} neighbours from {@code candidates} (closest
+     * first), skipping those closer to an already picked neighbour than to
+     * the base vector at {@code base[offset]} so the links spread in
+     * different directions; skipped ones fill any remaining slots.
+     */
+    private int[] selectNeighbors(float[] base, int offset, int[] candidates, int m) {
+        if (candidates.length <= m) {
+            return candidates;
+        }
+        int[] selected = new int[m];
+        int count = 0;
+        int[] skipped = new int[candidates.length];
+        int skippedCount = 0;
+        for (int candidate : candidates) {
+            if (count == m) {
+                break;
+            }
+            float d = 1 - VectorKernels.dot(base, offset, vectors, candidate * dimension, dimension);
+            boolean diverse = true;
+            for (int i = 0; i < count; i++) {
+                if (distance(candidate, selected[i]) < d) {
+                    diverse = false;
+                    break;
+                }
+            }
+            if (diverse) {
+                selected[count++] = candidate;
+            } else {
+                skipped[skippedCount++] = candidate;
+            }
+        }
+        for (int i = 0; i < skippedCount && count < m; i++) {
+            selected[count++] = skipped[i];
+        }
+        return count == m ? selected : Arrays.copyOf(selected, count);
+    }
+
+    private int greedy(float[] q, int ep, int layer) {
+        int current = ep;
+        float best = distance(q, current);
+        boolean moved = true;
+        while (moved) {
+            moved = false;
+            int[] list = links[current][layer];
+            for (int i = 1; i <= list[0]; i++) {
+                float d = distance(q, list[i]);
+                if (d < best) {
+                    best = d;
+                    current = list[i];
+                    moved = true;
+                }
+            }
+        }
+        return current;
+    }
+
+    /** Best-first search of one layer; returns the {@code ef} closest nodes found. */
+    private NodeHeap searchLayer(float[] q, int ep, int ef, int layer) {
+        BitSet visited = new BitSet(nodes);
+        visited.set(ep);
+        float d = distance(q, ep);
+        NodeHeap candidates = new NodeHeap(false);
+        NodeHeap results = new NodeHeap(true);
+        candidates.push(ep, d);
+        results.push(ep, d);
+        while (candidates.size() > 0) {
+            int current = candidates.topNode();
+            float currentDistance = candidates.topDistance();
+            candidates.pop();
+            if (results.size() >= ef && currentDistance > results.topDistance()) {
+                break;
+            }
+            int[] list = links[current][layer];
+            for (int i = 1; i <= list[0]; i++) {
+                int neighbor = list[i];
+                if (visited.get(neighbor)) {
+                    continue;
+                }
+                visited.set(neighbor);
+                float nd = distance(q, neighbor);
+                if (results.size() < ef || nd < results.topDistance()) {
+                    candidates.push(neighbor, nd);
+                    results.push(neighbor, nd);
+                    if (results.size() > ef) {
+                        results.pop();
+                    }
+                }
+            }
+        }
+        return results;
+    }
+
+    private void rebuild() {
+        int[] keptOrdinals = new int[live];
+        float[][] keptVectors = new float[live][];
+        int count = 0;
+        for (int node = 0; node < nodes; node++) {
+            if (!deleted.get(node)) {
+                keptOrdinals[count] = ordinals[node];
+                keptVectors[count++] = Arrays.copyOfRange(vectors, node * dimension, (node + 1) * dimension);
+            }
+        }
+        LOGGER.fine("Rebuilding vector index from " + count + " live of " + nodes + " nodes");
+        ordinals = new int[Math.max(16, count)];
+        links = new int[ordinals.length][][];
+        vectors = new float[ordinals.length * dimension];
+        deleted.clear();
+        nodeOfOrdinal.clear();
+        nodes = 0;
+        entry = -1;
+        topLayer = -1;
+        for (int i = 0; i < count; i++) {
+            nodeOfOrdinal.put(keptOrdinals[i], insert(keptOrdinals[i], keptVectors[i]));
+        }
+        live = count;
+    }
+
+    private int maxLinks(int layer) {
+        return layer == 0 ? 2 * options.m() : options.m();
+    }
+
+    private static float[] normalize(float[] vector) {
+        float norm = VectorKernels.norm(vector, 0, vector.length);
+        float[] result = vector.clone();
+        if (norm > 0) {
+            float scale = 1 / norm;
+            for (int i = 0; i < result.length; i++) {
+                result[i] *= scale;
+            }
+        }
+        return result;
+    }
+
+    /** Cosine distance from a normalized query to a node. */
+    private float distance(float[] q, int node) {
+        return 1 - VectorKernels.dot(q, 0, vectors, node * dimension, dimension);
+    }
+
+    private float distance(int a, int b) {
+        return 1 - VectorKernels.dot(vectors, a * dimension, vectors, b * dimension, dimension);
+    }
+
+    /** Binary heap of (node, distance) pairs, nearest or farthest on top. */
+    private static final class NodeHeap {
+        private final boolean farthestFirst;
+        private int[] heapNodes = new int[16];
+        private float[] heapDistances = new float[16];
+        private int size;
+
+        NodeHeap(boolean farthestFirst) {
+            this.farthestFirst = farthestFirst;
+        }
+
+        int size() {
+            return size;
+        }
+
+        int topNode() {
+            return heapNodes[0];
+        }
+
+        float topDistance() {
+            return heapDistances[0];
+        }
+
+        void push(int node, float distance) {
+            if (size == heapNodes.length) {
+                heapNodes = Arrays.copyOf(heapNodes, size * 2);
+                heapDistances = Arrays.copyOf(heapDistances, size * 2);
+            }
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (!above(distance, heapDistances[parent])) {
+                    break;
+                }
+                heapNodes[i] = heapNodes[parent];
+                heapDistances[i] = heapDistances[parent];
+                i = parent;
+            }
+            heapNodes[i] = node;
+            heapDistances[i] = distance;
+        }
+
+        void pop() {
+            int node = heapNodes[--size];
+            float distance = heapDistances[size];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && above(heapDistances[child + 1], heapDistances[child])) {
+                    child++;
+                }
+                if (!above(heapDistances[child], distance)) {
+                    break;
+                }
+                heapNodes[i] = heapNodes[child];
+                heapDistances[i] = heapDistances[child];
+                i = child;
+            }
+            heapNodes[i] = node;
+            heapDistances[i] = distance;
+        }
+
+        /** Empties a farthest-first heap into an array ordered nearest first. */
+        int[] drainAscending() {
+            int[] result = new int[size];
+            for (int i = size - 1; i >= 0; i--) {
+                result[i] = topNode();
+                pop();
+            }
+            return result;
+        }
+
+        private boolean above(float a, float b) {
+            return farthestFirst ? a > b : a < b;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.crux.index;
+
+/**
+ * Tuning of the {@link HnswIndex} behind similarity search.
+ *
+ * @param m              links kept per node on the upper layers (twice as many on
+ *                       the bottom one); more links raise recall and memory use
+ * @param efConstruction candidates examined while linking a new vector; higher
+ *                       builds a better graph more slowly
+ * @param efSearch       candidates examined per query; raised to the number of
+ *                       requested results when that is larger
+ */
+public record HnswOptions(int m, int efConstruction, int efSearch) {
+
+    public HnswOptions {
+        if (m < 2) {
+            throw new IllegalArgumentException("m must be at least 2");
+        }
+        if (efConstruction < 1 || efSearch < 1) {
+            throw new IllegalArgumentException("efConstruction and efSearch must be positive");
+        }
+    }
+
+    public static HnswOptions defaults() {
+        return new HnswOptions(16, 200, 64);
+    }
+
+    public HnswOptions withM(int m) {
+        return new HnswOptions(m, efConstruction, efSearch);
+    }
+
+    public HnswOptions withEfConstruction(int efConstruction) {
+        return new HnswOptions(m, efConstruction, efSearch);
+    }
+
+    public HnswOptions withEfSearch(int efSearch) {
+        return new HnswOptions(m, efConstruction, efSearch);
+    }
+}
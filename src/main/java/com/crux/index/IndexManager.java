@@ -3,19 +3,119 @@ package com.crux.index;
 import com.crux.store.Entity;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.BiConsumer;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Pattern;
 
 /**
  * Maintains simple in-memory indexes for entity fields.
+ * <p>
+ * Every indexed entity id is mapped to a dense int ordinal and posting
+ * lists are {@link OrdinalSet} bitmaps of those ordinals, so searches
+ * return bitmaps that queries combine with word-wise AND/OR/ANDNOT. An id
+ * keeps its ordinal for the lifetime of the manager, which means an
+ * ordinal read by a concurrent search never starts naming another entity.
+ * <p>
+ * The maps are concurrent and writers only synchronize on the posting
+ * list of the value they touch, which keeps updates of different values
+ * (and different fields) independent. Searches hold a posting list's
+ * monitor just long enough to fold its bitmap into their result.
+ * <p>
+ * String fields registered with {@link #enableTrigrams} also get a trigram
+ * index: a posting list per three-character sequence of the lower-cased
+ * value. A contains search then intersects the postings of the needle's
+ * trigrams and checks only the entities left, instead of every value of the
+ * field. The verification step also absorbs the rare stale posting a
+ * concurrent backfill may leave behind.
+ * <p>
+ * String values are additionally kept lower-cased in a sorted map per field,
+ * which is what the case-insensitive {@code LIKE} search works on: a pattern
+ * with a literal prefix only visits the values in that prefix's range, and
+ * every other pattern is tested once per distinct value rather than once
+ * per entity, or narrowed by the trigram index first when there is one.
+ * <p>
+ * Every string field is also tokenized into a {@link FullTextIndex}, which
+ * answers keyword searches ranked by BM25, and numeric {@value #VECTOR_FIELD}
+ * lists are copied into a packed {@link VectorColumn} for exact similarity
+ * search and added to an {@link HnswIndex} for approximate search. With
+ * {@link VectorOptions#quantized} the column holds int8 codes and there is
+ * no graph: searches scan the codes for a few candidates per result and
+ * re-rank those against the full-precision vectors the store looks up.
  */
 public class IndexManager {
     private static final Logger LOGGER = Logger.getLogger(IndexManager.class.getName());
+    /** The field holding an entity's embedding. */
+    public static final String VECTOR_FIELD = "vector";
+    /** Filtered similarity searches over at most this many entities skip the graph. */
+    private static final int FILTERED_SCAN_LIMIT = 4096;
 
-    private final Map<String, NavigableMap<Comparable, Set<String>>> indexes = new HashMap<>();
-    private final Map<String, Map<String, String>> textValues = new HashMap<>();
+    private final Map<String, NavigableMap<Comparable, Postings>> indexes = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, String>> textValues = new ConcurrentHashMap<>();
+    private final Map<String, NavigableMap<String, Postings>> lowerValues = new ConcurrentHashMap<>();
+    private final Map<String, Integer> ordinals = new ConcurrentHashMap<>();
+    private volatile String[] idsByOrdinal = new String[64];
+    private int nextOrdinal;
+    private final OrdinalSet live = new OrdinalSet();
+    private final Map<String, FieldCounters> statistics = new ConcurrentHashMap<>();
+    private final Map<String, Map<Long, Postings>> trigrams = new ConcurrentHashMap<>();
+    private final Map<String, FullTextIndex> fullText = new ConcurrentHashMap<>();
+    private final HnswIndex vectors;
+    private final VectorColumn vectorColumn;
+    private final int rerank;
+    private final Function<String, float[]> fullVectors;
+
+    /**
+     * Ordinals sharing one indexed value. A posting list that became empty
+     * is retired and unlinked under its own monitor, so a concurrent writer
+     * that still holds a reference knows to look the value up again.
+     */
+    private static final class Postings {
+        private final OrdinalSet ordinals = new OrdinalSet();
+        private boolean retired;
+    }
+
+    /** Running totals behind {@link #statistics}. */
+    private static final class FieldCounters {
+        private final LongAdder entries = new LongAdder();
+        private final LongAdder distinct = new LongAdder();
+    }
+
+    /**
+     * Cardinality statistics of one indexed field.
+     *
+     * @param entries        number of (entity, value) pairs indexed for the field
+     * @param distinctValues number of distinct values among them
+     */
+    public record FieldStatistics(long entries, long distinctValues) {}
+
+    /** An entity ordinal with its relevance to a keyword or vector search, higher is closer. */
+    public record ScoredOrdinal(int ordinal, double score) {}
+
+    public IndexManager() {
+        this(HnswOptions.defaults());
+    }
+
+    public IndexManager(HnswOptions vectorOptions) {
+        this(vectorOptions, VectorOptions.defaults(), null);
+    }
+
+    /**
+     * @param fullVectors the full-precision vector of an entity id, needed
+     *                    to re-rank the candidates of a quantized column
+     */
+    public IndexManager(HnswOptions hnswOptions, VectorOptions vectorOptions, Function<String, float[]> fullVectors) {
+        if (vectorOptions.quantized() && fullVectors == null) {
+            throw new IllegalArgumentException("quantized vectors need a source of full-precision vectors");
+        }
+        this.vectors = vectorOptions.quantized() ? null : new HnswIndex(hnswOptions);
+        this.vectorColumn = new VectorColumn(vectorOptions.quantized());
+        this.rerank = vectorOptions.rerank();
+        this.fullVectors = fullVectors;
+    }
 
     public void index(Entity entity) {
         if (entity == null) {
@@ -24,7 +124,15 @@ public class IndexManager {
         }
         try {
             String id = entity.getId();
-            entity.getFields().forEach((key, value) -> traverse(key, value, (path, val) -> addValue(path, val, id)));
+            int ordinal = assignOrdinal(id);
+            entity.getFields().forEach((key, value) -> traverse(key, value, (path, val) -> addValue(path, val, id, ordinal)));
+            float[] vector = vectorOf(entity);
+            if (vector != null && vectorColumn.put(ordinal, vector) && vectors != null) {
+                vectors.add(ordinal, vector);
+            }
+            synchronized (live) {
+                live.add(ordinal);
+            }
         } catch (Exception ex) {
             LOGGER.log(Level.SEVERE, "Failed to index entity", ex);
         }
@@ -37,176 +145,704 @@ public class IndexManager {
         }
         try {
             String id = entity.getId();
-            entity.getFields().forEach((key, value) -> traverse(key, value, (path, val) -> removeValue(path, val, id)));
+            Integer ordinal = ordinals.get(id);
+            if (ordinal == null) {
+                return;
+            }
+            synchronized (live) {
+                live.remove(ordinal);
+            }
+            entity.getFields().forEach((key, value) -> traverse(key, value, (path, val) -> removeValue(path, val, id, ordinal)));
+            if (vectorOf(entity) != null) {
+                vectorColumn.remove(ordinal);
+                if (vectors != null) {
+                    vectors.remove(ordinal);
+                }
+            }
         } catch (Exception ex) {
             LOGGER.log(Level.SEVERE, "Failed to remove entity from index", ex);
         }
     }
 
-    public Set<String> searchEquals(String field, Comparable value) {
+    public OrdinalSet searchEquals(String field, Comparable value) {
         if (field == null || value == null) {
             LOGGER.warning("searchEquals called with null field or value");
-            return Collections.emptySet();
+            return new OrdinalSet();
         }
         Comparable<?> normalized = normalizeComparable(value);
         if (normalized == null) {
-            return Collections.emptySet();
+            return new OrdinalSet();
         }
-        NavigableMap<Comparable, Set<String>> map = indexes.get(field);
+        NavigableMap<Comparable, Postings> map = indexes.get(field);
         if (map == null) {
-            return Collections.emptySet();
+            return new OrdinalSet();
+        }
+        Postings postings = map.get(normalized);
+        if (postings == null) {
+            return new OrdinalSet();
+        }
+        synchronized (postings) {
+            return postings.ordinals.copy();
         }
-        return new HashSet<>(map.getOrDefault(normalized, Collections.emptySet()));
     }
 
-    public Set<String> searchGreaterThan(String field, Comparable value) {
+    public OrdinalSet searchGreaterThan(String field, Comparable value) {
         if (field == null || value == null) {
             LOGGER.warning("searchGreaterThan called with null field or value");
-            return Collections.emptySet();
+            return new OrdinalSet();
         }
         Comparable<?> normalized = normalizeComparable(value);
         if (normalized == null) {
-            return Collections.emptySet();
+            return new OrdinalSet();
         }
-        NavigableMap<Comparable, Set<String>> map = indexes.get(field);
+        NavigableMap<Comparable, Postings> map = indexes.get(field);
         if (map == null) {
-            return Collections.emptySet();
+            return new OrdinalSet();
         }
-        return map.tailMap(normalized, false).values().stream()
-                .collect(HashSet::new, Set::addAll, Set::addAll);
+        return collect(map.tailMap(normalized, false).values());
     }
 
-    public Set<String> searchLessThan(String field, Comparable value) {
+    public OrdinalSet searchLessThan(String field, Comparable value) {
         if (field == null || value == null) {
             LOGGER.warning("searchLessThan called with null field or value");
-            return Collections.emptySet();
+            return new OrdinalSet();
         }
         Comparable<?> normalized = normalizeComparable(value);
         if (normalized == null) {
-            return Collections.emptySet();
+            return new OrdinalSet();
         }
-        NavigableMap<Comparable, Set<String>> map = indexes.get(field);
+        NavigableMap<Comparable, Postings> map = indexes.get(field);
         if (map == null) {
-            return Collections.emptySet();
+            return new OrdinalSet();
         }
-        return map.headMap(normalized, false).values().stream()
-                .collect(HashSet::new, Set::addAll, Set::addAll);
+        return collect(map.headMap(normalized, false).values());
     }
 
-    public Set<String> searchGreaterOrEquals(String field, Comparable value) {
+    public OrdinalSet searchGreaterOrEquals(String field, Comparable value) {
         if (field == null || value == null) {
             LOGGER.warning("searchGreaterOrEquals called with null field or value");
-            return Collections.emptySet();
+            return new OrdinalSet();
         }
         Comparable<?> normalized = normalizeComparable(value);
         if (normalized == null) {
-            return Collections.emptySet();
+            return new OrdinalSet();
         }
-        NavigableMap<Comparable, Set<String>> map = indexes.get(field);
+        NavigableMap<Comparable, Postings> map = indexes.get(field);
         if (map == null) {
-            return Collections.emptySet();
+            return new OrdinalSet();
         }
-        return map.tailMap(normalized, true).values().stream()
-                .collect(HashSet::new, Set::addAll, Set::addAll);
+        return collect(map.tailMap(normalized, true).values());
     }
 
-    public Set<String> searchLessOrEquals(String field, Comparable value) {
+    public OrdinalSet searchLessOrEquals(String field, Comparable value) {
         if (field == null || value == null) {
             LOGGER.warning("searchLessOrEquals called with null field or value");
-            return Collections.emptySet();
+            return new OrdinalSet();
         }
         Comparable<?> normalized = normalizeComparable(value);
         if (normalized == null) {
-            return Collections.emptySet();
+            return new OrdinalSet();
         }
-        NavigableMap<Comparable, Set<String>> map = indexes.get(field);
+        NavigableMap<Comparable, Postings> map = indexes.get(field);
         if (map == null) {
-            return Collections.emptySet();
+            return new OrdinalSet();
         }
-        return map.headMap(normalized, true).values().stream()
-                .collect(HashSet::new, Set::addAll, Set::addAll);
+        return collect(map.headMap(normalized, true).values());
     }
 
-    public Set<String> searchContains(String field, String substring) {
+    public OrdinalSet searchContains(String field, String substring) {
         if (field == null || substring == null) {
             LOGGER.warning("searchContains called with null arguments");
-            return Collections.emptySet();
+            return new OrdinalSet();
         }
         Map<String, String> values = textValues.get(field);
         if (values == null) {
-            return Collections.emptySet();
+            return new OrdinalSet();
         }
         String needle = substring.toLowerCase(Locale.ROOT);
-        Set<String> result = new HashSet<>();
+        Map<Long, Postings> grams = trigrams.get(field);
+        if (grams != null && needle.length() >= 3) {
+            OrdinalSet result = trigramCandidates(grams, needle);
+            OrdinalSet verified = new OrdinalSet();
+            result.forEach(ordinal -> {
+                String value = values.get(idOf(ordinal));
+                if (value != null && value.contains(needle)) {
+                    verified.add(ordinal);
+                }
+            });
+            return verified;
+        }
+        OrdinalSet result = new OrdinalSet();
         for (var entry : values.entrySet()) {
             if (entry.getValue().contains(needle)) {
-                result.add(entry.getKey());
+                addOrdinal(result, entry.getKey());
             }
         }
         return result;
     }
 
-    public Set<String> searchLike(String field, String pattern) {
+    /**
+     * Builds a trigram index for the string values of {@code field} and keeps
+     * it up to date from now on. Calling it again for the same field does
+     * nothing.
+     */
+    public void enableTrigrams(String field) {
+        if (field == null) {
+            LOGGER.warning("enableTrigrams called with null field");
+            return;
+        }
+        Map<Long, Postings> grams = new ConcurrentHashMap<>();
+        if (trigrams.putIfAbsent(field, grams) != null) {
+            return;
+        }
+        // writers see the map from here on; values indexed before are backfilled
+        Map<String, String> values = textValues.get(field);
+        if (values != null) {
+            values.forEach((id, value) -> {
+                Integer ordinal = ordinals.get(id);
+                if (ordinal != null) {
+                    addTrigrams(grams, value, ordinal);
+                }
+            });
+        }
+    }
+
+    /** Whether {@code field} has a trigram index. */
+    public boolean hasTrigrams(String field) {
+        return field != null && trigrams.containsKey(field);
+    }
+
+    public OrdinalSet searchLike(String field, String pattern) {
         if (field == null || pattern == null) {
             LOGGER.warning("searchLike called with null arguments");
-            return Collections.emptySet();
+            return new OrdinalSet();
+        }
+        NavigableMap<String, Postings> sorted = lowerValues.get(field);
+        if (sorted == null) {
+            return new OrdinalSet();
+        }
+        LikePattern like = LikePattern.compile(pattern);
+        String prefix = like.prefix();
+        if (like.isExact()) {
+            Postings postings = sorted.get(prefix);
+            return postings == null ? new OrdinalSet() : collect(List.of(postings));
+        }
+        if (!prefix.isEmpty()) {
+            OrdinalSet result = new OrdinalSet();
+            for (var entry : sorted.tailMap(prefix, true).entrySet()) {
+                if (!entry.getKey().startsWith(prefix)) {
+                    break;
+                }
+                if (like.matches(entry.getKey())) {
+                    synchronized (entry.getValue()) {
+                        result.or(entry.getValue().ordinals);
+                    }
+                }
+            }
+            return result;
         }
+        Map<Long, Postings> grams = trigrams.get(field);
         Map<String, String> values = textValues.get(field);
-        if (values == null) {
-            return Collections.emptySet();
+        if (grams != null && values != null && like.literals().stream().anyMatch(l -> l.length() >= 3)) {
+            OrdinalSet candidates = null;
+            for (String literal : like.literals()) {
+                if (literal.length() >= 3) {
+                    OrdinalSet found = trigramCandidates(grams, literal);
+                    candidates = candidates == null ? found : candidates.and(found);
+                }
+            }
+            OrdinalSet result = new OrdinalSet();
+            candidates.forEach(ordinal -> {
+                if (like.matches(values.get(idOf(ordinal)))) {
+                    result.add(ordinal);
+                }
+            });
+            return result;
+        }
+        OrdinalSet result = new OrdinalSet();
+        for (var entry : sorted.entrySet()) {
+            if (like.matches(entry.getKey())) {
+                synchronized (entry.getValue()) {
+                    result.or(entry.getValue().ordinals);
+                }
+            }
         }
-        Pattern regex = Pattern.compile(convertLikePattern(pattern.toLowerCase(Locale.ROOT)));
-        Set<String> result = new HashSet<>();
-        for (var entry : values.entrySet()) {
-            if (regex.matcher(entry.getValue()).matches()) {
-                result.add(entry.getKey());
+        return result;
+    }
+
+    /** Ordinals of the entities whose {@code field} contains at least one of the words of {@code query}. */
+    public OrdinalSet searchMatches(String field, String query) {
+        if (field == null || query == null) {
+            LOGGER.warning("searchMatches called with null arguments");
+            return new OrdinalSet();
+        }
+        FullTextIndex index = fullText.get(field);
+        return index == null ? new OrdinalSet() : index.matching(query);
+    }
+
+    /** The {@code k} entities most relevant to {@code query} by BM25 over {@code field}, best first. */
+    public List<ScoredOrdinal> searchText(String field, String query, int k) {
+        if (field == null || query == null) {
+            LOGGER.warning("searchText called with null arguments");
+            return List.of();
+        }
+        FullTextIndex index = fullText.get(field);
+        return index == null ? List.of() : index.search(query, k);
+    }
+
+    /** Upper bound on the number of entities {@link #searchMatches} returns. */
+    public long estimateMatches(String field, String query) {
+        FullTextIndex index = field == null || query == null ? null : fullText.get(field);
+        return index == null ? 0 : index.estimate(query);
+    }
+
+    /** The words a {@code matches} search looks up in {@code text}. */
+    public static Set<String> words(String text) {
+        return FullTextIndex.count(text.toLowerCase(Locale.ROOT)).keySet();
+    }
+
+    /**
+     * The {@code k} entities whose vectors are closest to {@code query} by
+     * cosine similarity, most similar first, as found by the HNSW graph.
+     */
+    public List<ScoredOrdinal> searchVectors(float[] query, int k) {
+        if (query == null) {
+            return List.of();
+        }
+        return vectors == null ? rerank(query, vectorColumn.topK(query, candidates(k), null), k) : vectors.search(query, k);
+    }
+
+    /** Like {@link #searchVectors(float[], int)}, examining {@code ef} candidates. */
+    public List<ScoredOrdinal> searchVectors(float[] query, int k, int ef) {
+        if (query == null) {
+            return List.of();
+        }
+        return vectors == null ? searchVectors(query, k) : vectors.search(query, k, ef);
+    }
+
+    /**
+     * The {@code k} entities whose vectors are closest to {@code query} by
+     * cosine similarity, most similar first, comparing against every stored
+     * vector (in parallel for large stores).
+     */
+    public List<ScoredOrdinal> scanVectors(float[] query, int k) {
+        return scanVectors(query, k, null);
+    }
+
+    /** Like {@link #scanVectors(float[], int)}, among the ordinals in {@code allowed} only. */
+    public List<ScoredOrdinal> scanVectors(float[] query, int k, OrdinalSet allowed) {
+        if (query == null) {
+            return List.of();
+        }
+        if (vectorColumn.isQuantized()) {
+            return rerank(query, vectorColumn.topK(query, Integer.MAX_VALUE, allowed), k);
+        }
+        return vectorColumn.topK(query, k, allowed);
+    }
+
+    /**
+     * Like {@link #searchVectors(float[], int)}, among the ordinals in
+     * {@code allowed} only. A small allowed set is scanned exactly; for a
+     * larger one the graph search looks at proportionally more candidates
+     * and drops the others, falling back to a scan if too few remain.
+     */
+    public List<ScoredOrdinal> searchVectors(float[] query, int k, OrdinalSet allowed) {
+        if (allowed == null) {
+            return searchVectors(query, k);
+        }
+        int candidates = allowed.cardinality();
+        int stored = vectorColumn.size();
+        if (query == null || k <= 0 || candidates == 0) {
+            return List.of();
+        }
+        if (vectors == null) {
+            return rerank(query, vectorColumn.topK(query, candidates(k), allowed), k);
+        }
+        if (candidates <= FILTERED_SCAN_LIMIT || candidates * 8L < stored) {
+            return scanVectors(query, k, allowed);
+        }
+        int widened = (int) Math.min(stored, (long) k * stored / candidates + k);
+        List<ScoredOrdinal> result = new ArrayList<>(k);
+        for (ScoredOrdinal hit : vectors.search(query, widened)) {
+            if (allowed.contains(hit.ordinal())) {
+                result.add(hit);
+                if (result.size() == k) {
+                    return result;
+                }
+            }
+        }
+        return scanVectors(query, k, allowed);
+    }
+
+    /** The indexed vector of the entity with {@code ordinal}, or null if it has none. */
+    public float[] vector(int ordinal) {
+        if (!vectorColumn.isQuantized()) {
+            return vectorColumn.get(ordinal);
+        }
+        String id = idOf(ordinal);
+        return id != null && vectorColumn.contains(ordinal) ? fullVectors.apply(id) : null;
+    }
+
+    /** How many quantized candidates to re-rank for {@code k} results. */
+    private int candidates(int k) {
+        return (int) Math.min(Integer.MAX_VALUE, (long) k * rerank);
+    }
+
+    /** The best {@code k} of {@code candidates}, re-scored against the full-precision vectors. */
+    private List<ScoredOrdinal> rerank(float[] query, List<ScoredOrdinal> candidates, int k) {
+        TopK best = new TopK(Math.max(0, Math.min(k, candidates.size())));
+        float queryNorm = VectorKernels.norm(query, 0, query.length);
+        for (ScoredOrdinal candidate : candidates) {
+            String id = idOf(candidate.ordinal());
+            float[] full = id == null ? null : fullVectors.apply(id);
+            if (full != null && full.length == query.length) {
+                best.offer(candidate.ordinal(), VectorKernels.cosine(query, 0, queryNorm,
+                        full, 0, VectorKernels.norm(full, 0, full.length), full.length));
+            }
+        }
+        return best.toList();
+    }
+
+    /** The {@value #VECTOR_FIELD} field of {@code entity} as floats, or null if it is not a list of numbers. */
+    public static float[] vectorOf(Entity entity) {
+        if (!(entity.get(VECTOR_FIELD) instanceof List<?> list) || list.isEmpty()) {
+            return null;
+        }
+        float[] vector = new float[list.size()];
+        for (int i = 0; i < vector.length; i++) {
+            if (!(list.get(i) instanceof Number n)) {
+                return null;
+            }
+            vector[i] = n.floatValue();
+        }
+        return vector;
+    }
+
+    /** Number of currently indexed entities. */
+    public int size() {
+        synchronized (live) {
+            return live.cardinality();
+        }
+    }
+
+    public FieldStatistics statistics(String field) {
+        FieldCounters counters = field == null ? null : statistics.get(field);
+        return counters == null
+                ? new FieldStatistics(0, 0)
+                : new FieldStatistics(Math.max(0, counters.entries.sum()), Math.max(0, counters.distinct.sum()));
+    }
+
+    /** Exact number of entities whose {@code field} equals {@code value}. */
+    public long estimateEquals(String field, Comparable value) {
+        Comparable<?> normalized = value == null ? null : normalizeComparable(value);
+        NavigableMap<Comparable, Postings> map = field == null ? null : indexes.get(field);
+        Postings postings = map == null || normalized == null ? null : map.get(normalized);
+        if (postings == null) {
+            return 0;
+        }
+        synchronized (postings) {
+            return postings.ordinals.cardinality();
+        }
+    }
+
+    /**
+     * Estimates how many entities have a {@code field} value above
+     * ({@code above}) or below {@code bound}. Numeric fields are assumed to
+     * be spread evenly between their smallest and largest value; for other
+     * types a third of the entries is assumed to match.
+     */
+    public long estimateRange(String field, Comparable bound, boolean above) {
+        long entries = statistics(field).entries();
+        NavigableMap<Comparable, Postings> map = field == null ? null : indexes.get(field);
+        Comparable<?> normalized = bound == null ? null : normalizeComparable(bound);
+        if (entries == 0 || map == null || normalized == null) {
+            return 0;
+        }
+        try {
+            if (normalized instanceof Double v && map.firstKey() instanceof Double min && map.lastKey() instanceof Double max) {
+                double fraction = max > min ? (above ? max - v : v - min) / (max - min) : 0.5;
+                return Math.round(entries * Math.min(1, Math.max(0, fraction)));
             }
+        } catch (NoSuchElementException ignored) {
+            return 0;
+        }
+        return entries / 3;
+    }
+
+    /** Number of string values indexed for {@code field}, the input of a contains or like search. */
+    public long textEntries(String field) {
+        Map<String, String> values = field == null ? null : textValues.get(field);
+        return values == null ? 0 : values.size();
+    }
+
+    /** Ordinals of every currently indexed entity. */
+    public OrdinalSet all() {
+        synchronized (live) {
+            return live.copy();
         }
+    }
+
+    /**
+     * Walks the ordinals of {@code allowed} (every indexed entity when null)
+     * in order of their indexed {@code field} value, one posting list at a
+     * time, so a caller that stops early never touches the rest of the
+     * index. Entities without an indexed value for the field come last, in
+     * ordinal order; ties come in ordinal order too.
+     */
+    public PrimitiveIterator.OfInt ordered(String field, boolean descending, OrdinalSet allowed) {
+        NavigableMap<Comparable, Postings> map = field == null ? null : indexes.get(field);
+        Iterator<Postings> values = map == null
+                ? Collections.emptyIterator()
+                : (descending ? map.descendingMap() : map).values().iterator();
+        OrdinalSet remaining = allowed == null ? all() : allowed.copy();
+        return new PrimitiveIterator.OfInt() {
+            private DocIdIterator current = DocIdIterator.empty();
+            private boolean unindexed;
+            private int next = -1;
+
+            @Override
+            public boolean hasNext() {
+                while (next < 0) {
+                    int ordinal = current.nextDoc();
+                    if (ordinal != DocIdIterator.NO_MORE_DOCS) {
+                        next = ordinal;
+                    } else if (values.hasNext()) {
+                        OrdinalSet batch;
+                        Postings postings = values.next();
+                        synchronized (postings) {
+                            if (!postings.ordinals.intersects(remaining)) {
+                                continue;
+                            }
+                            batch = postings.ordinals.copy();
+                        }
+                        batch.and(remaining);
+                        remaining.andNot(batch);
+                        current = batch.iterator();
+                    } else if (!unindexed) {
+                        unindexed = true;
+                        current = remaining.iterator();
+                    } else {
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public int nextInt() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                int ordinal = next;
+                next = -1;
+                return ordinal;
+            }
+        };
+    }
+
+    /** Returns the ordinal of an indexed id, or -1 if the id was never indexed. */
+    public int ordinalOf(String id) {
+        Integer ordinal = id == null ? null : ordinals.get(id);
+        return ordinal == null ? -1 : ordinal;
+    }
+
+    /** Returns the id an ordinal was assigned to. */
+    public String idOf(int ordinal) {
+        String[] ids = idsByOrdinal;
+        return ordinal >= 0 && ordinal < ids.length ? ids[ordinal] : null;
+    }
+
+    /** Resolves a set of ordinals back to entity ids. */
+    public Set<String> ids(OrdinalSet ordinals) {
+        Set<String> result = new HashSet<>(Math.max(16, ordinals.cardinality() * 4 / 3 + 1));
+        ordinals.forEach(ordinal -> result.add(idOf(ordinal)));
         return result;
     }
 
-    private void addValue(String path, Object value, String id) {
+    private int assignOrdinal(String id) {
+        Integer existing = ordinals.get(id);
+        if (existing != null) {
+            return existing;
+        }
+        synchronized (ordinals) {
+            existing = ordinals.get(id);
+            if (existing != null) {
+                return existing;
+            }
+            int ordinal = nextOrdinal++;
+            String[] ids = idsByOrdinal;
+            if (ordinal == ids.length) {
+                ids = Arrays.copyOf(ids, ids.length * 2);
+            }
+            ids[ordinal] = id;
+            idsByOrdinal = ids;
+            ordinals.put(id, ordinal);
+            return ordinal;
+        }
+    }
+
+    private void addOrdinal(OrdinalSet result, String id) {
+        Integer ordinal = ordinals.get(id);
+        if (ordinal != null) {
+            result.add(ordinal);
+        }
+    }
+
+    /** Ordinals whose value contains every trigram of {@code needle}, smallest posting list first. */
+    private static OrdinalSet trigramCandidates(Map<Long, Postings> grams, String needle) {
+        List<Postings> lists = new ArrayList<>();
+        for (long gram : trigramsOf(needle)) {
+            Postings postings = grams.get(gram);
+            if (postings == null) {
+                return new OrdinalSet();
+            }
+            lists.add(postings);
+        }
+        lists.sort(Comparator.comparingInt(p -> {
+            synchronized (p) {
+                return p.ordinals.cardinality();
+            }
+        }));
+        OrdinalSet result = null;
+        for (Postings p : lists) {
+            synchronized (p) {
+                result = result == null ? p.ordinals.copy() : result.and(p.ordinals);
+            }
+            if (result.isEmpty()) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    /** The distinct trigrams of {@code value}, each packed into a long. */
+    private static Set<Long> trigramsOf(String value) {
+        Set<Long> result = new HashSet<>();
+        for (int i = 0; i + 3 <= value.length(); i++) {
+            result.add(((long) value.charAt(i) << 32) | ((long) value.charAt(i + 1) << 16) | value.charAt(i + 2));
+        }
+        return result;
+    }
+
+    private static void addTrigrams(Map<Long, Postings> grams, String value, int ordinal) {
+        for (long gram : trigramsOf(value)) {
+            addPosting(grams, gram, ordinal);
+        }
+    }
+
+    private static void removeTrigrams(Map<Long, Postings> grams, String value, int ordinal) {
+        for (long gram : trigramsOf(value)) {
+            removePosting(grams, gram, ordinal);
+        }
+    }
+
+    /** Adds {@code ordinal} to the posting list of {@code key}, creating it if needed. */
+    private static <K> void addPosting(Map<K, Postings> map, K key, int ordinal) {
+        while (true) {
+            Postings postings = map.computeIfAbsent(key, k -> new Postings());
+            synchronized (postings) {
+                if (!postings.retired) {
+                    postings.ordinals.add(ordinal);
+                    return;
+                }
+            }
+        }
+    }
+
+    /** Removes {@code ordinal} from the posting list of {@code key}, retiring the list once empty. */
+    private static <K> void removePosting(Map<K, Postings> map, K key, int ordinal) {
+        Postings postings = map.get(key);
+        if (postings != null) {
+            synchronized (postings) {
+                postings.ordinals.remove(ordinal);
+                if (postings.ordinals.isEmpty() && !postings.retired) {
+                    postings.retired = true;
+                    map.remove(key, postings);
+                }
+            }
+        }
+    }
+
+    private OrdinalSet collect(Collection<Postings> postings) {
+        OrdinalSet result = new OrdinalSet();
+        for (Postings p : postings) {
+            synchronized (p) {
+                result.or(p.ordinals);
+            }
+        }
+        return result;
+    }
+
+    private void addValue(String path, Object value, String id, int ordinal) {
         if (value == null || path == null) {
             return;
         }
         Comparable<?> comparable = normalizeComparable(value);
         if (comparable != null) {
-            NavigableMap<Comparable, Set<String>> map = indexes.computeIfAbsent(path, k -> new TreeMap<>());
-            Set<String> ids = map.computeIfAbsent(comparable, v -> new HashSet<>());
-            ids.add(id);
+            NavigableMap<Comparable, Postings> map = indexes.computeIfAbsent(path, k -> new ConcurrentSkipListMap<>());
+            while (true) {
+                Postings postings = map.computeIfAbsent(comparable, v -> new Postings());
+                synchronized (postings) {
+                    if (!postings.retired) {
+                        if (postings.ordinals.add(ordinal)) {
+                            FieldCounters counters = statistics.computeIfAbsent(path, k -> new FieldCounters());
+                            counters.entries.increment();
+                            if (postings.ordinals.cardinality() == 1) {
+                                counters.distinct.increment();
+                            }
+                        }
+                        break;
+                    }
+                }
+            }
         }
         if (value instanceof String str) {
-            textValues.computeIfAbsent(path, k -> new HashMap<>()).put(id, str.toLowerCase(Locale.ROOT));
+            String lower = str.toLowerCase(Locale.ROOT);
+            textValues.computeIfAbsent(path, k -> new ConcurrentHashMap<>()).put(id, lower);
+            addPosting(lowerValues.computeIfAbsent(path, k -> new ConcurrentSkipListMap<>()), lower, ordinal);
+            fullText.computeIfAbsent(path, k -> new FullTextIndex()).add(ordinal, lower);
+            Map<Long, Postings> grams = trigrams.get(path);
+            if (grams != null) {
+                addTrigrams(grams, lower, ordinal);
+            }
         }
     }
 
-    private void removeValue(String path, Object value, String id) {
+    private void removeValue(String path, Object value, String id, int ordinal) {
         if (value == null || path == null) {
             return;
         }
         Comparable<?> comparable = normalizeComparable(value);
         if (comparable != null) {
-            NavigableMap<Comparable, Set<String>> map = indexes.get(path);
-            if (map != null) {
-                Set<String> ids = map.get(comparable);
-                if (ids != null) {
-                    ids.remove(id);
-                    if (ids.isEmpty()) {
-                        map.remove(comparable);
+            NavigableMap<Comparable, Postings> map = indexes.get(path);
+            Postings postings = map == null ? null : map.get(comparable);
+            if (postings != null) {
+                synchronized (postings) {
+                    if (postings.ordinals.remove(ordinal)) {
+                        statistics.get(path).entries.decrement();
+                    }
+                    if (postings.ordinals.isEmpty() && !postings.retired) {
+                        postings.retired = true;
+                        map.remove(comparable, postings);
+                        statistics.get(path).distinct.decrement();
                     }
-                }
-                if (map.isEmpty()) {
-                    indexes.remove(path);
                 }
             }
         }
         if (value instanceof String) {
             Map<String, String> values = textValues.get(path);
-            if (values != null) {
-                values.remove(id);
-                if (values.isEmpty()) {
-                    textValues.remove(path);
-                }
+            String lower = values == null ? null : values.remove(id);
+            NavigableMap<String, Postings> sorted = lowerValues.get(path);
+            if (sorted != null && lower != null) {
+                removePosting(sorted, lower, ordinal);
+            }
+            FullTextIndex index = fullText.get(path);
+            if (index != null && lower != null) {
+                index.remove(ordinal, lower);
+            }
+            Map<Long, Postings> grams = trigrams.get(path);
+            if (grams != null && lower != null) {
+                removeTrigrams(grams, lower, ordinal);
             }
         }
     }
@@ -229,35 +865,27 @@ public class IndexManager {
         }
     }
 
-    private String convertLikePattern(String pattern) {
-        StringBuilder sb = new StringBuilder();
-        sb.append('^');
-        for (int i = 0; i < pattern.length(); i++) {
-            char c = pattern.charAt(i);
-            switch (c) {
-                case '%':
-                    sb.append(".*");
-                    break;
-                case '_':
-                    sb.append('.');
-                    break;
-                case '\\':
-                    if (i + 1 < pattern.length()) {
-                        sb.append(Pattern.quote(String.valueOf(pattern.charAt(++i))));
-                    }
-                    break;
-                default:
-                    if (".[]{}()*+-?^$|".indexOf(c) >= 0) {
-                        sb.append('\\');
-                    }
-                    sb.append(c);
-            }
-        }
-        sb.append('$');
-        return sb.toString();
+    /**
+     * Orders entities the way {@link #ordered} walks them: by the indexed
+     * form of their {@code field} value, values of different types by type
+     * name, and entities without a comparable value last.
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    public static Comparator<Entity> valueOrder(String field, boolean descending) {
+        Comparator<Comparable> values = (a, b) -> a.getClass() == b.getClass()
+                ? a.compareTo(b)
+                : a.getClass().getName().compareTo(b.getClass().getName());
+        return Comparator.comparing(entity -> {
+            Object value = entity.getPath(field);
+            return value == null ? null : (Comparable) normalizeComparable(value);
+        }, Comparator.nullsLast(descending ? values.reversed() : values));
     }
 
-    private Comparable<?> normalizeComparable(Object value) {
+    /**
+     * The form values are indexed and looked up in: every number becomes a
+     * {@code Double}, other comparables are kept, anything else is not indexed.
+     */
+    public static Comparable<?> normalizeComparable(Object value) {
         if (value instanceof Number number) {
             return number.doubleValue();
         }
@@ -0,0 +1,146 @@
+package com.crux.index;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * A compiled, case-insensitive SQL {@code LIKE} pattern.
+ * <p>
+ * {@code %} matches any run of characters, {@code _} any single character
+ * and a backslash escapes the next character. Patterns are parsed once and
+ * cached by {@link #compile}, so evaluating the same filter against many
+ * entities does not recompile it. The common shapes ({@code abc},
+ * {@code abc%}, {@code %abc}, {@code %abc%}) are matched with plain string
+ * operations; only the others fall back to a regular expression.
+ * <p>
+ * The parsed form also tells {@link IndexManager} how to search: the
+ * literal {@link #prefix} bounds a range of the sorted values and the
+ * {@link #literals} every match must contain can be looked up in a trigram
+ * index.
+ */
+public final class LikePattern {
+    private static final int CACHE_LIMIT = 1024;
+    private static final Map<String, LikePattern> CACHE = new ConcurrentHashMap<>();
+
+    private enum Shape { EXACT, PREFIX, SUFFIX, INFIX, GENERAL }
+
+    private final Shape shape;
+    private final String prefix;
+    private final List<String> literals;
+    private final Pattern regex;
+
+    private LikePattern(String pattern) {
+        List<String> parts = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+        StringBuilder regexSource = new StringBuilder("^");
+        String prefix = null;
+        boolean underscore = false;
+        boolean trailing = false;
+        int percents = 0;
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '%' || c == '_') {
+                if (prefix == null) {
+                    prefix = literal.toString();
+                }
+                if (!literal.isEmpty()) {
+                    parts.add(literal.toString());
+                    literal.setLength(0);
+                }
+                trailing = c == '%';
+                if (c == '%') {
+                    percents++;
+                    regexSource.append(".*");
+                } else {
+                    underscore = true;
+                    regexSource.append('.');
+                }
+                continue;
+            }
+            if (c == '\\') {
+                if (i + 1 == pattern.length()) {
+                    break;
+                }
+                c = pattern.charAt(++i);
+            }
+            trailing = false;
+            literal.append(c);
+            regexSource.append(Pattern.quote(String.valueOf(c)));
+        }
+        if (!literal.isEmpty()) {
+            parts.add(literal.toString());
+        }
+        this.prefix = prefix == null ? literal.toString() : prefix;
+        this.literals = List.copyOf(parts);
+        this.shape = shapeOf(parts, percents, underscore, pattern.startsWith("%"), trailing, prefix == null);
+        this.regex = shape == Shape.GENERAL ? Pattern.compile(regexSource.append('$').toString(), Pattern.DOTALL) : null;
+    }
+
+    private static Shape shapeOf(List<String> parts, int percents, boolean underscore,
+                                 boolean leading, boolean trailing, boolean noWildcards) {
+        if (noWildcards) {
+            return Shape.EXACT;
+        }
+        if (underscore || parts.size() > 1) {
+            return Shape.GENERAL;
+        }
+        if (parts.isEmpty() || leading && trailing) {
+            return Shape.INFIX;
+        }
+        if (percents == 1) {
+            return leading ? Shape.SUFFIX : Shape.PREFIX;
+        }
+        return Shape.GENERAL;
+    }
+
+    /** Returns the compiled form of {@code pattern}, compiling it on first use. */
+    public static LikePattern compile(String pattern) {
+        if (pattern == null) {
+            throw new IllegalArgumentException("pattern must be non-null");
+        }
+        String lower = pattern.toLowerCase(Locale.ROOT);
+        LikePattern cached = CACHE.get(lower);
+        if (cached != null) {
+            return cached;
+        }
+        if (CACHE.size() >= CACHE_LIMIT) {
+            CACHE.clear();
+        }
+        LikePattern compiled = new LikePattern(lower);
+        CACHE.put(lower, compiled);
+        return compiled;
+    }
+
+    /** Tests a lower-cased value against the pattern. */
+    public boolean matches(String lowerText) {
+        if (lowerText == null) {
+            return false;
+        }
+        return switch (shape) {
+            case EXACT -> lowerText.equals(prefix);
+            case PREFIX -> lowerText.startsWith(prefix);
+            case SUFFIX -> lowerText.endsWith(literals.get(0));
+            case INFIX -> literals.isEmpty() || lowerText.contains(literals.get(0));
+            case GENERAL -> regex.matcher(lowerText).matches();
+        };
+    }
+
+    /** Whether the pattern has no wildcards and matches one value only. */
+    public boolean isExact() {
+        return shape == Shape.EXACT;
+    }
+
+    /** The literal text every match starts with; empty when the pattern starts with a wildcard. */
+    public String prefix() {
+        return prefix;
+    }
+
+    /** The literal runs between wildcards, each of which occurs in every match. */
+    public List<String> literals() {
+        return literals;
+    }
+}
@@ -0,0 +1,582 @@
+package com.crux.index;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Compressed set of non-negative int ordinals in the style of a Roaring
+ * bitmap.
+ * <p>
+ * Ordinals are grouped by their upper 16 bits. Each group is stored as a
+ * sorted {@code char[]} of the lower 16 bits while it holds at most
+ * {@value #ARRAY_MAX} values and as a 65536-bit bitmap otherwise, so sparse
+ * and dense posting lists both stay small and set operations work on whole
+ * machine words where it pays off.
+ * <p>
+ * Instances are not thread-safe; {@link IndexManager} guards the ones it
+ * keeps and hands out copies.
+ */
+public final class OrdinalSet {
+    private static final int ARRAY_MAX = 4096;
+    private static final int WORDS = 1 << 10;
+
+    private char[] keys;
+    private Container[] containers;
+    private int size;
+
+    public OrdinalSet() {
+        this.keys = new char[4];
+        this.containers = new Container[4];
+    }
+
+    private OrdinalSet(char[] keys, Container[] containers, int size) {
+        this.keys = keys;
+        this.containers = containers;
+        this.size = size;
+    }
+
+    public static OrdinalSet of(int... ordinals) {
+        OrdinalSet set = new OrdinalSet();
+        for (int ordinal : ordinals) {
+            set.add(ordinal);
+        }
+        return set;
+    }
+
+    public boolean add(int ordinal) {
+        checkOrdinal(ordinal);
+        char high = (char) (ordinal >>> 16);
+        int i = Arrays.binarySearch(keys, 0, size, high);
+        if (i < 0) {
+            i = -i - 1;
+            insertContainer(i, high, new Container());
+        }
+        return containers[i].add((char) ordinal);
+    }
+
+    public boolean remove(int ordinal) {
+        checkOrdinal(ordinal);
+        int i = Arrays.binarySearch(keys, 0, size, (char) (ordinal >>> 16));
+        if (i < 0 || !containers[i].remove((char) ordinal)) {
+            return false;
+        }
+        if (containers[i].cardinality == 0) {
+            removeContainer(i);
+        }
+        return true;
+    }
+
+    public boolean contains(int ordinal) {
+        if (ordinal < 0) {
+            return false;
+        }
+        int i = Arrays.binarySearch(keys, 0, size, (char) (ordinal >>> 16));
+        return i >= 0 && containers[i].contains((char) ordinal);
+    }
+
+    public int cardinality() {
+        int total = 0;
+        for (int i = 0; i < size; i++) {
+            total += containers[i].cardinality;
+        }
+        return total;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public OrdinalSet copy() {
+        Container[] copied = new Container[Math.max(4, size)];
+        for (int i = 0; i < size; i++) {
+            copied[i] = containers[i].copy();
+        }
+        return new OrdinalSet(Arrays.copyOf(keys, copied.length), copied, size);
+    }
+
+    /** Keeps only the ordinals also contained in {@code other}; returns this set. */
+    public OrdinalSet and(OrdinalSet other) {
+        int n = 0;
+        int j = 0;
+        for (int i = 0; i < size; i++) {
+            while (j < other.size && other.keys[j] < keys[i]) {
+                j++;
+            }
+            if (j < other.size && other.keys[j] == keys[i]) {
+                Container c = containers[i].and(other.containers[j]);
+                if (c != null) {
+                    keys[n] = keys[i];
+                    containers[n++] = c;
+                }
+            }
+        }
+        Arrays.fill(containers, n, size, null);
+        size = n;
+        return this;
+    }
+
+    /** Whether this set and {@code other} share at least one ordinal. */
+    public boolean intersects(OrdinalSet other) {
+        int j = 0;
+        for (int i = 0; i < size; i++) {
+            while (j < other.size && other.keys[j] < keys[i]) {
+                j++;
+            }
+            if (j < other.size && other.keys[j] == keys[i] && containers[i].intersects(other.containers[j])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Adds every ordinal of {@code other}; returns this set. */
+    public OrdinalSet or(OrdinalSet other) {
+        if (other.size == 0) {
+            return this;
+        }
+        int capacity = Math.max(4, size + other.size);
+        char[] mergedKeys = new char[capacity];
+        Container[] merged = new Container[capacity];
+        int n = 0;
+        int i = 0;
+        int j = 0;
+        while (i < size || j < other.size) {
+            if (j == other.size || (i < size && keys[i] < other.keys[j])) {
+                mergedKeys[n] = keys[i];
+                merged[n++] = containers[i++];
+            } else if (i == size || other.keys[j] < keys[i]) {
+                mergedKeys[n] = other.keys[j];
+                merged[n++] = other.containers[j++].copy();
+            } else {
+                mergedKeys[n] = keys[i];
+                merged[n++] = containers[i++].or(other.containers[j++]);
+            }
+        }
+        keys = mergedKeys;
+        containers = merged;
+        size = n;
+        return this;
+    }
+
+    /** Removes every ordinal contained in {@code other}; returns this set. */
+    public OrdinalSet andNot(OrdinalSet other) {
+        int n = 0;
+        int j = 0;
+        for (int i = 0; i < size; i++) {
+            while (j < other.size && other.keys[j] < keys[i]) {
+                j++;
+            }
+            Container c = containers[i];
+            if (j < other.size && other.keys[j] == keys[i]) {
+                c = c.andNot(other.containers[j]);
+            }
+            if (c != null) {
+                keys[n] = keys[i];
+                containers[n++] = c;
+            }
+        }
+        Arrays.fill(containers, n, size, null);
+        size = n;
+        return this;
+    }
+
+    /** Visits every ordinal in ascending order. */
+    public void forEach(IntConsumer action) {
+        for (int i = 0; i < size; i++) {
+            containers[i].forEach(keys[i] << 16, action);
+        }
+    }
+
+    /**
+     * Returns a cursor over the ordinals in ascending order. The set must not
+     * be modified while the cursor is in use.
+     */
+    public DocIdIterator iterator() {
+        return new DocIdIterator() {
+            private int index;
+            private int position = -1;
+            private int doc = -1;
+
+            @Override
+            public int docId() {
+                return doc;
+            }
+
+            @Override
+            public int nextDoc() {
+                if (doc == NO_MORE_DOCS) {
+                    return doc;
+                }
+                return doc = seek(doc + 1);
+            }
+
+            @Override
+            public int advance(int target) {
+                return doc = seek(target);
+            }
+
+            @Override
+            public long cost() {
+                return cardinality();
+            }
+
+            private int seek(int target) {
+                char high = (char) (target >>> 16);
+                while (index < size && keys[index] < high) {
+                    index++;
+                    position = -1;
+                }
+                while (index < size) {
+                    Container c = containers[index];
+                    int low = keys[index] == high ? target & 0xFFFF : 0;
+                    int found = c.next(low, position);
+                    if (found >= 0) {
+                        position = found;
+                        return keys[index] << 16 | c.valueAt(found);
+                    }
+                    index++;
+                    position = -1;
+                }
+                return NO_MORE_DOCS;
+            }
+        };
+    }
+
+    public int[] toArray() {
+        int[] out = new int[cardinality()];
+        int[] n = {0};
+        forEach(ordinal -> out[n[0]++] = ordinal);
+        return out;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof OrdinalSet other && Arrays.equals(toArray(), other.toArray());
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(toArray());
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(toArray());
+    }
+
+    private static void checkOrdinal(int ordinal) {
+        if (ordinal < 0) {
+            throw new IllegalArgumentException("ordinal must be non-negative: " + ordinal);
+        }
+    }
+
+    private void insertContainer(int index, char key, Container container) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            containers = Arrays.copyOf(containers, size * 2);
+        }
+        System.arraycopy(keys, index, keys, index + 1, size - index);
+        System.arraycopy(containers, index, containers, index + 1, size - index);
+        keys[index] = key;
+        containers[index] = container;
+        size++;
+    }
+
+    private void removeContainer(int index) {
+        System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+        System.arraycopy(containers, index + 1, containers, index, size - index - 1);
+        containers[--size] = null;
+    }
+
+    /**
+     * The lower 16 bits of one group: a sorted array while small, a bitmap
+     * once it would exceed {@link #ARRAY_MAX} entries. Binary operations
+     * return a new container, or {@code null} when the result is empty.
+     */
+    private static final class Container {
+        private char[] array = new char[4];
+        private long[] bits;
+        private int cardinality;
+
+        Container copy() {
+            Container c = new Container();
+            c.array = array == null ? null : Arrays.copyOf(array, Math.max(4, cardinality));
+            c.bits = bits == null ? null : bits.clone();
+            c.cardinality = cardinality;
+            return c;
+        }
+
+        boolean contains(char low) {
+            if (bits != null) {
+                return (bits[low >>> 6] & (1L << low)) != 0;
+            }
+            return Arrays.binarySearch(array, 0, cardinality, low) >= 0;
+        }
+
+        boolean add(char low) {
+            if (bits == null) {
+                int i = Arrays.binarySearch(array, 0, cardinality, low);
+                if (i >= 0) {
+                    return false;
+                }
+                if (cardinality < ARRAY_MAX) {
+                    i = -i - 1;
+                    if (cardinality == array.length) {
+                        array = Arrays.copyOf(array, Math.min(ARRAY_MAX, cardinality * 2));
+                    }
+                    System.arraycopy(array, i, array, i + 1, cardinality - i);
+                    array[i] = low;
+                    cardinality++;
+                    return true;
+                }
+                toBitmap();
+            }
+            long mask = 1L << low;
+            if ((bits[low >>> 6] & mask) != 0) {
+                return false;
+            }
+            bits[low >>> 6] |= mask;
+            cardinality++;
+            return true;
+        }
+
+        boolean remove(char low) {
+            if (bits == null) {
+                int i = Arrays.binarySearch(array, 0, cardinality, low);
+                if (i < 0) {
+                    return false;
+                }
+                System.arraycopy(array, i + 1, array, i, cardinality - i - 1);
+                cardinality--;
+                return true;
+            }
+            long mask = 1L << low;
+            if ((bits[low >>> 6] & mask) == 0) {
+                return false;
+            }
+            bits[low >>> 6] &= ~mask;
+            if (--cardinality <= ARRAY_MAX) {
+                toArray();
+            }
+            return true;
+        }
+
+        Container and(Container other) {
+            if (bits != null && other.bits != null) {
+                long[] words = new long[WORDS];
+                for (int w = 0; w < WORDS; w++) {
+                    words[w] = bits[w] & other.bits[w];
+                }
+                return fromBits(words);
+            }
+            Container small = bits == null ? this : other;
+            Container large = small == this ? other : this;
+            char[] out = new char[small.cardinality];
+            int n = 0;
+            if (large.bits != null) {
+                for (int i = 0; i < small.cardinality; i++) {
+                    if (large.contains(small.array[i])) {
+                        out[n++] = small.array[i];
+                    }
+                }
+            } else {
+                int i = 0;
+                int j = 0;
+                while (i < small.cardinality && j < large.cardinality) {
+                    char a = small.array[i];
+                    char b = large.array[j];
+                    if (a == b) {
+                        out[n++] = a;
+                        i++;
+                        j++;
+                    } else if (a < b) {
+                        i++;
+                    } else {
+                        j++;
+                    }
+                }
+            }
+            return fromArray(out, n);
+        }
+
+        boolean intersects(Container other) {
+            if (bits != null && other.bits != null) {
+                for (int w = 0; w < WORDS; w++) {
+                    if ((bits[w] & other.bits[w]) != 0) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            Container small = bits == null ? this : other;
+            Container large = small == this ? other : this;
+            for (int i = 0; i < small.cardinality; i++) {
+                if (large.contains(small.array[i])) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        Container or(Container other) {
+            if (bits == null && other.bits == null && cardinality + other.cardinality <= ARRAY_MAX) {
+                char[] out = new char[cardinality + other.cardinality];
+                int n = 0;
+                int i = 0;
+                int j = 0;
+                while (i < cardinality || j < other.cardinality) {
+                    if (j == other.cardinality || (i < cardinality && array[i] < other.array[j])) {
+                        out[n++] = array[i++];
+                    } else if (i == cardinality || other.array[j] < array[i]) {
+                        out[n++] = other.array[j++];
+                    } else {
+                        out[n++] = array[i++];
+                        j++;
+                    }
+                }
+                return fromArray(out, n);
+            }
+            long[] words = bits != null ? bits.clone() : new long[WORDS];
+            if (bits == null) {
+                setAll(words, this);
+            }
+            if (other.bits != null) {
+                for (int w = 0; w < WORDS; w++) {
+                    words[w] |= other.bits[w];
+                }
+            } else {
+                setAll(words, other);
+            }
+            return fromBits(words);
+        }
+
+        Container andNot(Container other) {
+            if (bits == null) {
+                char[] out = new char[cardinality];
+                int n = 0;
+                for (int i = 0; i < cardinality; i++) {
+                    if (!other.contains(array[i])) {
+                        out[n++] = array[i];
+                    }
+                }
+                return fromArray(out, n);
+            }
+            long[] words = bits.clone();
+            if (other.bits != null) {
+                for (int w = 0; w < WORDS; w++) {
+                    words[w] &= ~other.bits[w];
+                }
+            } else {
+                for (int i = 0; i < other.cardinality; i++) {
+                    char low = other.array[i];
+                    words[low >>> 6] &= ~(1L << low);
+                }
+            }
+            return fromBits(words);
+        }
+
+        /**
+         * Returns the position of the first value at or after {@code low},
+         * searching past {@code from}, or -1. Positions are array indexes for
+         * array containers and bit numbers for bitmaps.
+         */
+        int next(int low, int from) {
+            if (bits == null) {
+                int start = Math.max(0, from);
+                int i = Arrays.binarySearch(array, start, cardinality, (char) low);
+                i = i >= 0 ? i : -i - 1;
+                return i < cardinality ? i : -1;
+            }
+            int bit = Math.max(low, from + 1);
+            if (bit >= WORDS << 6) {
+                return -1;
+            }
+            int w = bit >>> 6;
+            long word = bits[w] & (-1L << bit);
+            while (true) {
+                if (word != 0) {
+                    return (w << 6) + Long.numberOfTrailingZeros(word);
+                }
+                if (++w == WORDS) {
+                    return -1;
+                }
+                word = bits[w];
+            }
+        }
+
+        char valueAt(int position) {
+            return bits == null ? array[position] : (char) position;
+        }
+
+        void forEach(int base, IntConsumer action) {
+            if (bits == null) {
+                for (int i = 0; i < cardinality; i++) {
+                    action.accept(base | array[i]);
+                }
+                return;
+            }
+            for (int w = 0; w < WORDS; w++) {
+                long word = bits[w];
+                while (word != 0) {
+                    action.accept(base | (w << 6) + Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+        }
+
+        private static void setAll(long[] words, Container source) {
+            for (int i = 0; i < source.cardinality; i++) {
+                char low = source.array[i];
+                words[low >>> 6] |= 1L << low;
+            }
+        }
+
+        private static Container fromArray(char[] values, int n) {
+            if (n == 0) {
+                return null;
+            }
+            Container c = new Container();
+            c.array = values;
+            c.cardinality = n;
+            return c;
+        }
+
+        private static Container fromBits(long[] words) {
+            int n = 0;
+            for (long word : words) {
+                n += Long.bitCount(word);
+            }
+            if (n == 0) {
+                return null;
+            }
+            Container c = new Container();
+            c.array = null;
+            c.bits = words;
+            c.cardinality = n;
+            if (n <= ARRAY_MAX) {
+                c.toArray();
+            }
+            return c;
+        }
+
+        private void toBitmap() {
+            bits = new long[WORDS];
+            setAll(bits, this);
+            array = null;
+        }
+
+        private void toArray() {
+            char[] out = new char[Math.max(4, cardinality)];
+            int n = 0;
+            for (int w = 0; w < WORDS; w++) {
+                long word = bits[w];
+                while (word != 0) {
+                    out[n++] = (char) ((w << 6) + Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+            array = out;
+            bits = null;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.crux.index;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The {@code k} best (ordinal, score) pairs offered so far.
+ * <p>
+ * A min-heap of size {@code k} over primitive arrays: the worst kept pair
+ * sits on top and is only replaced by a better one, so each offer is
+ * O(log k) and nothing beyond the k best is ever retained. Equal scores
+ * prefer the lower ordinal, which keeps results deterministic. Instances
+ * are not thread-safe; parallel searches fill one per task and {@link #merge}
+ * them.
+ */
+final class TopK {
+    private final int k;
+    private final int[] ordinals;
+    private final double[] scores;
+    private int size;
+
+    TopK(int k) {
+        this.k = k;
+        this.ordinals = new int[k];
+        this.scores = new double[k];
+    }
+
+    void offer(int ordinal, double score) {
+        if (k == 0) {
+            return;
+        }
+        if (size < k) {
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (!worse(score, ordinal, scores[parent], ordinals[parent])) {
+                    break;
+                }
+                move(parent, i);
+                i = parent;
+            }
+            ordinals[i] = ordinal;
+            scores[i] = score;
+        } else if (worse(scores[0], ordinals[0], score, ordinal)) {
+            siftDown(ordinal, score);
+        }
+    }
+
+    /** Offers every pair kept by {@code other}. */
+    TopK merge(TopK other) {
+        for (int i = 0; i < other.size; i++) {
+            offer(other.ordinals[i], other.scores[i]);
+        }
+        return this;
+    }
+
+    /** The kept pairs, best first. */
+    List<IndexManager.ScoredOrdinal> toList() {
+        List<IndexManager.ScoredOrdinal> result = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            result.add(new IndexManager.ScoredOrdinal(ordinals[i], scores[i]));
+        }
+        result.sort(Comparator.comparingDouble(IndexManager.ScoredOrdinal::score).reversed()
+                .thenComparingInt(IndexManager.ScoredOrdinal::ordinal));
+        return result;
+    }
+
+    /** Replaces the top with the given pair and restores the heap. */
+    private void siftDown(int ordinal, double score) {
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && worse(scores[child + 1], ordinals[child + 1], scores[child], ordinals[child])) {
+                child++;
+            }
+            if (!worse(scores[child], ordinals[child], score, ordinal)) {
+                break;
+            }
+            move(child, i);
+            i = child;
+        }
+        ordinals[i] = ordinal;
+        scores[i] = score;
+    }
+
+    private void move(int from, int to) {
+        ordinals[to] = ordinals[from];
+        scores[to] = scores[from];
+    }
+
+    private static boolean worse(double score, int ordinal, double otherScore, int otherOrdinal) {
+        return score < otherScore || score == otherScore && ordinal > otherOrdinal;
+    }
+}
@@ -0,0 +1,314 @@
+package com.crux.index;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+
+/**
+ * Entity vectors packed into one {@code float[]} arena, keyed by ordinal.
+ * <p>
+ * All vectors share the dimension of the first one stored; each occupies a
+ * fixed-size slot of the arena and has its norm computed once when it is
+ * written, so a cosine similarity is one {@link VectorKernels#dot} over two
+ * contiguous ranges and a division. Slots freed by removals are reused.
+ * <p>
+ * {@link #topK} scores every vector once and keeps the best in a bounded
+ * {@link TopK} heap. Large columns are split into chunks searched on the
+ * common {@link ForkJoinPool}, each with its own heap, and the heaps are
+ * merged at the end. When the candidates are restricted to a set that is
+ * small compared with the column, only their slots are visited.
+ * <p>
+ * A quantized column keeps int8 codes in a {@code byte[]} arena instead,
+ * each vector scaled by its largest absolute component, plus the norm of
+ * the original vector. Scores against the codes are approximate and meant
+ * to be re-ranked at full precision.
+ * <p>
+ * Reads share a read lock; writes take the write lock.
+ */
+public final class VectorColumn {
+    private static final Logger LOGGER = Logger.getLogger(VectorColumn.class.getName());
+    private static final int CHUNK_SLOTS = 2048;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final boolean quantized;
+    private int dimension = -1;
+    private float[] arena = new float[0];
+    private byte[] codes = new byte[0];
+    private float[] scales = new float[0];
+    private float[] norms = new float[0];
+    private int[] ordinalOfSlot = new int[0];
+    private int[] slotOfOrdinal = new int[0];
+    private int[] freeSlots = new int[0];
+    private int freeCount;
+    private int slots;
+
+    /** Receives the slots visited by {@link #forEach}. */
+    @FunctionalInterface
+    public interface SlotConsumer {
+        void accept(int ordinal, float[] arena, int offset, float norm);
+    }
+
+    public VectorColumn() {
+        this(false);
+    }
+
+    public VectorColumn(boolean quantized) {
+        this.quantized = quantized;
+    }
+
+    public boolean isQuantized() {
+        return quantized;
+    }
+
+    /** Stores {@code vector} for {@code ordinal}; returns false if its dimension does not match. */
+    public boolean put(int ordinal, float[] vector) {
+        lock.writeLock().lock();
+        try {
+            if (dimension < 0) {
+                dimension = vector.length;
+            } else if (vector.length != dimension) {
+                LOGGER.warning("Ignoring vector of dimension " + vector.length + ", the column holds " + dimension);
+                removeLocked(ordinal);
+                return false;
+            }
+            int slot = slotOf(ordinal);
+            if (slot < 0) {
+                slot = allocate(ordinal);
+            }
+            int offset = slot * dimension;
+            norms[slot] = VectorKernels.norm(vector, 0, dimension);
+            if (quantized) {
+                encode(vector, slot, offset);
+            } else {
+                System.arraycopy(vector, 0, arena, offset, dimension);
+            }
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(int ordinal) {
+        lock.writeLock().lock();
+        try {
+            removeLocked(ordinal);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** Whether a vector is stored for {@code ordinal}. */
+    public boolean contains(int ordinal) {
+        lock.readLock().lock();
+        try {
+            return slotOf(ordinal) >= 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** A copy of the vector stored for {@code ordinal}, decoded if quantized, or null. */
+    public float[] get(int ordinal) {
+        lock.readLock().lock();
+        try {
+            int slot = slotOf(ordinal);
+            if (slot < 0) {
+                return null;
+            }
+            if (quantized) {
+                float[] vector = new float[dimension];
+                for (int i = 0; i < dimension; i++) {
+                    vector[i] = codes[slot * dimension + i] * scales[slot];
+                }
+                return vector;
+            }
+            return Arrays.copyOfRange(arena, slot * dimension, (slot + 1) * dimension);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** The common dimension of the stored vectors, or -1 before the first one. */
+    public int dimension() {
+        lock.readLock().lock();
+        try {
+            return dimension;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Number of stored vectors. */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return slots - freeCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Visits every stored vector in place, under the read lock; not available on a quantized column. */
+    public void forEach(SlotConsumer consumer) {
+        if (quantized) {
+            throw new IllegalStateException("a quantized column has no float arena");
+        }
+        lock.readLock().lock();
+        try {
+            for (int slot = 0; slot < slots; slot++) {
+                int ordinal = ordinalOfSlot[slot];
+                if (ordinal >= 0) {
+                    consumer.accept(ordinal, arena, slot * dimension, norms[slot]);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The {@code k} stored vectors with the highest cosine similarity to
+     * {@code query}, best first, considering only ordinals in
+     * {@code allowed} unless it is null. Scores of a quantized column are
+     * approximations of the cosine similarity.
+     */
+    public List<IndexManager.ScoredOrdinal> topK(float[] query, int k, OrdinalSet allowed) {
+        lock.readLock().lock();
+        try {
+            int limit = Math.min(k, slots - freeCount);
+            if (limit <= 0 || query.length != dimension) {
+                return List.of();
+            }
+            float queryNorm = VectorKernels.norm(query, 0, query.length);
+            if (allowed != null && allowed.cardinality() < slots / 8) {
+                TopK best = new TopK(limit);
+                allowed.forEach(ordinal -> {
+                    int slot = slotOf(ordinal);
+                    if (slot >= 0) {
+                        best.offer(ordinal, score(query, queryNorm, slot));
+                    }
+                });
+                return best.toList();
+            }
+            ScanTask scan = new ScanTask(query, queryNorm, limit, allowed, 0, slots);
+            return (slots <= CHUNK_SLOTS ? scan.compute() : ForkJoinPool.commonPool().invoke(scan)).toList();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private float score(float[] query, float queryNorm, int slot) {
+        if (!quantized) {
+            return VectorKernels.cosine(query, 0, queryNorm, arena, slot * dimension, norms[slot], dimension);
+        }
+        if (queryNorm == 0 || norms[slot] == 0) {
+            return -1;
+        }
+        return VectorKernels.dot(query, 0, codes, slot * dimension, dimension) * scales[slot] / (queryNorm * norms[slot]);
+    }
+
+    /** Writes the int8 codes of {@code vector}, scaled so its largest component maps to 127. */
+    private void encode(float[] vector, int slot, int offset) {
+        float max = 0;
+        for (float v : vector) {
+            max = Math.max(max, Math.abs(v));
+        }
+        float scale = max / 127;
+        scales[slot] = scale;
+        for (int i = 0; i < dimension; i++) {
+            codes[offset + i] = scale == 0 ? 0 : (byte) Math.round(vector[i] / scale);
+        }
+    }
+
+    /**
+     * Scores a range of slots, splitting it in halves down to
+     * {@value #CHUNK_SLOTS} slots. Runs while the caller of {@link #topK}
+     * holds the read lock, so the arrays do not change underneath it.
+     */
+    private final class ScanTask extends RecursiveTask<TopK> {
+        private static final long serialVersionUID = 1L;
+
+        private final float[] query;
+        private final float queryNorm;
+        private final int k;
+        private final OrdinalSet allowed;
+        private final int from;
+        private final int to;
+
+        ScanTask(float[] query, float queryNorm, int k, OrdinalSet allowed, int from, int to) {
+            this.query = query;
+            this.queryNorm = queryNorm;
+            this.k = k;
+            this.allowed = allowed;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected TopK compute() {
+            if (to - from > CHUNK_SLOTS) {
+                int middle = (from + to) >>> 1;
+                ScanTask left = new ScanTask(query, queryNorm, k, allowed, from, middle);
+                left.fork();
+                TopK right = new ScanTask(query, queryNorm, k, allowed, middle, to).compute();
+                return right.merge(left.join());
+            }
+            TopK best = new TopK(k);
+            for (int slot = from; slot < to; slot++) {
+                int ordinal = ordinalOfSlot[slot];
+                if (ordinal >= 0 && (allowed == null || allowed.contains(ordinal))) {
+                    best.offer(ordinal, score(query, queryNorm, slot));
+                }
+            }
+            return best;
+        }
+    }
+
+    private int slotOf(int ordinal) {
+        return ordinal >= 0 && ordinal < slotOfOrdinal.length ? slotOfOrdinal[ordinal] : -1;
+    }
+
+    private int allocate(int ordinal) {
+        if (ordinal >= slotOfOrdinal.length) {
+            int old = slotOfOrdinal.length;
+            slotOfOrdinal = Arrays.copyOf(slotOfOrdinal, Math.max(ordinal + 1, old * 2));
+            Arrays.fill(slotOfOrdinal, old, slotOfOrdinal.length, -1);
+        }
+        int slot;
+        if (freeCount > 0) {
+            slot = freeSlots[--freeCount];
+        } else {
+            if (slots == ordinalOfSlot.length) {
+                int capacity = Math.max(16, slots * 2);
+                ordinalOfSlot = Arrays.copyOf(ordinalOfSlot, capacity);
+                norms = Arrays.copyOf(norms, capacity);
+                if (quantized) {
+                    scales = Arrays.copyOf(scales, capacity);
+                    codes = Arrays.copyOf(codes, capacity * dimension);
+                } else {
+                    arena = Arrays.copyOf(arena, capacity * dimension);
+                }
+            }
+            slot = slots++;
+        }
+        ordinalOfSlot[slot] = ordinal;
+        slotOfOrdinal[ordinal] = slot;
+        return slot;
+    }
+
+    private void removeLocked(int ordinal) {
+        int slot = slotOf(ordinal);
+        if (slot < 0) {
+            return;
+        }
+        slotOfOrdinal[ordinal] = -1;
+        ordinalOfSlot[slot] = -1;
+        if (freeCount == freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots, Math.max(16, freeCount * 2));
+        }
+        freeSlots[freeCount++] = slot;
+    }
+}
@@ -0,0 +1,89 @@
+package com.crux.index;
+
+/**
+ * Similarity kernels over vectors packed into {@code float[]} arenas.
+ * <p>
+ * Each kernel takes an array and an offset per operand so it can run
+ * directly on a slot of {@link VectorColumn} or {@link HnswIndex} storage
+ * without copying. The loops are unrolled by four into independent
+ * accumulators: that breaks the dependency chain of a single running sum
+ * and leaves the JIT a straight-line body it can auto-vectorize, which is
+ * the portable alternative to the incubating {@code jdk.incubator.vector}
+ * module the build does not enable.
+ */
+public final class VectorKernels {
+
+    private VectorKernels() {
+    }
+
+    public static float dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for (int end = length & ~3; i < end; i += 4) {
+            s0 += a[aOffset + i] * b[bOffset + i];
+            s1 += a[aOffset + i + 1] * b[bOffset + i + 1];
+            s2 += a[aOffset + i + 2] * b[bOffset + i + 2];
+            s3 += a[aOffset + i + 3] * b[bOffset + i + 3];
+        }
+        for (; i < length; i++) {
+            s0 += a[aOffset + i] * b[bOffset + i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /** Dot product of floats with int8 codes, before the codes' scale is applied. */
+    public static float dot(float[] a, int aOffset, byte[] b, int bOffset, int length) {
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for (int end = length & ~3; i < end; i += 4) {
+            s0 += a[aOffset + i] * b[bOffset + i];
+            s1 += a[aOffset + i + 1] * b[bOffset + i + 1];
+            s2 += a[aOffset + i + 2] * b[bOffset + i + 2];
+            s3 += a[aOffset + i + 3] * b[bOffset + i + 3];
+        }
+        for (; i < length; i++) {
+            s0 += a[aOffset + i] * b[bOffset + i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    public static float dot(float[] a, float[] b) {
+        return dot(a, 0, b, 0, a.length);
+    }
+
+    /** Squared Euclidean distance. */
+    public static float l2Squared(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for (int end = length & ~3; i < end; i += 4) {
+            float d0 = a[aOffset + i] - b[bOffset + i];
+            float d1 = a[aOffset + i + 1] - b[bOffset + i + 1];
+            float d2 = a[aOffset + i + 2] - b[bOffset + i + 2];
+            float d3 = a[aOffset + i + 3] - b[bOffset + i + 3];
+            s0 += d0 * d0;
+            s1 += d1 * d1;
+            s2 += d2 * d2;
+            s3 += d3 * d3;
+        }
+        for (; i < length; i++) {
+            float d = a[aOffset + i] - b[bOffset + i];
+            s0 += d * d;
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    public static float norm(float[] a, int offset, int length) {
+        return (float) Math.sqrt(dot(a, offset, a, offset, length));
+    }
+
+    /**
+     * Cosine similarity given both norms, or -1 when either vector is zero,
+     * so that zero vectors rank below every real match.
+     */
+    public static float cosine(float[] a, int aOffset, float aNorm, float[] b, int bOffset, float bNorm, int length) {
+        if (aNorm == 0 || bNorm == 0) {
+            return -1;
+        }
+        return dot(a, aOffset, b, bOffset, length) / (aNorm * bNorm);
+    }
+}
@@ -0,0 +1,32 @@
+package com.crux.index;
+
+/**
+ * How entity vectors are held for similarity search.
+ *
+ * @param quantized whether to keep each vector as int8 codes with one scale
+ *                  instead of floats, a quarter of the memory; searches then
+ *                  scan the codes and skip the {@link HnswIndex}
+ * @param rerank    with quantization, how many candidates per requested
+ *                  result the scan over the codes keeps for re-scoring
+ *                  against the full-precision vectors
+ */
+public record VectorOptions(boolean quantized, int rerank) {
+
+    public VectorOptions {
+        if (rerank < 1) {
+            throw new IllegalArgumentException("rerank must be positive");
+        }
+    }
+
+    public static VectorOptions defaults() {
+        return new VectorOptions(false, 4);
+    }
+
+    public VectorOptions withQuantized(boolean quantized) {
+        return new VectorOptions(quantized, rerank);
+    }
+
+    public VectorOptions withRerank(int rerank) {
+        return new VectorOptions(quantized, rerank);
+    }
+}
@@ -0,0 +1,42 @@
+package com.crux.persistence;
+
+/**
+ * Controls when records appended to the write-ahead log are forced to
+ * stable storage.
+ *
+ * @param mode      the sync policy
+ * @param threshold milliseconds for {@link Mode#INTERVAL}, bytes for
+ *                  {@link Mode#BYTES}; ignored for {@link Mode#EVERY_OP}
+ */
+public record Durability(Mode mode, long threshold) {
+
+    public enum Mode {
+        /** Every append waits until its record has been fsynced. */
+        EVERY_OP,
+        /** Appends return immediately; the log is fsynced at most every {@code threshold} ms. */
+        INTERVAL,
+        /** Appends return immediately; the log is fsynced once {@code threshold} unsynced bytes accumulate. */
+        BYTES
+    }
+
+    public Durability {
+        if (mode == null) {
+            throw new IllegalArgumentException("mode must be non-null");
+        }
+        if (mode != Mode.EVERY_OP && threshold <= 0) {
+            throw new IllegalArgumentException("threshold must be positive for " + mode);
+        }
+    }
+
+    public static Durability everyOperation() {
+        return new Durability(Mode.EVERY_OP, 0);
+    }
+
+    public static Durability everyMillis(long millis) {
+        return new Durability(Mode.INTERVAL, millis);
+    }
+
+    public static Durability everyBytes(long bytes) {
+        return new Durability(Mode.BYTES, bytes);
+    }
+}
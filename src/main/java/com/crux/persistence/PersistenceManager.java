@@ -5,11 +5,12 @@ import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.reflect.TypeToken;
 
-import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.io.Reader;
 import java.io.Writer;
 import java.lang.reflect.Type;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -17,157 +18,324 @@ import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.FileTime;
 import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.logging.Logger;
 
 /**
  * Handles persistence of the in-memory store using snapshot and WAL files.
+ * <p>
+ * WAL appends may be issued from several threads. Records are handed to a
+ * long-lived {@link WalWriter} which batches them into group commits; the
+ * configured {@link Durability} decides whether an append waits for its
+ * fsync. Call {@link #close()} to drain the log before discarding the
+ * manager.
+ * <p>
+ * The log is split into fixed-size {@linkplain WalSegments segments}. At
+ * startup the live segments are decoded in parallel and applied in order;
+ * appends then always go to a fresh segment. A checkpoint first
+ * {@linkplain #beginCheckpoint() fences} the log by switching appends to a
+ * new segment, then writes the snapshot while appends continue, and finally
+ * retires only the segments older than the fence. Records carry full entity
+ * state, so replaying a segment that a snapshot already covers is harmless.
  */
-public class PersistenceManager {
+public class PersistenceManager implements AutoCloseable {
+    private static final Logger LOGGER = Logger.getLogger(PersistenceManager.class.getName());
     private static final Type SNAPSHOT_TYPE = new TypeToken<Map<String, Map<String, Object>>>() {}.getType();
 
     private final Path baseDirectory;
     private final Path snapshotPath;
-    private final Path walPath;
+    private final Path binarySnapshotPath;
+    private final Path legacyWalPath;
     private final Gson gson = new GsonBuilder().create();
+    private final PersistenceOptions options;
+    private final ReadWriteLock walLock = new ReentrantReadWriteLock();
+    private final WalCodec walCodec = new WalCodec(gson);
+    private final WalSegments segments;
+    private volatile WalWriter wal;
 
     public PersistenceManager(Path baseDirectory) {
+        this(baseDirectory, PersistenceOptions.defaults());
+    }
+
+    public PersistenceManager(Path baseDirectory, PersistenceOptions options) {
+        if (options == null) {
+            throw new IllegalArgumentException("options must be non-null");
+        }
+        this.options = options;
         this.baseDirectory = baseDirectory;
         this.snapshotPath = baseDirectory.resolve("snapshot.json");
-        this.walPath = baseDirectory.resolve("wal.log");
+        this.binarySnapshotPath = baseDirectory.resolve("snapshot.bin");
+        this.legacyWalPath = baseDirectory.resolve("wal.log");
         try {
             Files.createDirectories(baseDirectory);
+            this.segments = new WalSegments(baseDirectory, gson, options.walFormat());
         } catch (IOException e) {
             throw new RuntimeException("Unable to create persistence directory", e);
         }
     }
 
+    /**
+     * Restores the last snapshot and replays the WAL on top of it. Entities
+     * coming from a binary snapshot are returned undecoded; see
+     * {@link Entity#lazy}.
+     */
     public LoadedState load() {
-        Map<String, Map<String, Object>> data = new LinkedHashMap<>();
+        Map<String, Entity> entities = new LinkedHashMap<>();
+        Map<String, Entity> superseded = new HashMap<>();
         List<LogEntry> history = new ArrayList<>();
         long snapshotTimestamp = 0L;
         try {
-            if (Files.exists(snapshotPath)) {
+            if (SnapshotFile.isSnapshot(binarySnapshotPath)) {
+                SnapshotFile.Contents contents = SnapshotFile.open(binarySnapshotPath);
+                snapshotTimestamp = contents.timestamp();
+                entities = contents.entities();
+            } else if (Files.exists(snapshotPath)) {
                 snapshotTimestamp = Files.getLastModifiedTime(snapshotPath).toMillis();
                 try (Reader reader = Files.newBufferedReader(snapshotPath, StandardCharsets.UTF_8)) {
                     Map<String, Map<String, Object>> snapshot = gson.fromJson(reader, SNAPSHOT_TYPE);
                     if (snapshot != null) {
                         for (var entry : snapshot.entrySet()) {
-                            Map<String, Object> copy = deepCopy(entry.getValue());
-                            data.put(entry.getKey(), copy);
-                            history.add(new LogEntry(Operation.INSERT, entry.getKey(), deepCopy(copy), snapshotTimestamp));
+                            entities.put(entry.getKey(), new Entity(entry.getKey(), entry.getValue()));
                         }
                     }
                 }
             }
-            if (Files.exists(walPath)) {
-                try (BufferedReader reader = Files.newBufferedReader(walPath, StandardCharsets.UTF_8)) {
-                    String line;
-                    while ((line = reader.readLine()) != null) {
-                        if (line.isBlank()) {
-                            continue;
-                        }
-                        WalEntry entry = gson.fromJson(line, WalEntry.class);
-                        if (entry == null || entry.id == null || entry.operation == null) {
-                            continue;
-                        }
-                        Map<String, Object> copy = entry.fields == null ? null : deepCopy(entry.fields);
-                        apply(data, entry.operation, entry.id, copy);
-                        history.add(new LogEntry(entry.operation, entry.id, copy, entry.timestamp));
-                    }
+            for (LogEntry entry : replayWal(walFiles())) {
+                if (!superseded.containsKey(entry.id())) {
+                    superseded.put(entry.id(), entities.get(entry.id()));
                 }
+                apply(entities, entry.operation(), entry.id(), entry.fields());
+                history.add(entry);
             }
         } catch (IOException e) {
             throw new RuntimeException("Failed to load persisted state", e);
         }
         history.sort(Comparator.comparingLong(LogEntry::timestamp));
-        return new LoadedState(data, history);
+        return new LoadedState(entities, snapshotTimestamp, superseded, history);
     }
 
     public void appendInsert(Entity entity) throws IOException {
-        Map<String, Object> copy = deepCopy(entity.getFields());
-        append(new LogEntry(Operation.INSERT, entity.getId(), copy, System.currentTimeMillis()));
+        append(new LogEntry(Operation.INSERT, entity.getId(), entity.getFields(), System.currentTimeMillis()));
     }
 
     public void appendUpdate(String id, Map<String, Object> fields) throws IOException {
-        append(new LogEntry(Operation.UPDATE, id, deepCopy(fields), System.currentTimeMillis()));
+        append(new LogEntry(Operation.UPDATE, id, fields, System.currentTimeMillis()));
     }
 
     public void appendDelete(String id) throws IOException {
         append(new LogEntry(Operation.DELETE, id, null, System.currentTimeMillis()));
     }
 
+    /**
+     * Writes a snapshot of {@code entities} and drops the log it supersedes.
+     * The caller must make sure no mutation happens concurrently; use
+     * {@link #beginCheckpoint()} and {@link #completeCheckpoint} otherwise.
+     */
     public void saveSnapshot(Collection<Entity> entities) throws IOException {
-        Map<String, Map<String, Object>> snapshot = new LinkedHashMap<>();
-        for (Entity entity : entities) {
-            snapshot.put(entity.getId(), deepCopy(entity.getFields()));
+        completeCheckpoint(entities, beginCheckpoint(), System.currentTimeMillis());
+    }
+
+    /**
+     * Fences the log: subsequent appends go to a new segment. Returns the
+     * fence, i.e. the first segment a snapshot taken now does not cover.
+     */
+    public long beginCheckpoint() throws IOException {
+        walLock.writeLock().lock();
+        try {
+            closeWal();
+            return segments.nextNumber();
+        } finally {
+            walLock.writeLock().unlock();
         }
+    }
+
+    /**
+     * Writes the snapshot for a fence returned by {@link #beginCheckpoint()}
+     * and retires the log segments it covers. {@code entities} must be the
+     * state as of the fence; {@code timestamp} is recorded as the snapshot time.
+     * Appends may continue while this runs.
+     */
+    public void completeCheckpoint(Iterable<Entity> entities, long fence, long timestamp) throws IOException {
+        writeSnapshot(entities, timestamp);
+        Files.deleteIfExists(legacyWalPath);
+        segments.retireBefore(fence);
+    }
+
+    /** Writes and fsyncs every WAL record appended so far. */
+    public void flush() throws IOException {
+        WalWriter writer = wal;
+        if (writer != null) {
+            writer.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        walLock.writeLock().lock();
+        try {
+            closeWal();
+        } finally {
+            walLock.writeLock().unlock();
+        }
+    }
+
+    private synchronized void writeSnapshot(Iterable<Entity> entities, long timestamp) throws IOException {
         Files.createDirectories(baseDirectory);
         Path tmp = baseDirectory.resolve("snapshot.tmp");
-        try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
-            gson.toJson(snapshot, writer);
+        Path target;
+        if (options.snapshotFormat() == SnapshotFormat.BINARY) {
+            SnapshotFile.write(tmp, entities, timestamp);
+            target = binarySnapshotPath;
+        } else {
+            Map<String, Map<String, Object>> snapshot = new LinkedHashMap<>();
+            for (Entity entity : entities) {
+                snapshot.put(entity.getId(), entity.getFields());
+            }
+            try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                gson.toJson(snapshot, writer);
+            }
+            target = snapshotPath;
         }
         try {
-            Files.move(tmp, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
         } catch (IOException ex) {
-            Files.move(tmp, snapshotPath, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
         }
-        Files.deleteIfExists(walPath);
+        Files.deleteIfExists(target.equals(snapshotPath) ? binarySnapshotPath : snapshotPath);
         try {
-            Files.setLastModifiedTime(snapshotPath, FileTime.fromMillis(System.currentTimeMillis()));
+            Files.setLastModifiedTime(target, FileTime.fromMillis(System.currentTimeMillis()));
         } catch (IOException ignored) {
         }
     }
 
-    private void append(LogEntry entry) throws IOException {
-        WalEntry walEntry = new WalEntry(entry.operation(), entry.id(), entry.fields() == null ? null : deepCopy(entry.fields()), entry.timestamp());
-        String json = gson.toJson(walEntry);
-        Files.writeString(walPath, json + System.lineSeparator(), StandardCharsets.UTF_8,
-                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    /** Returns the legacy single-file log (if any) followed by every live segment in order. */
+    private List<Path> walFiles() {
+        List<Path> files = new ArrayList<>();
+        if (Files.exists(legacyWalPath)) {
+            files.add(legacyWalPath);
+        }
+        files.addAll(segments.livePaths());
+        return files;
     }
 
-    private void apply(Map<String, Map<String, Object>> data, Operation op, String id, Map<String, Object> fields) {
-        switch (op) {
-            case INSERT, UPDATE -> {
-                if (fields != null) {
-                    data.put(id, deepCopy(fields));
+    /**
+     * Decodes the intact prefix of each log file, several files at a time,
+     * and returns their records in log order. Whatever follows the intact
+     * prefix is a torn tail or, in a recycled segment, data from its previous
+     * life; it is left in place because appends always start a new segment.
+     */
+    private List<LogEntry> replayWal(List<Path> files) throws IOException {
+        List<List<LogEntry>> decoded;
+        try {
+            decoded = files.parallelStream().map(this::decodeSegment).toList();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        List<LogEntry> entries = new ArrayList<>();
+        decoded.forEach(entries::addAll);
+        return entries;
+    }
+
+    private List<LogEntry> decodeSegment(Path file) {
+        List<LogEntry> entries = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > 0) {
+                long valid = walCodec.decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, size),
+                        WalSegments.numberOf(file), entries);
+                if (valid < size) {
+                    LOGGER.fine("Ignoring " + (size - valid) + " bytes after the last intact WAL record in " + file);
                 }
             }
-            case DELETE -> data.remove(id);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
+        return entries;
     }
 
-    private Map<String, Object> deepCopy(Map<String, Object> source) {
-        Map<String, Object> copy = new LinkedHashMap<>();
-        for (var entry : source.entrySet()) {
-            copy.put(entry.getKey(), deepCopyValue(entry.getValue()));
+    /**
+     * Encodes the entry on the calling thread, so the caller's field map is
+     * captured before this returns and needs no defensive copy.
+     */
+    private void append(LogEntry entry) throws IOException {
+        WalWriter writer;
+        long sequence;
+        walLock.readLock().lock();
+        try {
+            writer = openWal();
+            sequence = writer.append(walCodec.encode(entry, options.walFormat()));
+        } finally {
+            walLock.readLock().unlock();
         }
-        return copy;
+        writer.awaitDurable(sequence);
     }
 
-    private Object deepCopyValue(Object value) {
-        if (value instanceof Map<?, ?> map) {
-            Map<String, Object> nested = new LinkedHashMap<>();
-            for (var entry : map.entrySet()) {
-                nested.put(String.valueOf(entry.getKey()), deepCopyValue(entry.getValue()));
+    private WalWriter openWal() throws IOException {
+        WalWriter writer = wal;
+        if (writer == null) {
+            synchronized (this) {
+                writer = wal;
+                if (writer == null) {
+                    writer = new WalWriter(segments, options.segmentBytes(), options.durability());
+                    wal = writer;
+                }
             }
-            return nested;
         }
-        if (value instanceof List<?> list) {
-            List<Object> nested = new ArrayList<>();
-            for (Object o : list) {
-                nested.add(deepCopyValue(o));
+        return writer;
+    }
+
+    /** Must be called while holding the WAL write lock. */
+    private void closeWal() throws IOException {
+        WalWriter writer = wal;
+        if (writer != null) {
+            wal = null;
+            writer.close();
+        }
+    }
+
+    private void apply(Map<String, Entity> entities, Operation op, String id, Map<String, Object> fields) {
+        switch (op) {
+            case INSERT, UPDATE -> {
+                if (fields != null) {
+                    entities.put(id, new Entity(id, fields));
+                }
             }
-            return nested;
+            case DELETE -> entities.remove(id);
         }
-        return value;
     }
 
-    public record LoadedState(Map<String, Map<String, Object>> data, List<LogEntry> history) {}
+    /**
+     * @param entities          the restored state keyed by id
+     * @param snapshotTimestamp when the snapshot was taken, or 0 without one
+     * @param superseded        for every id the WAL touched, its snapshot entity
+     *                          (or {@code null} if the snapshot did not have it)
+     * @param history           the replayed WAL entries ordered by timestamp
+     */
+    public record LoadedState(Map<String, Entity> entities, long snapshotTimestamp,
+                              Map<String, Entity> superseded, List<LogEntry> history) {
+
+        /** Visits every entity as it was in the snapshot, without copying the state. */
+        public void forEachSnapshotEntity(BiConsumer<String, Entity> action) {
+            entities.forEach((id, entity) -> {
+                if (!superseded.containsKey(id)) {
+                    action.accept(id, entity);
+                }
+            });
+            superseded.forEach((id, entity) -> {
+                if (entity != null) {
+                    action.accept(id, entity);
+                }
+            });
+        }
+    }
 
     public record LogEntry(Operation operation, String id, Map<String, Object> fields, long timestamp) {}
 
     public enum Operation { INSERT, UPDATE, DELETE }
 
-    private static final class WalEntry {
+    static final class WalEntry {
         Operation operation;
         String id;
         Map<String, Object> fields;
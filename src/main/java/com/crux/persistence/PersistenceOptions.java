@@ -0,0 +1,47 @@
+package com.crux.persistence;
+
+/**
+ * Per-store persistence settings.
+ *
+ * @param durability     when appended WAL records are forced to disk
+ * @param walFormat      encoding used for new write-ahead log segments; older
+ *                       segments are still replayed in their own format
+ * @param snapshotFormat encoding used when writing snapshots; either kind is
+ *                       read back at startup
+ * @param segmentBytes   size after which the write-ahead log moves on to a
+ *                       new segment file
+ */
+public record PersistenceOptions(Durability durability, WalFormat walFormat, SnapshotFormat snapshotFormat,
+                                 long segmentBytes) {
+    public static final long DEFAULT_SEGMENT_BYTES = 64L << 20;
+
+    public PersistenceOptions {
+        if (durability == null || walFormat == null || snapshotFormat == null) {
+            throw new IllegalArgumentException("durability, walFormat and snapshotFormat must be non-null");
+        }
+        if (segmentBytes <= 0) {
+            throw new IllegalArgumentException("segmentBytes must be positive");
+        }
+    }
+
+    public static PersistenceOptions defaults() {
+        return new PersistenceOptions(Durability.everyOperation(), WalFormat.BINARY, SnapshotFormat.BINARY,
+                DEFAULT_SEGMENT_BYTES);
+    }
+
+    public PersistenceOptions withDurability(Durability durability) {
+        return new PersistenceOptions(durability, walFormat, snapshotFormat, segmentBytes);
+    }
+
+    public PersistenceOptions withWalFormat(WalFormat walFormat) {
+        return new PersistenceOptions(durability, walFormat, snapshotFormat, segmentBytes);
+    }
+
+    public PersistenceOptions withSnapshotFormat(SnapshotFormat snapshotFormat) {
+        return new PersistenceOptions(durability, walFormat, snapshotFormat, segmentBytes);
+    }
+
+    public PersistenceOptions withSegmentBytes(long segmentBytes) {
+        return new PersistenceOptions(durability, walFormat, snapshotFormat, segmentBytes);
+    }
+}
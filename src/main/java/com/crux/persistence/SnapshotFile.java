@@ -0,0 +1,154 @@
+package com.crux.persistence;
+
+import com.crux.store.Entity;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Random-access binary snapshot.
+ * <p>
+ * Layout: a fixed header ({@link #MAGIC}, checkpoint timestamp, entity
+ * count, directory offset), the {@link BinaryCodec}-encoded field maps of
+ * every entity, and finally a directory of {@code (id, offset, length)}
+ * entries. Opening a snapshot only reads the directory; the body region is
+ * memory-mapped and each entity is decoded on first access. Bodies are
+ * padded so none crosses a {@link #CHUNK} boundary, which lets files larger
+ * than a single mapping be served from several mapped chunks.
+ */
+final class SnapshotFile {
+    static final byte[] MAGIC = {'C', 'R', 'U', 'X', 'S', 'N', 'P', 1};
+    private static final int HEADER = MAGIC.length + 8 + 4 + 8;
+    private static final long CHUNK = 1L << 30;
+
+    private SnapshotFile() {
+    }
+
+    /** Entities of an opened snapshot, keyed by id in file order. */
+    record Contents(long timestamp, Map<String, Entity> entities) {}
+
+    static boolean isSnapshot(Path path) throws IOException {
+        if (!Files.exists(path) || Files.size(path) < HEADER) {
+            return false;
+        }
+        try (InputStream in = Files.newInputStream(path)) {
+            return Arrays.equals(in.readNBytes(MAGIC.length), MAGIC);
+        }
+    }
+
+    static void write(Path path, Iterable<Entity> entities, long timestamp) throws IOException {
+        BinaryCodec.Output directory = new BinaryCodec.Output(1 << 12);
+        BinaryCodec.Output body = new BinaryCodec.Output(256);
+        int count = 0;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+             OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16)) {
+            out.write(new byte[HEADER]);
+            long offset = HEADER;
+            for (Entity entity : entities) {
+                body.reset();
+                BinaryCodec.writeFields(body, entity.getFields());
+                int length = body.size();
+                if (length > CHUNK) {
+                    throw new IOException("entity " + entity.getId() + " is too large for a snapshot");
+                }
+                long chunkEnd = (offset / CHUNK + 1) * CHUNK;
+                if (offset + length > chunkEnd) {
+                    out.write(new byte[(int) (chunkEnd - offset)]);
+                    offset = chunkEnd;
+                }
+                out.write(body.array(), 0, length);
+                BinaryCodec.writeString(directory, entity.getId());
+                directory.writeLong(offset);
+                directory.writeInt(length);
+                offset += length;
+                count++;
+            }
+            out.write(directory.array(), 0, directory.size());
+            out.flush();
+
+            BinaryCodec.Output header = new BinaryCodec.Output(HEADER);
+            header.writeBytes(MAGIC);
+            header.writeLong(timestamp);
+            header.writeInt(count);
+            header.writeLong(offset);
+            channel.write(ByteBuffer.wrap(header.array(), 0, header.size()), 0);
+            channel.force(true);
+        }
+    }
+
+    static Contents open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // keep reading until the header is complete
+            }
+            header.flip();
+            if (header.remaining() < HEADER) {
+                throw new IOException("truncated snapshot header in " + path);
+            }
+            byte[] magic = new byte[MAGIC.length];
+            header.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("not a binary snapshot: " + path);
+            }
+            long timestamp = header.getLong();
+            int count = header.getInt();
+            long directoryOffset = header.getLong();
+
+            ByteBuffer[] chunks = new ByteBuffer[(int) ((directoryOffset + CHUNK - 1) / CHUNK)];
+            for (int i = 0; i < chunks.length; i++) {
+                long start = i * CHUNK;
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(CHUNK, directoryOffset - start));
+            }
+
+            Map<String, Entity> entities = new LinkedHashMap<>(Math.max(16, count * 4 / 3 + 1));
+            channel.position(directoryOffset);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 16));
+            for (int i = 0; i < count; i++) {
+                String id = readString(in);
+                long offset = in.readLong();
+                int length = in.readInt();
+                ByteBuffer chunk = chunks[(int) (offset / CHUNK)];
+                int position = (int) (offset % CHUNK);
+                entities.put(id, Entity.lazy(id, () -> BinaryCodec.readFields(chunk.slice(position, length))));
+            }
+            return new Contents(timestamp, entities);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (shift >= 32) {
+                throw new IOException("malformed snapshot directory");
+            }
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("truncated snapshot directory");
+            }
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
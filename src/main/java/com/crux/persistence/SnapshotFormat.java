@@ -0,0 +1,11 @@
+package com.crux.persistence;
+
+/**
+ * On-disk encoding of full snapshots.
+ */
+public enum SnapshotFormat {
+    /** A single JSON object of id to fields ({@code snapshot.json}); read fully at startup. */
+    JSON,
+    /** Memory-mapped binary file with an id directory ({@code snapshot.bin}); entities decode lazily. */
+    BINARY
+}
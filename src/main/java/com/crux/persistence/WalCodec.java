@@ -0,0 +1,195 @@
+package com.crux.persistence;
+
+import com.google.gson.Gson;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * Encodes and decodes write-ahead log records in either {@link WalFormat}.
+ * <p>
+ * A binary segment starts with {@link #SEGMENT_MAGIC} and its segment
+ * number. Each record is framed as {@code [int length][int checksum][payload]}
+ * where the payload holds the operation, id, timestamp and the
+ * {@link BinaryCodec}-encoded fields, and the checksum is the CRC32C of the
+ * payload xor-ed with the segment's {@linkplain #salt salt}. The writer
+ * applies the salt once it knows which segment a record lands in, so
+ * records left over from a recycled file's previous life fail the check.
+ * Decoding stops at the first record that is incomplete or fails its
+ * checksum, so neither a torn tail nor stale data is ever applied. Logs
+ * written before segments existed start with {@link #MAGIC} and are not
+ * salted.
+ */
+final class WalCodec {
+    static final byte[] MAGIC = {'C', 'R', 'U', 'X', 'W', 'A', 'L', 1};
+    static final byte[] SEGMENT_MAGIC = {'C', 'R', 'U', 'X', 'W', 'A', 'L', 2};
+    static final int SEGMENT_HEADER = SEGMENT_MAGIC.length + 8;
+    private static final int FRAME_HEADER = 8;
+    private static final PersistenceManager.Operation[] OPERATIONS = PersistenceManager.Operation.values();
+
+    private final Gson gson;
+
+    WalCodec(Gson gson) {
+        this.gson = gson;
+    }
+
+    /** Detects the format of a non-empty log from its first bytes. */
+    static WalFormat sniff(ByteBuffer buffer) {
+        int prefix = MAGIC.length - 1;
+        if (buffer.remaining() < prefix) {
+            return buffer.remaining() > 0 && buffer.get(buffer.position()) == MAGIC[0] ? WalFormat.BINARY : WalFormat.JSON;
+        }
+        byte[] head = new byte[prefix];
+        buffer.duplicate().get(head);
+        return Arrays.equals(head, 0, prefix, MAGIC, 0, prefix) ? WalFormat.BINARY : WalFormat.JSON;
+    }
+
+    /** The header written at the start of binary segment {@code segment}. */
+    static byte[] segmentHeader(long segment) {
+        BinaryCodec.Output out = new BinaryCodec.Output(SEGMENT_HEADER);
+        out.writeBytes(SEGMENT_MAGIC);
+        out.writeLong(segment);
+        return out.toByteArray();
+    }
+
+    /** The value record checksums of binary segment {@code segment} are xor-ed with. */
+    static int salt(long segment) {
+        long h = segment * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) | 1;
+    }
+
+    /**
+     * Salts an encoded binary record for the segment it is written to;
+     * {@code record} must be positioned at the frame start.
+     */
+    static void applySalt(ByteBuffer record, int salt) {
+        int at = record.position() + 4;
+        record.putInt(at, record.getInt(at) ^ salt);
+    }
+
+    byte[] encode(PersistenceManager.LogEntry entry, WalFormat format) {
+        if (format == WalFormat.JSON) {
+            PersistenceManager.WalEntry walEntry = new PersistenceManager.WalEntry(
+                    entry.operation(), entry.id(), entry.fields(), entry.timestamp());
+            return (gson.toJson(walEntry) + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+        }
+        BinaryCodec.Output out = new BinaryCodec.Output(64);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeByte(entry.operation().ordinal());
+        BinaryCodec.writeString(out, entry.id());
+        out.writeLong(entry.timestamp());
+        if (entry.fields() == null) {
+            out.writeByte(0);
+        } else {
+            out.writeByte(1);
+            BinaryCodec.writeFields(out, entry.fields());
+        }
+        int payload = out.size() - FRAME_HEADER;
+        CRC32C crc = new CRC32C();
+        crc.update(out.array(), FRAME_HEADER, payload);
+        out.putInt(0, payload);
+        out.putInt(4, (int) crc.getValue());
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes every intact record of segment {@code segment} into {@code out}
+     * and returns the number of bytes they span, i.e. the offset at which the
+     * valid log ends. A binary segment whose header names another segment
+     * was being recycled when the process stopped and yields nothing.
+     */
+    long decode(ByteBuffer buffer, long segment, List<PersistenceManager.LogEntry> out) {
+        if (!buffer.hasRemaining()) {
+            return 0;
+        }
+        return sniff(buffer) == WalFormat.BINARY ? decodeBinary(buffer, segment, out) : decodeJson(buffer, out);
+    }
+
+    private long decodeBinary(ByteBuffer buffer, long segment, List<PersistenceManager.LogEntry> out) {
+        if (buffer.remaining() < MAGIC.length) {
+            return 0;
+        }
+        int pos;
+        int salt;
+        if (buffer.get(MAGIC.length - 1) == MAGIC[MAGIC.length - 1]) {
+            pos = MAGIC.length;
+            salt = 0;
+        } else if (buffer.get(MAGIC.length - 1) == SEGMENT_MAGIC[SEGMENT_MAGIC.length - 1]
+                && buffer.remaining() >= SEGMENT_HEADER && buffer.getLong(SEGMENT_MAGIC.length) == segment) {
+            pos = SEGMENT_HEADER;
+            salt = salt(segment);
+        } else {
+            return 0;
+        }
+        int limit = buffer.limit();
+        CRC32C crc = new CRC32C();
+        while (limit - pos >= FRAME_HEADER) {
+            int length = buffer.getInt(pos);
+            int checksum = buffer.getInt(pos + 4) ^ salt;
+            if (length <= 0 || length > limit - pos - FRAME_HEADER) {
+                break;
+            }
+            ByteBuffer payload = buffer.slice(pos + FRAME_HEADER, length);
+            crc.reset();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            try {
+                out.add(decodePayload(payload));
+            } catch (RuntimeException e) {
+                break;
+            }
+            pos += FRAME_HEADER + length;
+        }
+        return pos;
+    }
+
+    private PersistenceManager.LogEntry decodePayload(ByteBuffer payload) {
+        int op = payload.get();
+        if (op < 0 || op >= OPERATIONS.length) {
+            throw new IllegalStateException("unknown operation " + op);
+        }
+        String id = BinaryCodec.readString(payload);
+        long timestamp = payload.getLong();
+        Map<String, Object> fields = payload.get() == 0 ? null : BinaryCodec.readFields(payload);
+        return new PersistenceManager.LogEntry(OPERATIONS[op], id, fields, timestamp);
+    }
+
+    private long decodeJson(ByteBuffer buffer, List<PersistenceManager.LogEntry> out) {
+        int start = buffer.position();
+        int limit = buffer.limit();
+        int valid = start;
+        while (valid < limit) {
+            int end = valid;
+            while (end < limit && buffer.get(end) != '\n') {
+                end++;
+            }
+            if (end == limit) {
+                // no newline: the final line was cut short by a crash
+                break;
+            }
+            byte[] bytes = new byte[end - valid];
+            buffer.get(valid, bytes);
+            String line = new String(bytes, StandardCharsets.UTF_8);
+            if (!line.isBlank()) {
+                PersistenceManager.WalEntry entry;
+                try {
+                    entry = gson.fromJson(line, PersistenceManager.WalEntry.class);
+                } catch (RuntimeException e) {
+                    break;
+                }
+                if (entry != null && entry.id != null && entry.operation != null) {
+                    out.add(new PersistenceManager.LogEntry(entry.operation, entry.id, entry.fields, entry.timestamp));
+                }
+            }
+            valid = end + 1;
+        }
+        return valid - start;
+    }
+}
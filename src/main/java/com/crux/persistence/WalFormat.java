@@ -0,0 +1,11 @@
+package com.crux.persistence;
+
+/**
+ * On-disk encoding of write-ahead log records.
+ */
+public enum WalFormat {
+    /** One Gson-serialized record per line; easy to read and grep. */
+    JSON,
+    /** Length-prefixed, CRC32C-checked binary records behind a magic header. */
+    BINARY
+}
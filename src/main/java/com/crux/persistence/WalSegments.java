@@ -0,0 +1,189 @@
+package com.crux.persistence;
+
+import com.google.gson.Gson;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * The write-ahead log segment files of a store directory.
+ * <p>
+ * Segments are numbered {@code wal-000001.log}, {@code wal-000002.log}, ...
+ * and {@code wal.manifest} lists the ones that are still live, in order.
+ * The manifest is rewritten whenever a segment is opened or retired, so a
+ * segment file it does not mention is never replayed. Retired binary
+ * segments are renamed into a small pool of {@code wal-free-*.log} files and
+ * reused for later segments instead of being deleted and recreated; their
+ * blocks are already allocated, and the segment header plus the checksum
+ * salt (see {@link WalCodec}) keep their old records from being replayed.
+ */
+final class WalSegments {
+    private static final Logger LOGGER = Logger.getLogger(WalSegments.class.getName());
+    private static final Pattern SEGMENT_FILE = Pattern.compile("wal-(\\d+)\\.log");
+    private static final Pattern FREE_FILE = Pattern.compile("wal-free-(\\d+)\\.log");
+    private static final int RECYCLE_LIMIT = 4;
+
+    private final Path directory;
+    private final Path manifestPath;
+    private final Gson gson;
+    private final WalFormat format;
+    private final TreeSet<Long> live = new TreeSet<>();
+    private final Deque<Path> free = new ArrayDeque<>();
+    private long next = 1;
+
+    /** A segment opened for appending, positioned after its header. */
+    record Segment(long number, FileChannel channel, int salt) {}
+
+    private record Manifest(List<Long> segments) {}
+
+    WalSegments(Path directory, Gson gson, WalFormat format) throws IOException {
+        this.directory = directory;
+        this.manifestPath = directory.resolve("wal.manifest");
+        this.gson = gson;
+        this.format = format;
+
+        List<Path> segmentFiles = new ArrayList<>();
+        try (Stream<Path> stream = Files.list(directory)) {
+            stream.forEach(p -> {
+                String name = p.getFileName().toString();
+                if (SEGMENT_FILE.matcher(name).matches()) {
+                    segmentFiles.add(p);
+                } else if (FREE_FILE.matcher(name).matches()) {
+                    free.add(p);
+                }
+            });
+        }
+        if (Files.exists(manifestPath)) {
+            try (Reader reader = Files.newBufferedReader(manifestPath, StandardCharsets.UTF_8)) {
+                Manifest manifest = gson.fromJson(reader, Manifest.class);
+                if (manifest != null && manifest.segments() != null) {
+                    live.addAll(manifest.segments());
+                }
+            }
+        } else {
+            segmentFiles.forEach(p -> live.add(numberOf(p)));
+        }
+        for (Path file : segmentFiles) {
+            long number = numberOf(file);
+            next = Math.max(next, number + 1);
+            if (!live.contains(number)) {
+                // opened or retired while the manifest said otherwise
+                release(file, number);
+            }
+        }
+        if (!live.isEmpty()) {
+            next = Math.max(next, live.last() + 1);
+        }
+    }
+
+    /** Returns the segment number encoded in a segment file name, or 0 for any other file. */
+    static long numberOf(Path file) {
+        Matcher m = SEGMENT_FILE.matcher(file.getFileName().toString());
+        return m.matches() ? Long.parseLong(m.group(1)) : 0;
+    }
+
+    /** The live segment files, oldest first. */
+    synchronized List<Path> livePaths() {
+        List<Path> paths = new ArrayList<>(live.size());
+        for (long number : live) {
+            Path path = file(number);
+            if (Files.exists(path)) {
+                paths.add(path);
+            }
+        }
+        return paths;
+    }
+
+    /** The number the next opened segment will get. */
+    synchronized long nextNumber() {
+        return next;
+    }
+
+    /**
+     * Opens a fresh segment for appending, reusing a retired file when one is
+     * available, and records it in the manifest.
+     */
+    synchronized Segment openNext() throws IOException {
+        long number = next++;
+        Path path = file(number);
+        Path recycled = format == WalFormat.BINARY ? free.poll() : null;
+        byte[] header = format == WalFormat.BINARY ? WalCodec.segmentHeader(number) : new byte[0];
+        FileChannel channel;
+        if (recycled != null) {
+            try (FileChannel reuse = FileChannel.open(recycled, StandardOpenOption.WRITE)) {
+                reuse.write(ByteBuffer.wrap(header), 0);
+                reuse.force(false);
+            }
+            Files.move(recycled, path, StandardCopyOption.REPLACE_EXISTING);
+            channel = FileChannel.open(path, StandardOpenOption.WRITE);
+        } else {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            channel.write(ByteBuffer.wrap(header), 0);
+        }
+        channel.position(header.length);
+        live.add(number);
+        try {
+            writeManifest();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return new Segment(number, channel, format == WalFormat.BINARY ? WalCodec.salt(number) : 0);
+    }
+
+    /** Drops every segment numbered below {@code fence} once a snapshot covers them. */
+    synchronized void retireBefore(long fence) throws IOException {
+        SortedSet<Long> retired = new TreeSet<>(live.headSet(fence));
+        if (retired.isEmpty()) {
+            return;
+        }
+        live.removeAll(retired);
+        writeManifest();
+        for (long number : retired) {
+            release(file(number), number);
+        }
+    }
+
+    /** Moves a segment that is no longer live into the recycling pool, or deletes it. */
+    private void release(Path file, long number) throws IOException {
+        if (format == WalFormat.BINARY && free.size() < RECYCLE_LIMIT && Files.exists(file)) {
+            Path target = directory.resolve(String.format("wal-free-%06d.log", number));
+            Files.move(file, target, StandardCopyOption.REPLACE_EXISTING);
+            free.add(target);
+        } else {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private void writeManifest() throws IOException {
+        Path tmp = directory.resolve("wal.manifest.tmp");
+        try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            gson.toJson(new Manifest(new ArrayList<>(live)), writer);
+        }
+        try {
+            Files.move(tmp, manifestPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            LOGGER.fine("Atomic manifest replace unsupported, falling back to a plain move");
+            Files.move(tmp, manifestPath, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private Path file(long number) {
+        return directory.resolve(String.format("wal-%06d.log", number));
+    }
+}
@@ -0,0 +1,251 @@
+package com.crux.persistence;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Long-lived append channel for the write-ahead log.
+ * <p>
+ * Appenders only queue their encoded record. A single writer thread
+ * drains everything queued since its last pass with one gathering write
+ * and, depending on the {@link Durability}, a single fsync. Concurrent
+ * appenders therefore share the cost of a sync instead of paying for one
+ * each (group commit).
+ * <p>
+ * Once the current segment has grown past the configured size, the writer
+ * thread syncs it and moves on to the next {@linkplain WalSegments segment}
+ * between two batches, so a batch never spans segments.
+ */
+final class WalWriter implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(WalWriter.class.getName());
+
+    private final WalSegments segments;
+    private final long segmentBytes;
+    private final Durability durability;
+    private final Thread thread;
+    private final Object monitor = new Object();
+
+    private FileChannel channel;
+    private int salt;
+    private List<ByteBuffer> pending = new ArrayList<>();
+    private long appended;
+    private long written;
+    private long synced;
+    private long syncRequested;
+    private long unsyncedBytes;
+    private long lastSyncNanos = System.nanoTime();
+    private IOException failure;
+    private boolean closed;
+
+    WalWriter(WalSegments segments, long segmentBytes, Durability durability) throws IOException {
+        this.segments = segments;
+        this.segmentBytes = segmentBytes;
+        this.durability = durability;
+        WalSegments.Segment segment = segments.openNext();
+        this.channel = segment.channel();
+        this.salt = segment.salt();
+        this.thread = new Thread(this::run, "crux-wal-writer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /** Queues an encoded record and returns its sequence number. */
+    long append(byte[] record) throws IOException {
+        synchronized (monitor) {
+            checkUsable();
+            pending.add(ByteBuffer.wrap(record));
+            appended++;
+            monitor.notifyAll();
+            return appended;
+        }
+    }
+
+    /**
+     * Blocks until the record with the given sequence number is as durable
+     * as the policy promises. Only {@link Durability.Mode#EVERY_OP} waits.
+     */
+    void awaitDurable(long sequence) throws IOException {
+        if (durability.mode() == Durability.Mode.EVERY_OP) {
+            awaitSynced(sequence);
+        }
+    }
+
+    /** Writes and fsyncs everything appended so far. */
+    void flush() throws IOException {
+        long target;
+        synchronized (monitor) {
+            checkUsable();
+            target = appended;
+            syncRequested = Math.max(syncRequested, target);
+            monitor.notifyAll();
+        }
+        awaitSynced(target);
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (monitor) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            monitor.notifyAll();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+        synchronized (monitor) {
+            if (failure != null) {
+                throw new IOException("WAL writer failed", failure);
+            }
+        }
+    }
+
+    private void awaitSynced(long sequence) throws IOException {
+        synchronized (monitor) {
+            while (synced < sequence && failure == null) {
+                try {
+                    monitor.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted while waiting for WAL sync", e);
+                }
+            }
+            if (synced < sequence) {
+                throw new IOException("WAL writer failed", failure);
+            }
+        }
+    }
+
+    private void checkUsable() throws IOException {
+        if (failure != null) {
+            throw new IOException("WAL writer failed", failure);
+        }
+        if (closed) {
+            throw new IOException("WAL writer is closed");
+        }
+    }
+
+    private void run() {
+        while (true) {
+            List<ByteBuffer> batch;
+            long batchEnd;
+            synchronized (monitor) {
+                while (pending.isEmpty() && !syncDue()) {
+                    if (closed) {
+                        return;
+                    }
+                    try {
+                        monitor.wait(waitMillis());
+                    } catch (InterruptedException e) {
+                        closed = true;
+                    }
+                }
+                batch = pending;
+                pending = new ArrayList<>();
+                batchEnd = appended;
+            }
+            try {
+                long bytes = write(batch);
+                boolean force;
+                synchronized (monitor) {
+                    written = batchEnd;
+                    unsyncedBytes += bytes;
+                    force = syncDue();
+                }
+                if (force) {
+                    channel.force(false);
+                }
+                synchronized (monitor) {
+                    if (force) {
+                        synced = batchEnd;
+                        unsyncedBytes = 0;
+                        lastSyncNanos = System.nanoTime();
+                    }
+                    monitor.notifyAll();
+                }
+                if (channel.position() >= segmentBytes) {
+                    rotate(batchEnd);
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Failed to write WAL batch", e);
+                synchronized (monitor) {
+                    failure = e;
+                    monitor.notifyAll();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Makes the full segment durable before anything reaches the next one,
+     * so replay never sees a later segment without the earlier one's tail.
+     */
+    private void rotate(long batchEnd) throws IOException {
+        channel.force(false);
+        synchronized (monitor) {
+            synced = batchEnd;
+            unsyncedBytes = 0;
+            lastSyncNanos = System.nanoTime();
+            monitor.notifyAll();
+        }
+        channel.close();
+        WalSegments.Segment segment = segments.openNext();
+        channel = segment.channel();
+        salt = segment.salt();
+    }
+
+    private long write(List<ByteBuffer> batch) throws IOException {
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        ByteBuffer[] buffers = batch.toArray(new ByteBuffer[0]);
+        long total = 0;
+        for (ByteBuffer b : buffers) {
+            if (salt != 0) {
+                WalCodec.applySalt(b, salt);
+            }
+            total += b.remaining();
+        }
+        long remaining = total;
+        while (remaining > 0) {
+            remaining -= channel.write(buffers);
+        }
+        return total;
+    }
+
+    /** Must be called while holding {@link #monitor}. */
+    private boolean syncDue() {
+        if (written <= synced) {
+            return false;
+        }
+        if (closed || syncRequested > synced) {
+            return true;
+        }
+        return switch (durability.mode()) {
+            case EVERY_OP -> true;
+            case INTERVAL -> System.nanoTime() - lastSyncNanos >= TimeUnit.MILLISECONDS.toNanos(durability.threshold());
+            case BYTES -> unsyncedBytes >= durability.threshold();
+        };
+    }
+
+    /** Must be called while holding {@link #monitor}; {@code 0} waits until notified. */
+    private long waitMillis() {
+        if (durability.mode() != Durability.Mode.INTERVAL || written <= synced) {
+            return 0;
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastSyncNanos);
+        return Math.max(1, durability.threshold() - elapsed);
+    }
+}
@@ -0,0 +1,192 @@
+package com.crux.pipeline;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
+import java.util.function.ToDoubleFunction;
+import java.util.stream.Stream;
+
+/**
+ * Per-group aggregates of a {@link Pipeline}, obtained through
+ * {@link Pipeline#aggregateBy} or {@link Pipeline#aggregateByLong}.
+ * <p>
+ * Each operation folds the elements into primitive accumulators indexed by
+ * group, so group members are never collected into lists; only
+ * {@link #percentile} keeps the aggregated values, as a {@code double[]}
+ * per group. Parallel pipelines fold every chunk into its own accumulators
+ * and merge them. Results are keyed in order of first appearance (for
+ * sequential pipelines). Like the pipeline it came from, an aggregation
+ * supports one terminal operation.
+ */
+public class Aggregation<T, K> {
+    private final Stream<T> stream;
+    private final ForkJoinPool pool;
+    private final Supplier<GroupIndex<T>> groups;
+
+    Aggregation(Stream<T> stream, ForkJoinPool pool, Supplier<GroupIndex<T>> groups) {
+        this.stream = stream;
+        this.pool = pool;
+        this.groups = groups;
+    }
+
+    private enum Kind { COUNT, SUM, MIN, MAX, AVERAGE, PERCENTILE }
+
+    /** Number of elements per group. */
+    public Map<K, Long> count() {
+        Accumulator<T> result = fold(Kind.COUNT, null);
+        Map<K, Long> out = new LinkedHashMap<>();
+        for (int g = 0; g < result.index.size(); g++) {
+            out.put(key(result, g), result.counts[g]);
+        }
+        return out;
+    }
+
+    public Map<K, Double> sum(ToDoubleFunction<T> mapper) {
+        return finish(fold(Kind.SUM, mapper), Kind.SUM, 0);
+    }
+
+    public Map<K, Double> min(ToDoubleFunction<T> mapper) {
+        return finish(fold(Kind.MIN, mapper), Kind.MIN, 0);
+    }
+
+    public Map<K, Double> max(ToDoubleFunction<T> mapper) {
+        return finish(fold(Kind.MAX, mapper), Kind.MAX, 0);
+    }
+
+    public Map<K, Double> average(ToDoubleFunction<T> mapper) {
+        return finish(fold(Kind.AVERAGE, mapper), Kind.AVERAGE, 0);
+    }
+
+    /**
+     * The {@code percentile}-th percentile (0 to 100) of each group's values,
+     * by the nearest-rank method: the smallest value at least that percentage
+     * of the group is less than or equal to.
+     */
+    public Map<K, Double> percentile(ToDoubleFunction<T> mapper, double percentile) {
+        if (percentile < 0 || percentile > 100 || Double.isNaN(percentile)) {
+            throw new IllegalArgumentException("percentile must be between 0 and 100");
+        }
+        return finish(fold(Kind.PERCENTILE, mapper), Kind.PERCENTILE, percentile);
+    }
+
+    private Accumulator<T> fold(Kind kind, ToDoubleFunction<T> mapper) {
+        return Pipeline.run(pool, () -> stream.collect(
+                () -> new Accumulator<>(groups.get(), kind, mapper),
+                Accumulator::accept,
+                Accumulator::merge));
+    }
+
+    private Map<K, Double> finish(Accumulator<T> result, Kind kind, double percentile) {
+        Map<K, Double> out = new LinkedHashMap<>();
+        for (int g = 0; g < result.index.size(); g++) {
+            double value = switch (kind) {
+                case AVERAGE -> result.values[g] / result.counts[g];
+                case PERCENTILE -> result.percentile(g, percentile);
+                default -> result.values[g];
+            };
+            out.put(key(result, g), value);
+        }
+        return out;
+    }
+
+    @SuppressWarnings("unchecked")
+    private K key(Accumulator<T> result, int group) {
+        return (K) result.index.key(group);
+    }
+
+    /** Primitive per-group state of one fold; not thread-safe, one per stream chunk. */
+    private static final class Accumulator<T> {
+        private final GroupIndex<T> index;
+        private final Kind kind;
+        private final ToDoubleFunction<T> mapper;
+        private long[] counts = new long[8];
+        private double[] values = new double[8];
+        private double[][] samples;
+        private int groups;
+
+        Accumulator(GroupIndex<T> index, Kind kind, ToDoubleFunction<T> mapper) {
+            this.index = index;
+            this.kind = kind;
+            this.mapper = mapper;
+            if (kind == Kind.PERCENTILE) {
+                samples = new double[8][];
+            }
+        }
+
+        void accept(T element) {
+            int group = index.groupOf(element);
+            ensure(group);
+            add(group, 1, kind == Kind.COUNT ? 0 : mapper.applyAsDouble(element));
+        }
+
+        void merge(Accumulator<T> other) {
+            for (int g = 0; g < other.index.size(); g++) {
+                int group = index.groupOf(other.index, g);
+                ensure(group);
+                if (kind == Kind.PERCENTILE) {
+                    for (int i = 0; i < other.counts[g]; i++) {
+                        add(group, 1, other.samples[g][i]);
+                    }
+                } else {
+                    combine(group, other.counts[g], other.values[g]);
+                }
+            }
+        }
+
+        private void add(int group, long count, double value) {
+            if (kind == Kind.PERCENTILE) {
+                double[] groupSamples = samples[group];
+                int n = (int) counts[group];
+                if (n == groupSamples.length) {
+                    samples[group] = groupSamples = Arrays.copyOf(groupSamples, n * 2);
+                }
+                groupSamples[n] = value;
+                counts[group]++;
+                return;
+            }
+            combine(group, count, value);
+        }
+
+        private void combine(int group, long count, double value) {
+            counts[group] += count;
+            switch (kind) {
+                case SUM, AVERAGE -> values[group] += value;
+                case MIN -> values[group] = Math.min(values[group], value);
+                case MAX -> values[group] = Math.max(values[group], value);
+                default -> {
+                }
+            }
+        }
+
+        /** Makes room for {@code group} and initializes it when it is new; new groups arrive in index order. */
+        private void ensure(int group) {
+            if (group < groups) {
+                return;
+            }
+            if (group >= counts.length) {
+                int capacity = counts.length * 2;
+                counts = Arrays.copyOf(counts, capacity);
+                values = Arrays.copyOf(values, capacity);
+                if (samples != null) {
+                    samples = Arrays.copyOf(samples, capacity);
+                }
+            }
+            values[group] = kind == Kind.MIN ? Double.POSITIVE_INFINITY
+                    : kind == Kind.MAX ? Double.NEGATIVE_INFINITY : 0;
+            if (samples != null) {
+                samples[group] = new double[4];
+            }
+            groups = group + 1;
+        }
+
+        double percentile(int group, double percentile) {
+            int n = (int) counts[group];
+            double[] sorted = samples[group];
+            Arrays.sort(sorted, 0, n);
+            int rank = (int) Math.ceil(percentile / 100 * n);
+            return sorted[Math.max(0, rank - 1)];
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.crux.pipeline;
+
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Spliterator over a range of an array that splits in halves, but never
+ * below {@code chunk} elements, so a parallel pipeline hands each worker a
+ * contiguous run large enough to outweigh the cost of forking it.
+ */
+final class ChunkedSpliterator<T> implements Spliterator<T> {
+    private final Object[] items;
+    private final int chunk;
+    private final int to;
+    private int from;
+
+    ChunkedSpliterator(Object[] items, int chunk) {
+        this(items, 0, items.length, chunk);
+    }
+
+    private ChunkedSpliterator(Object[] items, int from, int to, int chunk) {
+        this.items = items;
+        this.from = from;
+        this.to = to;
+        this.chunk = chunk;
+    }
+
+    @Override
+    public Spliterator<T> trySplit() {
+        if (to - from <= chunk) {
+            return null;
+        }
+        int middle = (from + to) >>> 1;
+        Spliterator<T> prefix = new ChunkedSpliterator<>(items, from, middle, chunk);
+        from = middle;
+        return prefix;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean tryAdvance(Consumer<? super T> action) {
+        if (from >= to) {
+            return false;
+        }
+        action.accept((T) items[from++]);
+        return true;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void forEachRemaining(Consumer<? super T> action) {
+        Object[] a = items;
+        int end = to;
+        int i = from;
+        from = end;
+        for (; i < end; i++) {
+            action.accept((T) a[i]);
+        }
+    }
+
+    @Override
+    public long estimateSize() {
+        return to - from;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | SIZED | SUBSIZED | IMMUTABLE;
+    }
+}
@@ -0,0 +1,160 @@
+package com.crux.pipeline;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * Assigns the group key of each element a dense index, in order of first
+ * appearance, so that per-group aggregates can live in primitive arrays.
+ */
+interface GroupIndex<T> {
+
+    /** The index of the group of {@code element}, creating the group if it is new. */
+    int groupOf(T element);
+
+    /** The index here of group {@code group} of {@code other}, creating it if it is new. */
+    int groupOf(GroupIndex<T> other, int group);
+
+    int size();
+
+    Object key(int group);
+
+    static <T, K> GroupIndex<T> byKey(Function<T, K> classifier) {
+        return new ObjectKeys<>(classifier);
+    }
+
+    static <T> GroupIndex<T> byLong(ToLongFunction<T> key) {
+        return new LongKeys<>(key);
+    }
+
+    /** Groups by arbitrary keys through a hash map. */
+    final class ObjectKeys<T, K> implements GroupIndex<T> {
+        private final Function<T, K> classifier;
+        private final Map<K, Integer> groups = new HashMap<>();
+        private final List<K> keys = new ArrayList<>();
+
+        ObjectKeys(Function<T, K> classifier) {
+            this.classifier = classifier;
+        }
+
+        @Override
+        public int groupOf(T element) {
+            return add(classifier.apply(element));
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public int groupOf(GroupIndex<T> other, int group) {
+            return add(((ObjectKeys<T, K>) other).keys.get(group));
+        }
+
+        private int add(K key) {
+            Integer group = groups.get(key);
+            if (group == null) {
+                group = keys.size();
+                groups.put(key, group);
+                keys.add(key);
+            }
+            return group;
+        }
+
+        @Override
+        public int size() {
+            return keys.size();
+        }
+
+        @Override
+        public Object key(int group) {
+            return keys.get(group);
+        }
+    }
+
+    /**
+     * Groups by {@code long} keys in an open-addressing table with linear
+     * probing, so no key is boxed until the results are handed out.
+     */
+    final class LongKeys<T> implements GroupIndex<T> {
+        private final ToLongFunction<T> key;
+        private long[] tableKeys = new long[16];
+        /** Group index plus one per table slot; zero marks an empty slot. */
+        private int[] tableGroups = new int[16];
+        private long[] keys = new long[8];
+        private int size;
+
+        LongKeys(ToLongFunction<T> key) {
+            this.key = key;
+        }
+
+        @Override
+        public int groupOf(T element) {
+            return add(key.applyAsLong(element));
+        }
+
+        @Override
+        public int groupOf(GroupIndex<T> other, int group) {
+            return add(((LongKeys<T>) other).keys[group]);
+        }
+
+        private int add(long k) {
+            int mask = tableKeys.length - 1;
+            for (int slot = mix(k) & mask; ; slot = (slot + 1) & mask) {
+                int group = tableGroups[slot];
+                if (group == 0) {
+                    break;
+                }
+                if (tableKeys[slot] == k) {
+                    return group - 1;
+                }
+            }
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+            }
+            keys[size] = k;
+            size++;
+            if (size * 2 > tableKeys.length) {
+                rehash(tableKeys.length * 2);
+            } else {
+                place(k, size);
+            }
+            return size - 1;
+        }
+
+        private void rehash(int capacity) {
+            tableKeys = new long[capacity];
+            tableGroups = new int[capacity];
+            for (int group = 0; group < size; group++) {
+                place(keys[group], group + 1);
+            }
+        }
+
+        private void place(long k, int groupPlusOne) {
+            int mask = tableKeys.length - 1;
+            int slot = mix(k) & mask;
+            while (tableGroups[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            tableKeys[slot] = k;
+            tableGroups[slot] = groupPlusOne;
+        }
+
+        private static int mix(long k) {
+            long h = k * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public Object key(int group) {
+            return keys[group];
+        }
+    }
+}
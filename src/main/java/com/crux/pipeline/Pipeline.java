@@ -1,49 +1,252 @@
 package com.crux.pipeline;
 
+import com.crux.index.IndexManager;
+import com.crux.query.QueryExpression;
+import com.crux.store.DocumentStore;
+import com.crux.store.Entity;
+
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.function.*;
 import java.util.stream.*;
 
 /**
  * Simple pipeline system that supports filter/map/group/reduce operations
  * on collections of data.
+ * <p>
+ * A pipeline created with {@link #parallel} copies its source into an array
+ * once and splits it into contiguous chunks processed on a
+ * {@link ForkJoinPool}; every terminal operation runs inside that pool, and
+ * {@link #groupBy} collects into a concurrent map instead of merging
+ * per-thread maps. The order of elements within a group is then unspecified.
+ * <p>
+ * {@link #aggregateBy} computes counts, sums, extremes, averages and
+ * percentiles per group without materializing the groups at all.
+ * <p>
+ * {@link #from} starts a pipeline from the indexes of a {@link DocumentStore}
+ * instead of a collection: the filter is resolved by the query planner and
+ * only the matching entities are read. An {@link #orderBy}, {@link #offset}
+ * and {@link #limit} applied right after it are pushed into the store too,
+ * which then walks the field's index in order and stops after the last
+ * entity needed rather than sorting every match. Elsewhere, an {@link #orderBy}
+ * followed by a {@link #limit} keeps only the top elements in a bounded
+ * heap.
  */
 public class Pipeline<T> {
+    /** Smallest run of elements a parallel pipeline hands to one task. */
+    static final int CHUNK_SIZE = 1024;
+
+    /** Null while {@link #query} has not been run yet; unsorted while {@link #order} is pending. */
     private final Stream<T> stream;
+    private final ForkJoinPool pool;
+    private final StoreQuery query;
+    /** A sort not applied yet, so that a following limit can keep just the top elements. */
+    private final Comparator<? super T> order;
+    /** Elements to drop after {@link #order}. */
+    private final long skip;
+
+    /**
+     * A store query that has not been run yet, so that ordering and paging
+     * can still be pushed into it; a negative {@code limit} means none.
+     */
+    private record StoreQuery(DocumentStore store, QueryExpression filter, String orderBy, boolean descending,
+                              long offset, long limit) {
+        boolean unpaged() {
+            return offset == 0 && limit < 0;
+        }
+
+        StoreQuery ordered(String field, boolean descending) {
+            return new StoreQuery(store, filter, field, descending, 0, -1);
+        }
+
+        StoreQuery skip(long n) {
+            return new StoreQuery(store, filter, orderBy, descending, plus(offset, n), limit < 0 ? -1 : Math.max(0, limit - n));
+        }
+
+        StoreQuery limit(long n) {
+            return new StoreQuery(store, filter, orderBy, descending, offset, limit < 0 ? n : Math.min(n, limit));
+        }
+
+        Stream<Entity> open() {
+            Stream<Entity> entities = store.stream(filter, orderBy, descending);
+            if (offset > 0) {
+                entities = entities.skip(offset);
+            }
+            return limit < 0 ? entities : entities.limit(limit);
+        }
+    }
 
     public Pipeline(Collection<T> source) {
-        this.stream = source.stream();
+        this(source.stream(), null);
+    }
+
+    private Pipeline(Stream<T> stream, ForkJoinPool pool) {
+        this(stream, pool, null, null, 0);
     }
 
-    private Pipeline(Stream<T> stream) {
+    private Pipeline(Stream<T> stream, ForkJoinPool pool, StoreQuery query, Comparator<? super T> order, long skip) {
         this.stream = stream;
+        this.pool = pool;
+        this.query = query;
+        this.order = order;
+        this.skip = skip;
+    }
+
+    /** A pipeline over the entities of {@code store} matching {@code filter}, or all of them when it is null. */
+    public static Pipeline<Entity> from(DocumentStore store, QueryExpression filter) {
+        if (store == null) {
+            throw new IllegalArgumentException("store must be non-null");
+        }
+        return new Pipeline<>(null, null, new StoreQuery(store, filter, null, false, 0, -1), null, 0);
+    }
+
+    /** A pipeline over {@code source} that runs on the common pool. */
+    public static <T> Pipeline<T> parallel(Collection<T> source) {
+        return parallel(source, ForkJoinPool.commonPool());
+    }
+
+    /** A pipeline over {@code source} that runs on {@code pool}. */
+    public static <T> Pipeline<T> parallel(Collection<T> source, ForkJoinPool pool) {
+        if (source == null || pool == null) {
+            throw new IllegalArgumentException("source and pool must be non-null");
+        }
+        return new Pipeline<>(StreamSupport.stream(new ChunkedSpliterator<>(source.toArray(), CHUNK_SIZE), true), pool);
     }
 
     public Pipeline<T> filter(Predicate<T> predicate) {
-        return new Pipeline<>(stream.filter(predicate));
+        return new Pipeline<>(stream().filter(predicate), pool);
     }
 
     public <R> Pipeline<R> map(Function<T, R> mapper) {
-        return new Pipeline<>(stream.map(mapper));
+        return new Pipeline<>(stream().map(mapper), pool);
+    }
+
+    /**
+     * Sorts entities by the value at {@code field}, a dotted path, comparing
+     * values the way the index does; entities without one come last.
+     */
+    public Pipeline<T> orderBy(String field, boolean descending) {
+        if (field == null) {
+            throw new IllegalArgumentException("field must be non-null");
+        }
+        if (query != null && query.orderBy() == null && query.unpaged()) {
+            return new Pipeline<>(null, pool, query.ordered(field, descending), null, 0);
+        }
+        return orderBy(byField(field, descending));
+    }
+
+    /**
+     * Sorts the elements by {@code order}, stably. The sort is deferred: if
+     * a {@link #limit} follows, only the elements that make the cut are
+     * kept, in a bounded heap, instead of sorting them all.
+     */
+    public Pipeline<T> orderBy(Comparator<? super T> order) {
+        if (order == null) {
+            throw new IllegalArgumentException("order must be non-null");
+        }
+        return new Pipeline<>(stream(), pool, null, order, 0);
+    }
+
+    /** Drops the first {@code n} elements. */
+    public Pipeline<T> offset(long n) {
+        if (n < 0) {
+            throw new IllegalArgumentException("offset must not be negative");
+        }
+        if (query != null) {
+            return new Pipeline<>(null, pool, query.skip(n), null, 0);
+        }
+        if (order != null) {
+            return new Pipeline<>(stream, pool, null, order, plus(skip, n));
+        }
+        return new Pipeline<>(stream().skip(n), pool);
+    }
+
+    /** Keeps the first {@code n} elements. */
+    public Pipeline<T> limit(long n) {
+        if (n < 0) {
+            throw new IllegalArgumentException("limit must not be negative");
+        }
+        if (query != null) {
+            return new Pipeline<>(null, pool, query.limit(n), null, 0);
+        }
+        if (order != null && n <= TopN.MAX_SIZE - skip) {
+            Stream<T> unsorted = stream;
+            Comparator<? super T> by = order;
+            int size = (int) (skip + n);
+            Stream<T> top = Stream.of(unsorted).flatMap(s -> TopN.of(s, by, size).stream());
+            return new Pipeline<>(top.skip(skip), pool);
+        }
+        return new Pipeline<>(stream().limit(n), pool);
     }
 
     public <K> Map<K, List<T>> groupBy(Function<T, K> classifier) {
-        return stream.collect(Collectors.groupingBy(classifier));
+        if (pool == null) {
+            return stream().collect(Collectors.groupingBy(classifier));
+        }
+        return run(() -> stream().collect(Collectors.groupingByConcurrent(classifier)));
+    }
+
+    /** Aggregates per group of {@code classifier}, without collecting the members of each group. */
+    public <K> Aggregation<T, K> aggregateBy(Function<T, K> classifier) {
+        return new Aggregation<>(stream(), pool, () -> GroupIndex.byKey(classifier));
+    }
+
+    /** Like {@link #aggregateBy}, for numeric keys, which are grouped without boxing. */
+    public Aggregation<T, Long> aggregateByLong(ToLongFunction<T> key) {
+        return new Aggregation<>(stream(), pool, () -> GroupIndex.byLong(key));
     }
 
     public <R> R reduce(R identity, BiFunction<R, T, R> accumulator, BinaryOperator<R> combiner) {
-        return stream.reduce(identity, accumulator, combiner);
+        return run(() -> stream().reduce(identity, accumulator, combiner));
     }
 
     public double sum(ToDoubleFunction<T> mapper) {
-        return stream.mapToDouble(mapper).sum();
+        return run(() -> stream().mapToDouble(mapper).sum());
     }
 
     public double average(ToDoubleFunction<T> mapper) {
-        return stream.mapToDouble(mapper).average().orElse(0d);
+        return run(() -> stream().mapToDouble(mapper).average().orElse(0d));
     }
 
     public List<T> toList() {
-        return stream.collect(Collectors.toList());
+        return run(() -> stream().collect(Collectors.toList()));
+    }
+
+    /** {@code a + b} for non-negative counts, saturating at {@link Long#MAX_VALUE}. */
+    private static long plus(long a, long b) {
+        return b > Long.MAX_VALUE - a ? Long.MAX_VALUE : a + b;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Stream<T> stream() {
+        if (query != null) {
+            return (Stream<T>) query.open();
+        }
+        if (order != null) {
+            Stream<T> sorted = stream.sorted(order);
+            return skip > 0 ? sorted.skip(skip) : sorted;
+        }
+        return stream;
+    }
+
+    /** Orders entities by a field the way its index is ordered, missing values last. */
+    private static <T> Comparator<T> byField(String field, boolean descending) {
+        Comparator<Entity> order = IndexManager.valueOrder(field, descending);
+        return (a, b) -> {
+            if (!(a instanceof Entity first) || !(b instanceof Entity second)) {
+                throw new IllegalArgumentException("orderBy needs a pipeline of entities");
+            }
+            return order.compare(first, second);
+        };
+    }
+
+    private <R> R run(Supplier<R> operation) {
+        return run(pool, operation);
+    }
+
+    /** Runs a terminal operation, inside the pool of a parallel pipeline so its tasks fork there. */
+    static <R> R run(ForkJoinPool pool, Supplier<R> operation) {
+        return pool == null ? operation.get() : pool.invoke(ForkJoinTask.adapt(operation::get));
     }
 }
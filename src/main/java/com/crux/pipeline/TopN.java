@@ -0,0 +1,73 @@
+package com.crux.pipeline;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.stream.Stream;
+
+/**
+ * The first {@code size} elements of a stream under an order, kept in a
+ * bounded heap whose root is the worst element kept, so every other
+ * element costs one comparison and memory stays proportional to
+ * {@code size}. Elements remember their position in the stream and ties
+ * are broken by it, which keeps the result the same as a stable sort,
+ * also when the accumulators of a parallel stream are merged.
+ */
+final class TopN<T> {
+    /** Largest {@code size} worth a heap; beyond it a plain sort is used. */
+    static final int MAX_SIZE = 1 << 20;
+
+    private record Ranked<T>(T element, long position) {}
+
+    private final Comparator<Ranked<T>> order;
+    private final int size;
+    private final PriorityQueue<Ranked<T>> heap;
+    private long seen;
+
+    private TopN(Comparator<? super T> order, int size) {
+        Comparator<Ranked<T>> byElement = (a, b) -> order.compare(a.element(), b.element());
+        this.order = byElement.thenComparingLong(Ranked::position);
+        this.size = size;
+        this.heap = new PriorityQueue<>(Math.min(size, 1024) + 1, this.order.reversed());
+    }
+
+    /** Folds {@code stream} and returns its first {@code size} elements in order. */
+    static <T> List<T> of(Stream<T> stream, Comparator<? super T> order, int size) {
+        if (size == 0) {
+            return List.of();
+        }
+        return stream.collect(() -> new TopN<T>(order, size), TopN::accept, TopN::merge).sorted();
+    }
+
+    void accept(T element) {
+        offer(new Ranked<>(element, seen++));
+    }
+
+    /** Adds the elements of {@code later}, which come after the ones seen here. */
+    void merge(TopN<T> later) {
+        for (Ranked<T> ranked : later.heap) {
+            offer(new Ranked<>(ranked.element(), seen + ranked.position()));
+        }
+        seen += later.seen;
+    }
+
+    private void offer(Ranked<T> ranked) {
+        if (heap.size() < size) {
+            heap.add(ranked);
+        } else if (order.compare(ranked, heap.peek()) < 0) {
+            heap.poll();
+            heap.add(ranked);
+        }
+    }
+
+    List<T> sorted() {
+        List<Ranked<T>> ranked = new ArrayList<>(heap);
+        ranked.sort(order);
+        List<T> result = new ArrayList<>(ranked.size());
+        for (Ranked<T> r : ranked) {
+            result.add(r.element());
+        }
+        return result;
+    }
+}
@@ -1,11 +1,16 @@
 package com.crux.query;
 
+import com.crux.index.IndexManager;
+import com.crux.index.LikePattern;
+import com.crux.index.OrdinalSet;
 import com.crux.store.Entity;
 
 import java.util.*;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.Predicate;
+import java.util.function.ToDoubleFunction;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Pattern;
 
 /**
  * Simple recursive descent parser for the filter grammar used by
@@ -92,6 +97,63 @@ public class FilterParser {
         }
     }
 
+    /**
+     * A filter together with the clauses that may follow it; a negative
+     * {@code limit} means no limit.
+     */
+    public record Query(QueryExpression filter, String orderBy, boolean descending, long offset, long limit) {}
+
+    /**
+     * Parses a filter followed by optional result clauses:
+     * {@code <filter> [order by <field> [asc|desc]] [limit <n>] [offset <n>]}.
+     * As in SQL, the offset applies before the limit whichever comes first.
+     */
+    public Query parseQuery(String input) {
+        try {
+            Lexer lexer = new Lexer(input);
+            QueryExpression filter = parseOr(lexer);
+            String orderBy = null;
+            boolean descending = false;
+            if ("order".equalsIgnoreCase(lexer.peek())) {
+                lexer.next();
+                if (!"by".equalsIgnoreCase(lexer.next())) throw new RuntimeException("Expected by after order");
+                orderBy = lexer.next();
+                if (orderBy == null) throw new RuntimeException("missing order by field");
+                String direction = lexer.peek();
+                if ("asc".equalsIgnoreCase(direction) || "desc".equalsIgnoreCase(direction)) {
+                    lexer.next();
+                    descending = "desc".equalsIgnoreCase(direction);
+                }
+            }
+            long offset = -1;
+            long limit = -1;
+            while (lexer.hasNext()) {
+                String clause = lexer.next();
+                if ("limit".equalsIgnoreCase(clause) && limit < 0) {
+                    limit = count(lexer, "limit");
+                } else if ("offset".equalsIgnoreCase(clause) && offset < 0) {
+                    offset = count(lexer, "offset");
+                } else {
+                    throw new RuntimeException("Unexpected " + clause);
+                }
+            }
+            return new Query(filter, orderBy, descending, Math.max(0, offset), limit);
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.SEVERE, "Failed to parse query: " + input, e);
+            throw e;
+        }
+    }
+
+    private static long count(Lexer l, String clause) {
+        String token = l.next();
+        try {
+            long n = Long.parseLong(token);
+            if (n >= 0) return n;
+        } catch (NumberFormatException ignored) {
+        }
+        throw new RuntimeException(clause + " expects a non-negative integer, got " + token);
+    }
+
     /** Parses a standalone value expression. */
     public ValueExpression parseValueExpression(String input) {
         try {
@@ -164,7 +226,7 @@ public class FilterParser {
             QueryExpression cmp = comparisonExpression(e.getKey(), "==", ValueExpression.literal(e.getValue()));
             result = result==null? cmp : QueryExpression.and(result, cmp);
         }
-        return result==null ? (i,s)->new HashSet<>() : result;
+        return result==null ? (i,s)->new OrdinalSet() : result;
     }
 
     private QueryExpression parseComparison(Lexer l) {
@@ -178,6 +240,7 @@ public class FilterParser {
     }
 
     private QueryExpression comparisonExpression(String field, String op, ValueExpression value) {
+        String[] path = field.split("\\.");
         if ("contains".equalsIgnoreCase(op)) {
             if (value.isLiteral()) {
                 Object literal = value.literalValue();
@@ -186,14 +249,31 @@ public class FilterParser {
                 }
             }
             return QueryExpression.fromPredicate(e -> {
-                Object left = getFieldValue(e, field);
+                Object left = e.getPath(path);
                 Object right = value.eval(e);
                 if (!(left instanceof String) || right == null) {
                     return false;
                 }
                 return ((String) left).toLowerCase(Locale.ROOT)
                         .contains(right.toString().toLowerCase(Locale.ROOT));
-            });
+            }, field + " contains " + value);
+        }
+        if ("matches".equalsIgnoreCase(op)) {
+            if (value.isLiteral()) {
+                Object literal = value.literalValue();
+                if (literal != null) {
+                    return QueryExpression.fullText(field, literal.toString());
+                }
+            }
+            return QueryExpression.fromPredicate(e -> {
+                Object left = e.getPath(path);
+                Object right = value.eval(e);
+                if (!(left instanceof String) || right == null) {
+                    return false;
+                }
+                Set<String> words = IndexManager.words((String) left);
+                return IndexManager.words(right.toString()).stream().anyMatch(words::contains);
+            }, field + " matches " + value);
         }
         if ("like".equalsIgnoreCase(op)) {
             if (value.isLiteral()) {
@@ -203,14 +283,14 @@ public class FilterParser {
                 }
             }
             return QueryExpression.fromPredicate(e -> {
-                Object left = getFieldValue(e, field);
+                Object left = e.getPath(path);
                 Object right = value.eval(e);
                 if (!(left instanceof String) || right == null) {
                     return false;
                 }
                 return likeMatches(((String) left).toLowerCase(Locale.ROOT),
                         right.toString().toLowerCase(Locale.ROOT));
-            });
+            }, field + " like " + value);
         }
         String normalized = normalizeOperator(op);
         if (value.isLiteral()) {
@@ -222,11 +302,41 @@ public class FilterParser {
                 }
             }
         }
-        return QueryExpression.fromPredicate(e -> {
-            Object left = getFieldValue(e, field);
-            Object right = value.eval(e);
-            return compare(left, right, normalized);
-        });
+        return QueryExpression.fromPredicate(comparison(path, normalized, value),
+                field + " " + normalized + " " + value);
+    }
+
+    /**
+     * Compiles a comparison the indexes cannot answer into a predicate, with
+     * the operator resolved once. Against a value that is always a number
+     * the comparison runs on primitive doubles.
+     */
+    private Predicate<Entity> comparison(String[] path, String op, ValueExpression value) {
+        ToDoubleFunction<Entity> number = numeric(value);
+        if (number == null) {
+            return e -> compare(e.getPath(path), value.eval(e), op);
+        }
+        DoubleComparison test = switch (op) {
+            case "==" -> (a, b) -> a == b;
+            case "!=" -> (a, b) -> a != b;
+            case ">" -> (a, b) -> a > b;
+            case ">=" -> (a, b) -> a >= b;
+            case "<" -> (a, b) -> a < b;
+            case "<=" -> (a, b) -> a <= b;
+            default -> null;
+        };
+        if (test == null) {
+            return e -> false;
+        }
+        boolean missing = "!=".equals(op);
+        return e -> {
+            Object left = e.getPath(path);
+            return left == null ? missing : test.test(toDouble(left), number.applyAsDouble(e));
+        };
+    }
+
+    private interface DoubleComparison {
+        boolean test(double a, double b);
     }
 
     private String normalizeOperator(String op) {
@@ -239,7 +349,6 @@ public class FilterParser {
     }
 
     private boolean compare(Object l, Object r, String op) {
-        op = normalizeOperator(op);
         if (l == null || r == null) {
             return switch (op) {
                 case "==" -> Objects.equals(l, r);
@@ -248,8 +357,8 @@ public class FilterParser {
             };
         }
         if (l instanceof Number || r instanceof Number) {
-            double dl = ((Number) convertNumber(l)).doubleValue();
-            double dr = ((Number) convertNumber(r)).doubleValue();
+            double dl = toDouble(l);
+            double dr = toDouble(r);
             return switch (op) {
                 case "==" -> dl == dr;
                 case "!=" -> dl != dr;
@@ -279,45 +388,36 @@ public class FilterParser {
         };
     }
 
-    private static Number convertNumber(Object o) {
-        if (o instanceof Number n) return n;
-        return Double.parseDouble(o.toString());
+    private static double toDouble(Object o) {
+        return o instanceof Number n ? n.doubleValue() : Double.parseDouble(o.toString());
     }
 
-    private boolean likeMatches(String text, String pattern) {
-        if (text == null || pattern == null) {
-            return false;
+    /** The value as a primitive function if it always evaluates to a number, otherwise null. */
+    private static ToDoubleFunction<Entity> numeric(ValueExpression value) {
+        if (value instanceof LiteralValue literal && literal.value instanceof Number n) {
+            double constant = n.doubleValue();
+            return e -> constant;
         }
-        Pattern regex = Pattern.compile(toLikeRegex(pattern));
-        return regex.matcher(text).matches();
+        return value instanceof BinaryValue binary ? binary.numeric : null;
     }
 
-    private String toLikeRegex(String pattern) {
-        StringBuilder sb = new StringBuilder();
-        sb.append('^');
-        for (int i = 0; i < pattern.length(); i++) {
-            char c = pattern.charAt(i);
-            switch (c) {
-                case '%':
-                    sb.append(".*");
-                    break;
-                case '_':
-                    sb.append('.');
-                    break;
-                case '\\':
-                    if (i + 1 < pattern.length()) {
-                        sb.append(Pattern.quote(String.valueOf(pattern.charAt(++i))));
-                    }
-                    break;
-                default:
-                    if (".[]{}()*+-?^$|".indexOf(c) >= 0) {
-                        sb.append('\\');
-                    }
-                    sb.append(c);
-            }
+    /** The value as a primitive function, reading a missing value as zero like the arithmetic does. */
+    private static ToDoubleFunction<Entity> asDouble(ValueExpression value) {
+        ToDoubleFunction<Entity> number = numeric(value);
+        if (number != null) {
+            return number;
         }
-        sb.append('$');
-        return sb.toString();
+        return e -> {
+            Object v = value.eval(e);
+            return v == null ? 0 : toDouble(v);
+        };
+    }
+
+    private boolean likeMatches(String text, String pattern) {
+        if (text == null || pattern == null) {
+            return false;
+        }
+        return LikePattern.compile(pattern).matches(text);
     }
 
     private ValueExpression parseValueExpr(Lexer l) {
@@ -385,20 +485,6 @@ public class FilterParser {
         }
     }
 
-    private static Object getFieldValue(Entity e, String path) {
-        String[] parts = path.split("\\.");
-        Object current = e.getFields();
-        for (String p : parts) {
-            if (current instanceof Map m) {
-                current = m.get(p);
-            } else if (current instanceof List l) {
-                int idx = Integer.parseInt(p);
-                current = l.get(idx);
-            } else return null;
-        }
-        return current;
-    }
-
     /** Value expression node. */
     public interface ValueExpression {
         Object eval(Entity entity);
@@ -435,54 +521,97 @@ public class FilterParser {
         public Object eval(Entity entity) {
             return value;
         }
+
+        @Override
+        public String toString() {
+            return value instanceof String ? "'" + value + "'" : String.valueOf(value);
+        }
     }
 
     private static final class FieldValue implements ValueExpression {
         private final String path;
+        private final String[] segments;
 
         private FieldValue(String path) {
             this.path = path;
+            this.segments = path.split("\\.");
         }
 
         @Override
         public Object eval(Entity entity) {
-            return FilterParser.getFieldValue(entity, path);
+            return entity.getPath(segments);
+        }
+
+        @Override
+        public String toString() {
+            return "&" + path;
         }
     }
 
+    /**
+     * Arithmetic node. The operator is resolved when the node is built. When
+     * an operand is always a number, so is the result, and the node is
+     * compiled into a primitive function over its operands' primitive
+     * functions: nested arithmetic then runs on doubles and boxes only the
+     * final result.
+     */
     private static final class BinaryValue implements ValueExpression {
         private final ValueExpression left;
         private final String op;
         private final ValueExpression right;
+        private final DoubleBinaryOperator arithmetic;
+        /** Null unless an operand is always a number. */
+        private final ToDoubleFunction<Entity> numeric;
 
         private BinaryValue(ValueExpression left, String op, ValueExpression right) {
             this.left = left;
             this.op = op;
             this.right = right;
+            this.arithmetic = switch (op) {
+                case "+" -> Double::sum;
+                case "-" -> (a, b) -> a - b;
+                case "*" -> (a, b) -> a * b;
+                case "/" -> (a, b) -> a / b;
+                default -> null;
+            };
+            this.numeric = numeric(left) != null || numeric(right) != null ? compile() : null;
+        }
+
+        private ToDoubleFunction<Entity> compile() {
+            ToDoubleFunction<Entity> l = asDouble(left);
+            ToDoubleFunction<Entity> r = asDouble(right);
+            return switch (op) {
+                case "+" -> e -> l.applyAsDouble(e) + r.applyAsDouble(e);
+                case "-" -> e -> l.applyAsDouble(e) - r.applyAsDouble(e);
+                case "*" -> e -> l.applyAsDouble(e) * r.applyAsDouble(e);
+                case "/" -> e -> l.applyAsDouble(e) / r.applyAsDouble(e);
+                default -> e -> 0d;
+            };
         }
 
         @Override
         public Object eval(Entity entity) {
+            if (numeric != null) {
+                return numeric.applyAsDouble(entity);
+            }
             Object lv = left.eval(entity);
             Object rv = right.eval(entity);
             if (lv instanceof Number || rv instanceof Number) {
-                if (lv == null) lv = 0;
-                if (rv == null) rv = 0;
-                double a = ((Number) FilterParser.convertNumber(lv)).doubleValue();
-                double b = ((Number) FilterParser.convertNumber(rv)).doubleValue();
-                return switch (op) {
-                    case "+" -> a + b;
-                    case "-" -> a - b;
-                    case "*" -> a * b;
-                    case "/" -> a / b;
-                    default -> 0d;
-                };
+                if (arithmetic == null) {
+                    return 0d;
+                }
+                return arithmetic.applyAsDouble(lv == null ? 0 : toDouble(lv), rv == null ? 0 : toDouble(rv));
             }
             if ("+".equals(op)) {
                 return String.valueOf(lv) + rv;
             }
             return null;
         }
+
+        @Override
+        public String toString() {
+            return "(" + left + " " + op + " " + right + ")";
+        }
     }
 }
 
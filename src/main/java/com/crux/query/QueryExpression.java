@@ -1,6 +1,9 @@
 package com.crux.query;
 
+import com.crux.index.DocIdIterator;
 import com.crux.index.IndexManager;
+import com.crux.index.LikePattern;
+import com.crux.index.OrdinalSet;
 import com.crux.store.DocumentStore;
 import com.crux.store.Entity;
 
@@ -10,9 +13,43 @@ import java.util.function.Predicate;
 /**
  * Functional interface representing a query expression that can
  * evaluate itself using indexes and the document store.
+ * <p>
+ * Expressions evaluate to the {@linkplain IndexManager#ordinalOf ordinals}
+ * of the matching entities, so combining them is a bitmap operation.
+ * {@link #select} must return a set the caller is free to modify.
+ * <p>
+ * {@link #iterate} is the lazy counterpart: it returns a cursor over the
+ * matching ordinals in ascending order. Boolean combinations compose the
+ * cursors of their operands instead of building intermediate sets, and
+ * conjunctions leapfrog so that the most selective operand drives the
+ * others.
+ * <p>
+ * The factories return records, so a tree can be inspected and rewritten;
+ * {@link QueryPlanner} uses that to reorder conjunctions. Every node can
+ * also test a single entity with {@link #matches}, which lets the planner
+ * check a handful of candidates directly instead of searching an index.
  */
 public interface QueryExpression {
-    Set<String> evaluate(IndexManager indexes, DocumentStore store);
+    OrdinalSet select(IndexManager indexes, DocumentStore store);
+
+    /** Returns a cursor over the matching ordinals; by default over {@link #select}. */
+    default DocIdIterator iterate(IndexManager indexes, DocumentStore store) {
+        return select(indexes, store).iterator();
+    }
+
+    /**
+     * Tests one entity against the expression. The default evaluates the
+     * whole expression, so nodes override it with a direct check.
+     */
+    default boolean matches(Entity entity, IndexManager indexes, DocumentStore store) {
+        int ordinal = indexes.ordinalOf(entity.getId());
+        return ordinal >= 0 && select(indexes, store).contains(ordinal);
+    }
+
+    /** Evaluates the expression and resolves the matching ordinals to ids. */
+    default Set<String> evaluate(IndexManager indexes, DocumentStore store) {
+        return indexes.ids(select(indexes, store));
+    }
 
     enum Operator {
         EQ("=="),
@@ -43,77 +80,245 @@ public interface QueryExpression {
     }
 
     static QueryExpression field(String field, Operator op, Comparable value) {
-        return (indexes, store) -> {
+        return new Field(field, op, value);
+    }
+
+    static QueryExpression contains(String field, String substring) {
+        return new Contains(field, substring);
+    }
+
+    static QueryExpression like(String field, String pattern) {
+        return new Like(field, pattern);
+    }
+
+    /** Entities whose {@code field} shares at least one word with {@code query}. */
+    static QueryExpression fullText(String field, String query) {
+        return new FullText(field, query);
+    }
+
+    static QueryExpression and(QueryExpression... exprs) {
+        return new And(List.of(exprs));
+    }
+
+    static QueryExpression or(QueryExpression... exprs) {
+        return new Or(List.of(exprs));
+    }
+
+    static QueryExpression not(QueryExpression expr) {
+        return new Not(expr);
+    }
+
+    static QueryExpression fromPredicate(Predicate<Entity> predicate) {
+        return new Scan(predicate, "predicate");
+    }
+
+    /** Like {@link #fromPredicate(Predicate)}, with the text shown for it by {@link QueryPlanner#explain}. */
+    static QueryExpression fromPredicate(Predicate<Entity> predicate, String description) {
+        return new Scan(predicate, description);
+    }
+
+    /** Compares an indexed field with a constant. */
+    record Field(String field, Operator op, Comparable value) implements QueryExpression {
+        @Override
+        public OrdinalSet select(IndexManager indexes, DocumentStore store) {
             return switch (op) {
                 case EQ -> indexes.searchEquals(field, value);
                 case GT -> indexes.searchGreaterThan(field, value);
                 case GTE -> indexes.searchGreaterOrEquals(field, value);
                 case LT -> indexes.searchLessThan(field, value);
                 case LTE -> indexes.searchLessOrEquals(field, value);
-                case NE -> {
-                    Set<String> all = new HashSet<>(store.getAllIds());
-                    all.removeAll(indexes.searchEquals(field, value));
-                    yield all;
-                }
+                case NE -> indexes.all().andNot(indexes.searchEquals(field, value));
             };
-        };
+        }
+
+        @Override
+        public DocIdIterator iterate(IndexManager indexes, DocumentStore store) {
+            if (op == Operator.NE) {
+                return DocIdIterator.andNot(indexes.all().iterator(), indexes.searchEquals(field, value).iterator());
+            }
+            return select(indexes, store).iterator();
+        }
+
+        /** Applies the comparison the way the index does: numbers as doubles, mismatched types never match. */
+        @Override
+        @SuppressWarnings("unchecked")
+        public boolean matches(Entity entity, IndexManager indexes, DocumentStore store) {
+            Object actual = entity.getPath(field);
+            Comparable left = actual == null ? null : IndexManager.normalizeComparable(actual);
+            Comparable right = value == null ? null : IndexManager.normalizeComparable(value);
+            boolean comparable = left != null && right != null && left.getClass() == right.getClass();
+            if (op == Operator.NE) {
+                return !comparable || left.compareTo(right) != 0;
+            }
+            if (!comparable) {
+                return false;
+            }
+            int cmp = left.compareTo(right);
+            return switch (op) {
+                case EQ -> cmp == 0;
+                case GT -> cmp > 0;
+                case GTE -> cmp >= 0;
+                case LT -> cmp < 0;
+                case LTE -> cmp <= 0;
+                case NE -> cmp != 0;
+            };
+        }
     }
 
-    static QueryExpression contains(String field, String substring) {
-        return (indexes, store) -> {
+    /** Case-insensitive substring search over a string field. */
+    record Contains(String field, String substring) implements QueryExpression {
+        @Override
+        public OrdinalSet select(IndexManager indexes, DocumentStore store) {
             return indexes.searchContains(field, substring);
-        };
+        }
+
+        @Override
+        public boolean matches(Entity entity, IndexManager indexes, DocumentStore store) {
+            return substring != null && entity.getPath(field) instanceof String text
+                    && text.toLowerCase(Locale.ROOT).contains(substring.toLowerCase(Locale.ROOT));
+        }
     }
 
-    static QueryExpression like(String field, String pattern) {
-        return (indexes, store) -> indexes.searchLike(field, pattern);
+    /** Case-insensitive SQL {@code LIKE} match over a string field. */
+    record Like(String field, String pattern) implements QueryExpression {
+        @Override
+        public OrdinalSet select(IndexManager indexes, DocumentStore store) {
+            return indexes.searchLike(field, pattern);
+        }
+
+        @Override
+        public boolean matches(Entity entity, IndexManager indexes, DocumentStore store) {
+            return pattern != null && entity.getPath(field) instanceof String text
+                    && LikePattern.compile(pattern).matches(text.toLowerCase(Locale.ROOT));
+        }
     }
 
-    static QueryExpression and(QueryExpression... exprs) {
-        return (indexes, store) -> {
-            if (exprs.length == 0) {
-                return Collections.emptySet();
+    /** Keyword search over the full-text index of a string field. */
+    record FullText(String field, String query) implements QueryExpression {
+        @Override
+        public OrdinalSet select(IndexManager indexes, DocumentStore store) {
+            return indexes.searchMatches(field, query);
+        }
+
+        @Override
+        public boolean matches(Entity entity, IndexManager indexes, DocumentStore store) {
+            if (query == null || !(entity.getPath(field) instanceof String text)) {
+                return false;
             }
-            Set<String> result = null;
-            for (QueryExpression e : exprs) {
-                Set<String> set = e.evaluate(indexes, store);
-                if (result == null) {
-                    result = new HashSet<>(set);
-                } else {
-                    result.retainAll(set);
+            Set<String> words = IndexManager.words(text);
+            for (String word : IndexManager.words(query)) {
+                if (words.contains(word)) {
+                    return true;
                 }
             }
-            return result == null ? Collections.emptySet() : result;
-        };
+            return false;
+        }
     }
 
-    static QueryExpression or(QueryExpression... exprs) {
-        return (indexes, store) -> {
-            Set<String> result = new HashSet<>();
-            for (QueryExpression e : exprs) {
-                result.addAll(e.evaluate(indexes, store));
+    /** Entities matching every operand; no operands match nothing. */
+    record And(List<QueryExpression> operands) implements QueryExpression {
+        @Override
+        public OrdinalSet select(IndexManager indexes, DocumentStore store) {
+            OrdinalSet result = null;
+            for (QueryExpression e : operands) {
+                OrdinalSet set = e.select(indexes, store);
+                result = result == null ? set : result.and(set);
+                if (result.isEmpty()) {
+                    break;
+                }
+            }
+            return result == null ? new OrdinalSet() : result;
+        }
+
+        @Override
+        public DocIdIterator iterate(IndexManager indexes, DocumentStore store) {
+            List<DocIdIterator> iterators = new ArrayList<>(operands.size());
+            for (QueryExpression e : operands) {
+                iterators.add(e.iterate(indexes, store));
+            }
+            return DocIdIterator.and(iterators);
+        }
+
+        @Override
+        public boolean matches(Entity entity, IndexManager indexes, DocumentStore store) {
+            if (operands.isEmpty()) {
+                return false;
+            }
+            for (QueryExpression e : operands) {
+                if (!e.matches(entity, indexes, store)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /** Entities matching at least one operand. */
+    record Or(List<QueryExpression> operands) implements QueryExpression {
+        @Override
+        public OrdinalSet select(IndexManager indexes, DocumentStore store) {
+            OrdinalSet result = new OrdinalSet();
+            for (QueryExpression e : operands) {
+                result.or(e.select(indexes, store));
             }
             return result;
-        };
+        }
+
+        @Override
+        public DocIdIterator iterate(IndexManager indexes, DocumentStore store) {
+            List<DocIdIterator> iterators = new ArrayList<>(operands.size());
+            for (QueryExpression e : operands) {
+                iterators.add(e.iterate(indexes, store));
+            }
+            return DocIdIterator.or(iterators);
+        }
+
+        @Override
+        public boolean matches(Entity entity, IndexManager indexes, DocumentStore store) {
+            for (QueryExpression e : operands) {
+                if (e.matches(entity, indexes, store)) {
+                    return true;
+                }
+            }
+            return false;
+        }
     }
 
-    static QueryExpression not(QueryExpression expr) {
-        return (indexes, store) -> {
-            Set<String> all = new HashSet<>(store.getAllIds());
-            all.removeAll(expr.evaluate(indexes, store));
-            return all;
-        };
+    /** Every indexed entity the operand does not match. */
+    record Not(QueryExpression operand) implements QueryExpression {
+        @Override
+        public OrdinalSet select(IndexManager indexes, DocumentStore store) {
+            return indexes.all().andNot(operand.select(indexes, store));
+        }
+
+        @Override
+        public DocIdIterator iterate(IndexManager indexes, DocumentStore store) {
+            return DocIdIterator.andNot(indexes.all().iterator(), operand.iterate(indexes, store));
+        }
+
+        @Override
+        public boolean matches(Entity entity, IndexManager indexes, DocumentStore store) {
+            return !operand.matches(entity, indexes, store);
+        }
     }
 
-    static QueryExpression fromPredicate(Predicate<Entity> predicate) {
-        return (indexes, store) -> {
-            Set<String> result = new HashSet<>();
+    /** Arbitrary predicate; on its own it has to test every entity in the store. */
+    record Scan(Predicate<Entity> predicate, String description) implements QueryExpression {
+        @Override
+        public OrdinalSet select(IndexManager indexes, DocumentStore store) {
+            OrdinalSet result = new OrdinalSet();
             for (Entity entity : store.findAll()) {
-                if (predicate.test(entity)) {
-                    result.add(entity.getId());
+                int ordinal = indexes.ordinalOf(entity.getId());
+                if (ordinal >= 0 && predicate.test(entity)) {
+                    result.add(ordinal);
                 }
             }
             return result;
-        };
+        }
+
+        @Override
+        public boolean matches(Entity entity, IndexManager indexes, DocumentStore store) {
+            return predicate.test(entity);
+        }
     }
 }
@@ -0,0 +1,355 @@
+package com.crux.query;
+
+import com.crux.index.DocIdIterator;
+import com.crux.index.IndexManager;
+import com.crux.index.OrdinalSet;
+import com.crux.store.DocumentStore;
+import com.crux.store.Entity;
+
+import java.util.*;
+import java.util.function.Supplier;
+
+/**
+ * Cost-based evaluation of {@link QueryExpression} trees such as the ones
+ * produced by {@link FilterParser}.
+ * <p>
+ * Conjunctions are flattened and their operands ordered by the number of
+ * matches estimated from the {@linkplain IndexManager#statistics field
+ * statistics}, so the most selective operand is searched first and fixes
+ * the running candidate set. Negated operands ({@code not x},
+ * {@code a != v}) are applied last as a difference against those
+ * candidates rather than against every entity. Once the candidates drop
+ * to {@value #SCAN_THRESHOLD} or fewer, the remaining operands are checked
+ * entity by entity with {@link QueryExpression#matches} instead of being
+ * searched; predicates that have no index are always handled that way
+ * when some candidate set exists.
+ * <p>
+ * {@link #execute} follows that order without building the intermediate
+ * sets: the indexed operands are intersected by leapfrogging their
+ * cursors, negated ones are subtracted from the resulting cursor, and
+ * predicates without an index filter what it produces. The candidate set
+ * is only materialized when the most selective operand is expected to
+ * match {@value #SCAN_THRESHOLD} entities or fewer.
+ * <p>
+ * Expressions the planner does not know are evaluated as they are.
+ * <p>
+ * {@link #explain} runs the same plan eagerly and records every step it
+ * takes, with its estimate, the number of entities it produced and the
+ * time it took.
+ */
+public final class QueryPlanner {
+    static final int SCAN_THRESHOLD = 256;
+    private static final int TEXT_SELECTIVITY = 10;
+
+    private final IndexManager indexes;
+    private final DocumentStore store;
+    /** Steps recorded by {@link #explain}, innermost last; null when not explaining. */
+    private Deque<List<QueryProfile>> trace;
+
+    public QueryPlanner(IndexManager indexes, DocumentStore store) {
+        if (indexes == null || store == null) {
+            throw new IllegalArgumentException("indexes and store must be non-null");
+        }
+        this.indexes = indexes;
+        this.store = store;
+    }
+
+    /** Returns a cursor over the ordinals of the entities matching {@code expr}. */
+    public DocIdIterator execute(QueryExpression expr) {
+        if (expr instanceof QueryExpression.And and) {
+            return cursor(flatten(and));
+        }
+        if (expr instanceof QueryExpression.Or or) {
+            List<DocIdIterator> iterators = new ArrayList<>(or.operands().size());
+            for (QueryExpression operand : or.operands()) {
+                iterators.add(execute(operand));
+            }
+            return DocIdIterator.or(iterators);
+        }
+        if (expr instanceof QueryExpression.Not not) {
+            return DocIdIterator.andNot(indexes.all().iterator(), execute(not.operand()));
+        }
+        return expr.iterate(indexes, store);
+    }
+
+    /**
+     * Evaluates {@code expr} step by step and returns the plan it followed.
+     * The query really runs, so the actual counts and timings are those of
+     * the current contents of the store.
+     */
+    public QueryProfile explain(QueryExpression expr) {
+        trace = new ArrayDeque<>();
+        trace.push(new ArrayList<>());
+        try {
+            evaluate(expr);
+            return trace.pop().get(0);
+        } finally {
+            trace = null;
+        }
+    }
+
+    /** Estimated number of entities matching {@code expr}. */
+    public long estimate(QueryExpression expr) {
+        long size = indexes.size();
+        if (expr instanceof QueryExpression.Field f) {
+            return switch (f.op()) {
+                case EQ -> indexes.estimateEquals(f.field(), f.value());
+                case NE -> Math.max(0, size - indexes.estimateEquals(f.field(), f.value()));
+                case GT, GTE -> indexes.estimateRange(f.field(), f.value(), true);
+                case LT, LTE -> indexes.estimateRange(f.field(), f.value(), false);
+            };
+        }
+        if (expr instanceof QueryExpression.Contains c) {
+            return indexes.textEntries(c.field()) / TEXT_SELECTIVITY;
+        }
+        if (expr instanceof QueryExpression.Like l) {
+            return indexes.textEntries(l.field()) / TEXT_SELECTIVITY;
+        }
+        if (expr instanceof QueryExpression.FullText t) {
+            return Math.min(size, indexes.estimateMatches(t.field(), t.query()));
+        }
+        if (expr instanceof QueryExpression.And and) {
+            long min = and.operands().isEmpty() ? 0 : size;
+            for (QueryExpression operand : and.operands()) {
+                min = Math.min(min, estimate(operand));
+            }
+            return min;
+        }
+        if (expr instanceof QueryExpression.Or or) {
+            long total = 0;
+            for (QueryExpression operand : or.operands()) {
+                total += estimate(operand);
+            }
+            return Math.min(size, total);
+        }
+        if (expr instanceof QueryExpression.Not not) {
+            return Math.max(0, size - estimate(not.operand()));
+        }
+        return size;
+    }
+
+    /**
+     * The operands of a flattened conjunction: those that must match, most
+     * selective first, and those that must not, least selective first.
+     */
+    private record Conjuncts(List<QueryExpression> included, List<QueryExpression> excluded,
+                             Map<QueryExpression, Long> estimates) {
+        boolean small() {
+            return !included.isEmpty() && !(included.get(0) instanceof QueryExpression.Scan)
+                    && estimates.get(included.get(0)) <= SCAN_THRESHOLD;
+        }
+    }
+
+    /**
+     * Lazy counterpart of {@link #conjunction}. The indexed operands are
+     * intersected by leapfrogging their cursors and the exclusions are
+     * subtracted with {@link DocIdIterator#andNot}, so no intermediate set
+     * is built; operands without an index are checked on the entities the
+     * cursor produces. Only when the most selective operand is estimated at
+     * {@value #SCAN_THRESHOLD} matches or fewer is its set materialized, and
+     * the rest checked candidate by candidate, as {@link #conjunction} does.
+     */
+    private DocIdIterator cursor(List<QueryExpression> operands) {
+        if (operands.isEmpty()) {
+            return DocIdIterator.empty();
+        }
+        Conjuncts conjuncts = order(operands);
+        if (conjuncts.small()) {
+            return conjunction(conjuncts).iterator();
+        }
+        List<DocIdIterator> indexed = new ArrayList<>();
+        for (QueryExpression operand : conjuncts.included()) {
+            if (!(operand instanceof QueryExpression.Scan)) {
+                indexed.add(execute(operand));
+            }
+        }
+        DocIdIterator result = indexed.isEmpty() ? indexes.all().iterator() : DocIdIterator.and(indexed);
+        for (QueryExpression operand : conjuncts.excluded()) {
+            if (!(operand instanceof QueryExpression.Scan)) {
+                result = DocIdIterator.andNot(result, execute(operand));
+            }
+        }
+        for (QueryExpression operand : conjuncts.included()) {
+            if (operand instanceof QueryExpression.Scan) {
+                result = DocIdIterator.filter(result, ordinal -> test(ordinal, operand, true));
+            }
+        }
+        for (QueryExpression operand : conjuncts.excluded()) {
+            if (operand instanceof QueryExpression.Scan) {
+                result = DocIdIterator.filter(result, ordinal -> test(ordinal, operand, false));
+            }
+        }
+        return result;
+    }
+
+    private OrdinalSet conjunction(List<QueryExpression> operands) {
+        if (operands.isEmpty()) {
+            return new OrdinalSet();
+        }
+        return conjunction(order(operands));
+    }
+
+    private Conjuncts order(List<QueryExpression> operands) {
+        List<QueryExpression> included = new ArrayList<>();
+        List<QueryExpression> excluded = new ArrayList<>();
+        for (QueryExpression operand : operands) {
+            if (operand instanceof QueryExpression.Not not) {
+                excluded.add(not.operand());
+            } else if (operand instanceof QueryExpression.Field f && f.op() == QueryExpression.Operator.NE) {
+                excluded.add(new QueryExpression.Field(f.field(), QueryExpression.Operator.EQ, f.value()));
+            } else {
+                included.add(operand);
+            }
+        }
+        Map<QueryExpression, Long> estimates = new IdentityHashMap<>();
+        for (QueryExpression operand : included) {
+            estimates.put(operand, estimate(operand));
+        }
+        for (QueryExpression operand : excluded) {
+            estimates.put(operand, estimate(operand));
+        }
+        included.sort(Comparator.comparingLong(estimates::get));
+        excluded.sort(Comparator.comparingLong(estimates::get).reversed());
+        return new Conjuncts(included, excluded, estimates);
+    }
+
+    private OrdinalSet conjunction(Conjuncts conjuncts) {
+        List<QueryExpression> included = conjuncts.included();
+        List<QueryExpression> excluded = conjuncts.excluded();
+        Map<QueryExpression, Long> estimates = conjuncts.estimates();
+        OrdinalSet candidates = included.isEmpty() ? indexes.all() : null;
+        for (QueryExpression operand : included) {
+            if (candidates == null) {
+                candidates = materialize(operand);
+            } else if (candidates.isEmpty()) {
+                break;
+            } else if (shouldScan(candidates, operand, estimates.get(operand))) {
+                OrdinalSet current = candidates;
+                candidates = step(QueryProfile.Kind.FILTER, describe(operand), estimates.get(operand),
+                        () -> filter(current, operand, true));
+            } else {
+                candidates.and(materialize(operand));
+            }
+        }
+        for (QueryExpression operand : excluded) {
+            if (candidates.isEmpty()) {
+                break;
+            }
+            if (shouldScan(candidates, operand, estimates.get(operand))) {
+                OrdinalSet current = candidates;
+                candidates = step(QueryProfile.Kind.FILTER, "not " + describe(operand), estimates.get(operand),
+                        () -> filter(current, operand, false));
+            } else {
+                candidates.andNot(step(QueryProfile.Kind.EXCLUDE, "", estimates.get(operand),
+                        () -> materialize(operand)));
+            }
+        }
+        return candidates;
+    }
+
+    private boolean shouldScan(OrdinalSet candidates, QueryExpression operand, long estimate) {
+        if (operand instanceof QueryExpression.Scan) {
+            return true;
+        }
+        int count = candidates.cardinality();
+        return count <= SCAN_THRESHOLD && count < estimate;
+    }
+
+    /** Keeps the candidates for which {@code operand} matches (or does not, if {@code keep} is false). */
+    private OrdinalSet filter(OrdinalSet candidates, QueryExpression operand, boolean keep) {
+        OrdinalSet result = new OrdinalSet();
+        candidates.forEach(ordinal -> {
+            if (test(ordinal, operand, keep)) {
+                result.add(ordinal);
+            }
+        });
+        return result;
+    }
+
+    /** Whether {@code operand} matches the entity with {@code ordinal} (or does not, if {@code keep} is false). */
+    private boolean test(int ordinal, QueryExpression operand, boolean keep) {
+        Entity entity = store.get(indexes.idOf(ordinal));
+        return entity != null && operand.matches(entity, indexes, store) == keep;
+    }
+
+    private OrdinalSet materialize(QueryExpression operand) {
+        return evaluate(operand);
+    }
+
+    /** Eager counterpart of {@link #execute}, recording a step per node while explaining. */
+    private OrdinalSet evaluate(QueryExpression expr) {
+        long estimate = trace == null ? 0 : estimate(expr);
+        if (expr instanceof QueryExpression.And and) {
+            return step(QueryProfile.Kind.AND, "", estimate, () -> conjunction(flatten(and)));
+        }
+        if (expr instanceof QueryExpression.Or or) {
+            return step(QueryProfile.Kind.OR, "", estimate, () -> {
+                OrdinalSet result = new OrdinalSet();
+                for (QueryExpression operand : or.operands()) {
+                    result.or(evaluate(operand));
+                }
+                return result;
+            });
+        }
+        if (expr instanceof QueryExpression.Not not) {
+            return step(QueryProfile.Kind.NOT, "", estimate,
+                    () -> indexes.all().andNot(evaluate(not.operand())));
+        }
+        QueryProfile.Kind kind = expr instanceof QueryExpression.Scan ? QueryProfile.Kind.SCAN : QueryProfile.Kind.INDEX;
+        return step(kind, describe(expr), estimate, () -> expr.select(indexes, store));
+    }
+
+    /** Runs one step of the plan, recording it when explaining. */
+    private OrdinalSet step(QueryProfile.Kind kind, String detail, long estimate, Supplier<OrdinalSet> work) {
+        if (trace == null) {
+            return work.get();
+        }
+        trace.push(new ArrayList<>());
+        long start = System.nanoTime();
+        OrdinalSet result = work.get();
+        long nanos = System.nanoTime() - start;
+        List<QueryProfile> children = trace.pop();
+        trace.peek().add(new QueryProfile(kind, detail, estimate, result.cardinality(), nanos, children));
+        return result;
+    }
+
+    private static String describe(QueryExpression expr) {
+        if (expr instanceof QueryExpression.Field f) {
+            return f.field() + " " + f.op().symbol() + " " + literal(f.value());
+        }
+        if (expr instanceof QueryExpression.Contains c) {
+            return c.field() + " contains " + literal(c.substring());
+        }
+        if (expr instanceof QueryExpression.Like l) {
+            return l.field() + " like " + literal(l.pattern());
+        }
+        if (expr instanceof QueryExpression.FullText t) {
+            return t.field() + " matches " + literal(t.query());
+        }
+        if (expr instanceof QueryExpression.Scan scan) {
+            return scan.description();
+        }
+        if (expr instanceof QueryExpression.And
+                || expr instanceof QueryExpression.Or
+                || expr instanceof QueryExpression.Not) {
+            return "";
+        }
+        return "expression";
+    }
+
+    private static String literal(Object value) {
+        return value instanceof String ? "'" + value + "'" : String.valueOf(value);
+    }
+
+    private static List<QueryExpression> flatten(QueryExpression.And and) {
+        List<QueryExpression> operands = new ArrayList<>();
+        for (QueryExpression operand : and.operands()) {
+            if (operand instanceof QueryExpression.And nested && !nested.operands().isEmpty()) {
+                operands.addAll(flatten(nested));
+            } else {
+                operands.add(operand);
+            }
+        }
+        return operands;
+    }
+}
@@ -0,0 +1,67 @@
+package com.crux.query;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * One step of an explained query, as returned by {@link QueryPlanner#explain}.
+ * <p>
+ * {@code estimated} is the planner's guess from the field statistics and
+ * {@code actual} the number of entities the step produced; {@code nanos} is
+ * the wall time spent in the step including its children. A {@link Kind#SCAN}
+ * step tested every entity in the store, which is what a predicate without
+ * an index (a {@code &field} reference or arithmetic on the right-hand side)
+ * falls back to when nothing narrows it down first.
+ */
+public record QueryProfile(Kind kind, String detail, long estimated, long actual, long nanos,
+                           List<QueryProfile> children) {
+
+    public enum Kind {
+        /** Intersection of the children, most selective first. */
+        AND,
+        /** Union of the children. */
+        OR,
+        /** Every entity except those matched by the child. */
+        NOT,
+        /** Removes the entities matched by the child from the running candidates. */
+        EXCLUDE,
+        /** Searched an index. */
+        INDEX,
+        /** Tested every entity in the store. */
+        SCAN,
+        /** Tested the running candidates one by one. */
+        FILTER
+    }
+
+    public QueryProfile {
+        children = List.copyOf(children);
+    }
+
+    /** Whether this step or any below it had to test every entity in the store. */
+    public boolean scans() {
+        return kind == Kind.SCAN || children.stream().anyMatch(QueryProfile::scans);
+    }
+
+    /** Renders the plan as an indented tree, one step per line. */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        append(sb, 0);
+        return sb.toString();
+    }
+
+    private void append(StringBuilder sb, int depth) {
+        if (depth > 0) {
+            sb.append('\n').append("  ".repeat(depth - 1)).append("-> ");
+        }
+        sb.append(kind);
+        if (detail != null && !detail.isEmpty()) {
+            sb.append(' ').append(detail);
+        }
+        sb.append(String.format(Locale.ROOT, "  (estimated %d, actual %d, %.3f ms)",
+                estimated, actual, nanos / 1_000_000.0));
+        for (QueryProfile child : children) {
+            child.append(sb, depth + 1);
+        }
+    }
+}
@@ -1,43 +1,112 @@
 package com.crux.store;
 
+import com.crux.index.DocIdIterator;
+import com.crux.index.HnswOptions;
 import com.crux.index.IndexManager;
+import com.crux.index.OrdinalSet;
+import com.crux.index.VectorOptions;
 import com.crux.persistence.PersistenceManager;
+import com.crux.persistence.PersistenceOptions;
 import com.crux.query.QueryExpression;
+import com.crux.query.QueryPlanner;
+import com.crux.query.QueryProfile;
+import com.crux.version.EntityChange;
+import com.crux.version.HistoryOptions;
 import com.crux.version.VersioningManager;
 
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * In-memory store for schemaless entities with automatic indexing,
  * persistence and time-travel support.
+ * <p>
+ * The store is safe for concurrent use. Entities live in a concurrent map
+ * so reads never block, while writes are serialized per entity id through
+ * a fixed set of striped locks. Mutations of different ids therefore run
+ * in parallel and mutations of the same id are applied in order to the
+ * indexes, the history and the write-ahead log.
+ * <p>
+ * Opening a store does not decode or index the entities restored from a
+ * binary snapshot. Their bodies are read on first access and the indexes
+ * are built on the first query that needs them.
+ * <p>
+ * Snapshots do not stop writers. A checkpoint fences the write-ahead log
+ * and, from then on, writers stash the previous state of every id they
+ * touch for the first time. The snapshot is written from the live map
+ * overlaid with those pre-images, which is exactly the state at the fence.
+ * <p>
+ * Call {@link #close()} when done so that records still queued for the
+ * write-ahead log under a relaxed durability policy reach disk.
  */
-public class DocumentStore {
+public class DocumentStore implements AutoCloseable {
     private static final Logger LOGGER = Logger.getLogger(DocumentStore.class.getName());
+    private static final int LOCK_STRIPES = 64;
+    private static final Object ABSENT = new Object();
+    private static final Executor BACKGROUND = task -> {
+        Thread thread = new Thread(task, "crux-checkpoint");
+        thread.setDaemon(true);
+        thread.start();
+    };
 
-    private final Map<String, Entity> data = new HashMap<>();
-    private final IndexManager indexManager = new IndexManager();
-    private final VersioningManager versioningManager = new VersioningManager();
+    private final Map<String, Entity> data = new ConcurrentHashMap<>();
+    private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+    private final IndexManager indexManager;
+    private final VersioningManager versioningManager;
     private final PersistenceManager persistenceManager;
+    private final Set<String> unindexed = ConcurrentHashMap.newKeySet();
+    private volatile boolean indexesReady;
+    private final ReentrantLock checkpointLock = new ReentrantLock();
+    private volatile Map<String, Object> preImages;
 
     public DocumentStore() {
         this(Paths.get("data"));
     }
 
     public DocumentStore(Path baseDirectory) {
-        this.persistenceManager = new PersistenceManager(baseDirectory);
-        PersistenceManager.LoadedState state = persistenceManager.load();
-        for (var entry : state.data().entrySet()) {
-            Entity entity = new Entity(entry.getKey(), entry.getValue());
-            data.put(entity.getId(), entity);
-            indexManager.index(entity);
+        this(baseDirectory, PersistenceOptions.defaults());
+    }
+
+    public DocumentStore(Path baseDirectory, PersistenceOptions options) {
+        this(baseDirectory, options, HnswOptions.defaults());
+    }
+
+    public DocumentStore(Path baseDirectory, PersistenceOptions options, HnswOptions hnswOptions) {
+        this(baseDirectory, options, hnswOptions, VectorOptions.defaults());
+    }
+
+    public DocumentStore(Path baseDirectory, PersistenceOptions options, HnswOptions hnswOptions,
+                         VectorOptions vectorOptions) {
+        this(baseDirectory, options, hnswOptions, vectorOptions, HistoryOptions.defaults());
+    }
+
+    public DocumentStore(Path baseDirectory, PersistenceOptions options, HnswOptions hnswOptions,
+                         VectorOptions vectorOptions, HistoryOptions historyOptions) {
+        this.versioningManager = new VersioningManager(historyOptions);
+        this.indexManager = new IndexManager(hnswOptions, vectorOptions, id -> {
+            Entity entity = data.get(id);
+            return entity == null ? null : IndexManager.vectorOf(entity);
+        });
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new ReentrantLock();
         }
-        versioningManager.bootstrap(state.history());
+        this.persistenceManager = new PersistenceManager(baseDirectory, options);
+        PersistenceManager.LoadedState state = persistenceManager.load();
+        data.putAll(state.entities());
+        unindexed.addAll(state.entities().keySet());
+        indexesReady = unindexed.isEmpty();
+        versioningManager.bootstrap(state);
     }
 
     public void insert(Entity entity) {
@@ -45,14 +114,24 @@ public class DocumentStore {
             LOGGER.severe("Attempted to insert null entity");
             throw new IllegalArgumentException("entity cannot be null");
         }
+        if (entity.getId() == null) {
+            LOGGER.severe("Attempted to insert entity without id");
+            throw new IllegalArgumentException("entity id cannot be null");
+        }
+        ReentrantLock lock = lockFor(entity.getId());
+        lock.lock();
         try {
-            data.put(entity.getId(), entity);
+            capturePreImage(entity.getId());
+            Entity old = data.put(entity.getId(), entity);
+            unindex(entity.getId(), old);
             indexManager.index(entity);
             versioningManager.recordInsert(entity);
             persistenceManager.appendInsert(entity);
         } catch (Exception e) {
             LOGGER.log(Level.SEVERE, "Failed to insert entity " + entity.getId(), e);
             throw new RuntimeException(e);
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -61,20 +140,21 @@ public class DocumentStore {
             LOGGER.severe("Update called with null id or fields");
             throw new IllegalArgumentException("id and fields must be non-null");
         }
+        ReentrantLock lock = lockFor(id);
+        lock.lock();
         try {
-            Entity old = data.get(id);
-            if (old != null) {
-                indexManager.remove(old);
-            }
-            Map<String, Object> copy = deepCopy(newFields);
-            Entity entity = new Entity(id, copy);
-            data.put(id, entity);
+            Entity entity = new Entity(id, newFields);
+            capturePreImage(id);
+            Entity old = data.put(id, entity);
+            unindex(id, old);
             indexManager.index(entity);
-            versioningManager.recordUpdate(id, copy);
-            persistenceManager.appendUpdate(id, copy);
+            versioningManager.recordUpdate(id, entity.getFields());
+            persistenceManager.appendUpdate(id, entity.getFields());
         } catch (Exception e) {
             LOGGER.log(Level.SEVERE, "Failed to update entity " + id, e);
             throw new RuntimeException(e);
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -87,16 +167,16 @@ public class DocumentStore {
             LOGGER.severe("updatePartial called with null id or fields");
             throw new IllegalArgumentException("id and fields must be non-null");
         }
+        ReentrantLock lock = lockFor(id);
+        lock.lock();
         try {
             Entity current = data.get(id);
-            Map<String, Object> merged = current == null
-                    ? new HashMap<>()
-                    : deepCopy(current.getFields());
-            merged.putAll(fields);
-            update(id, merged);
+            update(id, current == null ? Frozen.map(fields) : Frozen.with(current.getFields(), fields));
         } catch (Exception e) {
             LOGGER.log(Level.SEVERE, "Failed to partially update entity " + id, e);
             throw new RuntimeException(e);
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -105,16 +185,21 @@ public class DocumentStore {
             LOGGER.severe("delete called with null id");
             throw new IllegalArgumentException("id must be non-null");
         }
+        ReentrantLock lock = lockFor(id);
+        lock.lock();
         try {
+            capturePreImage(id);
             Entity entity = data.remove(id);
             if (entity != null) {
-                indexManager.remove(entity);
+                unindex(id, entity);
                 versioningManager.recordDelete(id);
                 persistenceManager.appendDelete(id);
             }
         } catch (Exception e) {
             LOGGER.log(Level.SEVERE, "Failed to delete entity " + id, e);
             throw new RuntimeException(e);
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -124,14 +209,102 @@ public class DocumentStore {
             throw new IllegalArgumentException("expression must be non-null");
         }
         try {
-            Set<String> ids = expr.evaluate(indexManager, this);
-            return ids.stream().map(data::get).collect(Collectors.toList());
+            IndexManager indexes = indexes();
+            DocIdIterator matches = new QueryPlanner(indexes, this).execute(expr);
+            List<Entity> result = new ArrayList<>();
+            for (int ordinal = matches.nextDoc(); ordinal != DocIdIterator.NO_MORE_DOCS; ordinal = matches.nextDoc()) {
+                Entity entity = data.get(indexes.idOf(ordinal));
+                if (entity != null) {
+                    result.add(entity);
+                }
+            }
+            return result;
         } catch (Exception e) {
             LOGGER.log(Level.SEVERE, "Query failed", e);
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Lazily streams the entities matching {@code filter} (every entity when
+     * it is null) off the indexes, so a consumer that stops early, e.g. with
+     * {@link Stream#limit}, resolves only the entities it reads. With an
+     * {@code orderBy} field the stream follows the order of that field's
+     * index; entities without a value for it come last.
+     */
+    public Stream<Entity> stream(QueryExpression filter, String orderBy, boolean descending) {
+        try {
+            IndexManager indexes = indexes();
+            PrimitiveIterator.OfInt ordinals;
+            if (orderBy != null) {
+                OrdinalSet allowed = filter == null ? null : matching(indexes, filter);
+                if (allowed != null && allowed.cardinality() < indexes.statistics(orderBy).distinctValues()) {
+                    return sorted(indexes, allowed, orderBy, descending).stream();
+                }
+                ordinals = indexes.ordered(orderBy, descending, allowed);
+            } else {
+                DocIdIterator matches = filter == null
+                        ? indexes.all().iterator()
+                        : new QueryPlanner(indexes, this).execute(filter);
+                ordinals = IntStream.iterate(matches.nextDoc(), o -> o != DocIdIterator.NO_MORE_DOCS, o -> matches.nextDoc())
+                        .iterator();
+            }
+            return StreamSupport.intStream(Spliterators.spliteratorUnknownSize(ordinals, Spliterator.ORDERED), false)
+                    .mapToObj(ordinal -> data.get(indexes.idOf(ordinal)))
+                    .filter(Objects::nonNull);
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Query failed", e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Resolves {@code allowed} and sorts it by {@code orderBy}, for matches
+     * too few to be worth walking every distinct value of the field's
+     * index. The sort is stable over ordinal order, so ties come out as
+     * {@link IndexManager#ordered} would emit them.
+     */
+    private List<Entity> sorted(IndexManager indexes, OrdinalSet allowed, String orderBy, boolean descending) {
+        List<Entity> result = new ArrayList<>(allowed.cardinality());
+        allowed.forEach(ordinal -> {
+            Entity entity = data.get(indexes.idOf(ordinal));
+            if (entity != null) {
+                result.add(entity);
+            }
+        });
+        result.sort(IndexManager.valueOrder(orderBy, descending));
+        return result;
+    }
+
+    /**
+     * Runs {@code expr} and reports the plan it followed: which steps used an
+     * index and which scanned, with estimated and actual counts and timings.
+     */
+    public QueryProfile explain(QueryExpression expr) {
+        if (expr == null) {
+            LOGGER.severe("explain called with null expression");
+            throw new IllegalArgumentException("expression must be non-null");
+        }
+        try {
+            return new QueryPlanner(indexes(), this).explain(expr);
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Explain failed", e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Adds a trigram index to the string field {@code field}, which lets
+     * {@code contains} filters on it skip values that cannot match.
+     */
+    public void createTrigramIndex(String field) {
+        if (field == null || field.isBlank()) {
+            LOGGER.severe("createTrigramIndex called without a field");
+            throw new IllegalArgumentException("field must be non-empty");
+        }
+        indexManager.enableTrigrams(field);
+    }
+
     public Collection<Entity> findAll() {
         return Collections.unmodifiableCollection(data.values());
     }
@@ -178,12 +351,74 @@ public class DocumentStore {
         return result;
     }
 
+    /**
+     * The entities whose state changed between {@code from} and {@code to}:
+     * inserted, updated or deleted in between and not back to where they
+     * started.
+     */
+    public List<EntityChange> diffBetween(long from, long to) {
+        try {
+            return versioningManager.diffBetween(from, to);
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Failed to diff history between " + from + " and " + to, e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Writes a full snapshot and drops the write-ahead log it covers. Writers
+     * are only held off while the log is fenced; they keep running while the
+     * snapshot is written. Blocks the caller until the snapshot is on disk.
+     */
     public void saveSnapshot() {
+        checkpointLock.lock();
         try {
-            persistenceManager.saveSnapshot(data.values());
+            Map<String, Object> captured = new ConcurrentHashMap<>();
+            long fence;
+            long timestamp;
+            lockAll();
+            try {
+                fence = persistenceManager.beginCheckpoint();
+                timestamp = System.currentTimeMillis();
+                preImages = captured;
+            } finally {
+                unlockAll();
+            }
+            try {
+                persistenceManager.completeCheckpoint(pointInTimeView(captured), fence, timestamp);
+            } finally {
+                preImages = null;
+            }
         } catch (IOException e) {
             LOGGER.log(Level.SEVERE, "Failed to save snapshot", e);
             throw new RuntimeException(e);
+        } finally {
+            checkpointLock.unlock();
+        }
+    }
+
+    /** Runs {@link #saveSnapshot()} on a background thread. */
+    public CompletableFuture<Void> checkpointAsync() {
+        return CompletableFuture.runAsync(this::saveSnapshot, BACKGROUND);
+    }
+
+    /** Forces every write-ahead log record appended so far to disk. */
+    public void flush() {
+        try {
+            persistenceManager.flush();
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Failed to flush write-ahead log", e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            persistenceManager.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Failed to close persistence", e);
+            throw new RuntimeException(e);
         }
     }
 
@@ -192,100 +427,186 @@ public class DocumentStore {
     }
 
     /**
-     * Finds entities with vectors most similar to the entity with the given id.
-     * Similarity is measured using cosine similarity of the "vector" field.
+     * Returns the {@code topN} entities whose {@code field} is most relevant
+     * to the keywords in {@code query}, ranked by BM25, best first.
+     */
+    public List<Entity> searchText(String field, String query, int topN) {
+        if (field == null || query == null || topN <= 0) {
+            LOGGER.warning("searchText called with invalid arguments");
+            return Collections.emptyList();
+        }
+        try {
+            IndexManager indexes = indexes();
+            List<Entity> result = new ArrayList<>(topN);
+            for (IndexManager.ScoredOrdinal hit : indexes.searchText(field, query, topN)) {
+                Entity entity = data.get(indexes.idOf(hit.ordinal()));
+                if (entity != null) {
+                    result.add(entity);
+                }
+            }
+            return result;
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Text search failed", e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns the {@code topN} entities whose {@code vector} is most similar
+     * to that of {@code id}, most similar first. The HNSW index answers this
+     * approximately; {@link #findSimilarExact} compares against every vector.
      */
     public List<Entity> findSimilar(String id, int topN) {
+        return findSimilar(id, topN, null);
+    }
+
+    /**
+     * Like {@link #findSimilar(String, int)}, among the entities matching
+     * {@code filter} only (all of them when it is null). The filter is
+     * resolved through the indexes before any vector is scored.
+     */
+    public List<Entity> findSimilar(String id, int topN, QueryExpression filter) {
+        return similar(id, topN, filter, false);
+    }
+
+    /** Like {@link #findSimilar}, but scores every stored vector; slower, used to check recall. */
+    public List<Entity> findSimilarExact(String id, int topN) {
+        return findSimilarExact(id, topN, null);
+    }
+
+    /** Like {@link #findSimilar(String, int, QueryExpression)}, scoring every matching vector. */
+    public List<Entity> findSimilarExact(String id, int topN, QueryExpression filter) {
+        return similar(id, topN, filter, true);
+    }
+
+    private List<Entity> similar(String id, int topN, QueryExpression filter, boolean exact) {
         if (id == null || topN <= 0) {
             LOGGER.warning("findSimilar called with invalid arguments");
             return Collections.emptyList();
         }
         try {
-            Entity base = data.get(id);
-            if (base == null) return Collections.emptyList();
-            List<Double> baseVec = getVector(base);
-            if (baseVec == null) return Collections.emptyList();
-            List<Entity> others = new ArrayList<>();
-            for (Entity e : data.values()) {
-                if (!e.getId().equals(id) && getVector(e) != null) {
-                    others.add(e);
-                }
-            }
-            others.sort((a, b) -> Double.compare(
-                    similarity(baseVec, getVector(b)),
-                    similarity(baseVec, getVector(a))));
-            if (topN < others.size()) {
-                return new ArrayList<>(others.subList(0, topN));
-            }
-            return others;
+            IndexManager indexes = indexes();
+            float[] vector = indexes.vector(indexes.ordinalOf(id));
+            if (vector == null) return Collections.emptyList();
+            OrdinalSet allowed = filter == null ? null : matching(indexes, filter);
+            List<IndexManager.ScoredOrdinal> hits = exact
+                    ? indexes.scanVectors(vector, topN + 1, allowed)
+                    : indexes.searchVectors(vector, topN + 1, allowed);
+            return resolveSimilar(indexes, id, hits, topN);
         } catch (Exception e) {
             LOGGER.log(Level.SEVERE, "Failed to find similar entities for id " + id, e);
             throw new RuntimeException(e);
         }
     }
 
-    private Map<String, Object> deepCopy(Map<String, Object> source) {
-        Map<String, Object> copy = new LinkedHashMap<>();
-        for (var entry : source.entrySet()) {
-            copy.put(entry.getKey(), deepCopyValue(entry.getValue()));
+    private OrdinalSet matching(IndexManager indexes, QueryExpression filter) {
+        DocIdIterator matches = new QueryPlanner(indexes, this).execute(filter);
+        OrdinalSet result = new OrdinalSet();
+        for (int ordinal = matches.nextDoc(); ordinal != DocIdIterator.NO_MORE_DOCS; ordinal = matches.nextDoc()) {
+            result.add(ordinal);
         }
-        return copy;
+        return result;
     }
 
-    private Object deepCopyValue(Object value) {
-        if (value instanceof Map<?, ?> map) {
-            Map<String, Object> nested = new LinkedHashMap<>();
-            for (var entry : map.entrySet()) {
-                nested.put(String.valueOf(entry.getKey()), deepCopyValue(entry.getValue()));
+    /** The entities of {@code hits} other than {@code id}, at most {@code topN}. */
+    private List<Entity> resolveSimilar(IndexManager indexes, String id, List<IndexManager.ScoredOrdinal> hits, int topN) {
+        List<Entity> result = new ArrayList<>(topN);
+        for (IndexManager.ScoredOrdinal hit : hits) {
+            String otherId = indexes.idOf(hit.ordinal());
+            Entity other = id.equals(otherId) ? null : data.get(otherId);
+            if (other != null && result.size() < topN) {
+                result.add(other);
             }
-            return nested;
         }
-        if (value instanceof List<?> list) {
-            List<Object> nested = new ArrayList<>();
-            for (Object o : list) {
-                nested.add(deepCopyValue(o));
+        return result;
+    }
+
+    /**
+     * Returns the index manager after making sure every entity restored at
+     * startup has been indexed.
+     */
+    private IndexManager indexes() {
+        if (!indexesReady) {
+            synchronized (unindexed) {
+                if (!indexesReady) {
+                    for (String id : unindexed) {
+                        ReentrantLock lock = lockFor(id);
+                        lock.lock();
+                        try {
+                            Entity entity = data.get(id);
+                            if (unindexed.remove(id) && entity != null) {
+                                indexManager.index(entity);
+                            }
+                        } finally {
+                            lock.unlock();
+                        }
+                    }
+                    indexesReady = true;
+                }
             }
-            return nested;
         }
-        return value;
+        return indexManager;
     }
 
-    @SuppressWarnings("unchecked")
-    private List<Double> getVector(Entity e) {
-        try {
-            Object v = e.get("vector");
-            if (v instanceof List<?> l) {
-                List<Double> out = new ArrayList<>();
-                for (Object o : l) out.add(((Number) o).doubleValue());
-                return out;
-            }
-            return null;
-        } catch (Exception ex) {
-            LOGGER.log(Level.WARNING, "Failed to extract vector from entity " + e.getId(), ex);
-            return null;
+    /**
+     * Remembers the state of {@code id} as of the running checkpoint's fence
+     * before its first change; must hold the id's lock.
+     */
+    private void capturePreImage(String id) {
+        Map<String, Object> captured = preImages;
+        if (captured != null && !captured.containsKey(id)) {
+            Entity current = data.get(id);
+            captured.put(id, current == null ? ABSENT : current);
         }
     }
 
-    private double similarity(List<Double> a, List<Double> b) {
-        if (b == null || a == null || a.size() != b.size()) {
-            LOGGER.warning("Cannot compute similarity for mismatched vectors");
-            return -1;
+    /**
+     * The store as of the checkpoint fence: live entities untouched since the
+     * fence, the pre-image of those changed since, and the pre-image of those
+     * deleted since. Ids created after the fence are left out.
+     */
+    private Iterable<Entity> pointInTimeView(Map<String, Object> captured) {
+        return () -> {
+            Set<String> seen = new HashSet<>();
+            Stream<Entity> live = data.values().stream()
+                    .map(entity -> {
+                        seen.add(entity.getId());
+                        Object pre = captured.get(entity.getId());
+                        if (pre == null) {
+                            return entity;
+                        }
+                        return pre != ABSENT ? (Entity) pre : null;
+                    })
+                    .filter(Objects::nonNull);
+            Stream<Entity> removed = captured.entrySet().stream()
+                    .filter(e -> e.getValue() != ABSENT && !seen.contains(e.getKey()))
+                    .map(e -> (Entity) e.getValue());
+            return Stream.concat(live, removed).iterator();
+        };
+    }
+
+    private void lockAll() {
+        for (ReentrantLock lock : locks) {
+            lock.lock();
         }
-        try {
-            double dot = 0, normA = 0, normB = 0;
-            for (int i = 0; i < a.size(); i++) {
-                double x = a.get(i);
-                double y = b.get(i);
-                dot += x * y;
-                normA += x * x;
-                normB += y * y;
-            }
-            if (normA == 0 || normB == 0) return -1;
-            return dot / (Math.sqrt(normA) * Math.sqrt(normB));
-        } catch (Exception e) {
-            LOGGER.log(Level.WARNING, "Failed to compute similarity", e);
-            return -1;
+    }
+
+    private void unlockAll() {
+        for (int i = locks.length - 1; i >= 0; i--) {
+            locks[i].unlock();
+        }
+    }
+
+    /** Drops the index entries of a replaced entity; must hold the id's lock. */
+    private void unindex(String id, Entity old) {
+        boolean pending = !indexesReady && unindexed.remove(id);
+        if (old != null && !pending) {
+            indexManager.remove(old);
         }
     }
-}
 
+    private ReentrantLock lockFor(String id) {
+        int h = id.hashCode();
+        return locks[(h ^ (h >>> 16)) & (LOCK_STRIPES - 1)];
+    }
+}
@@ -1,19 +1,44 @@
 package com.crux.store;
 
-import java.util.Collections;
-import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.function.Supplier;
 
 /**
  * Represents a single schemaless entity stored in the database.
+ * <p>
+ * Entities restored from a binary snapshot are created {@linkplain #lazy
+ * lazily}: only the id is known up front and the fields are decoded on
+ * first access.
+ * <p>
+ * Fields are {@link Frozen}: neither the entity nor anyone reading it can
+ * change them, so they are shared rather than copied.
  */
 public class Entity {
     private final String id;
-    private final Map<String, Object> fields;
+    private volatile Map<String, Object> fields;
+    private Supplier<Map<String, Object>> loader;
 
     public Entity(String id, Map<String, Object> fields) {
         this.id = id;
-        this.fields = Collections.unmodifiableMap(new LinkedHashMap<>(fields));
+        this.fields = Frozen.map(fields);
+    }
+
+    private Entity(String id, Supplier<Map<String, Object>> loader) {
+        this.id = id;
+        this.loader = loader;
+    }
+
+    /**
+     * Creates an entity whose fields are produced by {@code loader} the first
+     * time they are needed. The loader runs at most once and must return a
+     * map that nobody else holds on to.
+     */
+    public static Entity lazy(String id, Supplier<Map<String, Object>> loader) {
+        if (loader == null) {
+            throw new IllegalArgumentException("loader must be non-null");
+        }
+        return new Entity(id, loader);
     }
 
     public String getId() {
@@ -21,10 +46,61 @@ public class Entity {
     }
 
     public Object get(String field) {
-        return fields.get(field);
+        return getFields().get(field);
+    }
+
+    /**
+     * Resolves a dotted path the way the index names nested values: map keys
+     * and list positions, e.g. {@code address.city} or {@code tags.0}.
+     */
+    public Object getPath(String path) {
+        if (path == null) {
+            return null;
+        }
+        if (path.indexOf('.') < 0) {
+            return getFields().get(path);
+        }
+        return getPath(path.split("\\."));
+    }
+
+    /** Like {@link #getPath(String)}, for a path already split at its dots. */
+    public Object getPath(String[] segments) {
+        Object current = getFields();
+        for (String part : segments) {
+            if (current instanceof Map<?, ?> map) {
+                current = map.get(part);
+            } else if (current instanceof List<?> list) {
+                int index;
+                try {
+                    index = Integer.parseInt(part);
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+                current = index >= 0 && index < list.size() ? list.get(index) : null;
+            } else {
+                return null;
+            }
+        }
+        return current;
     }
 
     public Map<String, Object> getFields() {
-        return fields;
+        Map<String, Object> current = fields;
+        if (current == null) {
+            synchronized (this) {
+                current = fields;
+                if (current == null) {
+                    current = Frozen.map(loader.get());
+                    fields = current;
+                    loader = null;
+                }
+            }
+        }
+        return current;
+    }
+
+    /** Returns {@code false} while the fields of a lazy entity are still undecoded. */
+    public boolean isLoaded() {
+        return fields != null;
     }
 }
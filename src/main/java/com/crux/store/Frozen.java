@@ -0,0 +1,126 @@
+package com.crux.store;
+
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+
+/**
+ * Deeply immutable entity field values.
+ * <p>
+ * A document is frozen once, when it enters the store: nested maps and
+ * lists are copied into read-only {@link Map} and {@link List}
+ * implementations, and freezing something already frozen returns it as is.
+ * Because nothing can change a frozen value afterwards, the live entity,
+ * its version history and the write-ahead log all share the same instance
+ * instead of each taking a defensive copy, and {@link #with} derives an
+ * updated document that reuses every field it does not replace.
+ */
+public final class Frozen {
+
+    private Frozen() {
+    }
+
+    /** A frozen copy of {@code fields}, or {@code fields} itself if it is already frozen. */
+    public static Map<String, Object> map(Map<String, ?> fields) {
+        if (fields instanceof FrozenMap frozen) {
+            return frozen;
+        }
+        Map<String, Object> copy = new LinkedHashMap<>(Math.max(4, fields.size() * 4 / 3 + 1));
+        for (var entry : fields.entrySet()) {
+            copy.put(entry.getKey(), value(entry.getValue()));
+        }
+        return new FrozenMap(copy);
+    }
+
+    /** {@code value} with every map and list inside it frozen. */
+    public static Object value(Object value) {
+        if (value instanceof FrozenMap || value instanceof FrozenList) {
+            return value;
+        }
+        if (value instanceof Map<?, ?> map) {
+            Map<String, Object> copy = new LinkedHashMap<>(Math.max(4, map.size() * 4 / 3 + 1));
+            for (var entry : map.entrySet()) {
+                copy.put(String.valueOf(entry.getKey()), value(entry.getValue()));
+            }
+            return new FrozenMap(copy);
+        }
+        if (value instanceof List<?> list) {
+            Object[] elements = new Object[list.size()];
+            int i = 0;
+            for (Object element : list) {
+                elements[i++] = value(element);
+            }
+            return new FrozenList(elements);
+        }
+        return value;
+    }
+
+    /**
+     * A frozen document holding the fields of {@code base} with those of
+     * {@code changes} put over them. Fields that are not replaced are shared
+     * with {@code base}, not copied.
+     */
+    public static Map<String, Object> with(Map<String, Object> base, Map<String, ?> changes) {
+        Map<String, Object> frozenBase = map(base);
+        Map<String, Object> merged = new LinkedHashMap<>(Math.max(4, (frozenBase.size() + changes.size()) * 4 / 3 + 1));
+        merged.putAll(frozenBase);
+        for (var entry : changes.entrySet()) {
+            merged.put(entry.getKey(), value(entry.getValue()));
+        }
+        return new FrozenMap(merged);
+    }
+
+    /** A read-only view over a map no one else references. */
+    private static final class FrozenMap extends AbstractMap<String, Object> {
+        private final Map<String, Object> fields;
+        private final Set<Entry<String, Object>> entries;
+
+        private FrozenMap(Map<String, Object> fields) {
+            this.fields = fields;
+            this.entries = Collections.unmodifiableMap(fields).entrySet();
+        }
+
+        @Override
+        public Object get(Object key) {
+            return fields.get(key);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return fields.containsKey(key);
+        }
+
+        @Override
+        public int size() {
+            return fields.size();
+        }
+
+        @Override
+        public Set<Entry<String, Object>> entrySet() {
+            return entries;
+        }
+    }
+
+    private static final class FrozenList extends AbstractList<Object> implements RandomAccess {
+        private final Object[] elements;
+
+        private FrozenList(Object[] elements) {
+            this.elements = elements;
+        }
+
+        @Override
+        public Object get(int index) {
+            return elements[index];
+        }
+
+        @Override
+        public int size() {
+            return elements.length;
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package com.crux.version;
+
+import java.util.Map;
+
+/**
+ * How one entity differs between two points in time.
+ *
+ * @param id     the entity id
+ * @param before its fields at the start, or null if it did not exist then
+ * @param after  its fields at the end, or null if it was deleted by then
+ */
+public record EntityChange(String id, Map<String, Object> before, Map<String, Object> after) {
+}
@@ -0,0 +1,46 @@
+package com.crux.version;
+
+import java.time.Duration;
+
+/**
+ * How much entity history {@link VersioningManager} keeps, and how.
+ *
+ * @param keyframeInterval versions between two full copies of a document;
+ *                         the ones in between only hold the fields that
+ *                         changed, and rebuilding a version replays at most
+ *                         this many of them
+ * @param keepLast         versions kept per entity; older ones are dropped
+ * @param maxAgeMillis     how far back history is kept: versions superseded
+ *                         longer ago than this are dropped
+ */
+public record HistoryOptions(int keyframeInterval, int keepLast, long maxAgeMillis) {
+
+    public HistoryOptions {
+        if (keyframeInterval < 1) {
+            throw new IllegalArgumentException("keyframeInterval must be positive");
+        }
+        if (keepLast < 1) {
+            throw new IllegalArgumentException("keepLast must be positive");
+        }
+        if (maxAgeMillis <= 0) {
+            throw new IllegalArgumentException("maxAgeMillis must be positive");
+        }
+    }
+
+    /** Keyframes every 16 versions and unlimited history. */
+    public static HistoryOptions defaults() {
+        return new HistoryOptions(16, Integer.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    public HistoryOptions withKeyframeInterval(int keyframeInterval) {
+        return new HistoryOptions(keyframeInterval, keepLast, maxAgeMillis);
+    }
+
+    public HistoryOptions withKeepLast(int keepLast) {
+        return new HistoryOptions(keyframeInterval, keepLast, maxAgeMillis);
+    }
+
+    public HistoryOptions withMaxAge(Duration maxAge) {
+        return new HistoryOptions(keyframeInterval, keepLast, maxAge.toMillis());
+    }
+}
@@ -2,26 +2,160 @@ package com.crux.version;
 
 import com.crux.persistence.PersistenceManager;
 import com.crux.store.Entity;
+import com.crux.store.Frozen;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Maintains simple time-travel history for entities.
+ * <p>
+ * History is delta-encoded: most versions only hold the fields that changed
+ * since the previous one, and every {@link HistoryOptions#keyframeInterval}
+ * versions (and after a deletion) a keyframe holds the whole document, so
+ * rebuilding any version replays a bounded number of deltas. Recorded
+ * fields are {@link Frozen}, so keyframes and unchanged values are shared
+ * with the entity they were taken from rather than copied. Versions beyond
+ * {@link HistoryOptions#keepLast} or older than
+ * {@link HistoryOptions#maxAgeMillis} are dropped as new ones are recorded,
+ * the oldest one kept becoming a keyframe.
+ * <p>
+ * Each entity's version timestamps sit in a sorted {@code long[]}, so the
+ * version in effect at a point in time is found by binary search, and
+ * {@link #snapshotAt} does one such search per id. A global index of
+ * (timestamp, id) changes lets {@link #diffBetween} visit only the entities
+ * that changed in between, instead of every id ever seen.
+ * <p>
+ * The per-id histories are guarded by their own monitor, so history of
+ * different entities can be recorded and read concurrently.
  */
 public class VersioningManager {
     private static final Logger LOGGER = Logger.getLogger(VersioningManager.class.getName());
+    /** Value of a field a delta removes. */
+    private static final Object REMOVED = new Object();
 
-    private record Version(long timestamp, Map<String, Object> fields, boolean deleted) {
-        private Version(long timestamp, Map<String, Object> fields, boolean deleted) {
-            this.timestamp = timestamp;
-            this.fields = fields == null ? null : deepCopy(fields);
-            this.deleted = deleted;
+    /**
+     * A recorded state: a keyframe with the full fields, a delta with the
+     * fields changed since the previous version, or a deletion. Keyframes
+     * restored from a snapshot keep a reference to the (possibly still
+     * undecoded) entity instead of its fields.
+     */
+    private record Version(Map<String, Object> fields, boolean delta, boolean deleted, Entity base) {
+        static Version keyframe(Map<String, Object> fields) {
+            return new Version(Frozen.map(fields), false, false, null);
+        }
+
+        static Version delta(Map<String, Object> changes) {
+            return new Version(changes, true, false, null);
+        }
+
+        static Version deletion() {
+            return new Version(null, false, true, null);
+        }
+
+        static Version restored(Entity base) {
+            return new Version(null, false, false, base);
+        }
+
+        @Override
+        public Map<String, Object> fields() {
+            return base != null ? base.getFields() : fields;
         }
     }
 
-    private final Map<String, List<Version>> history = new HashMap<>();
+    /** The versions of one entity, oldest first, with their timestamps in a parallel array. */
+    private static final class History {
+        private long[] timestamps = new long[2];
+        private Version[] versions = new Version[2];
+        private int size;
+        /** The fields after the newest version; null after a deletion or while a restored entity is undecoded. */
+        private Map<String, Object> latest;
+        /** Deltas recorded since the newest keyframe. */
+        private int deltas;
+
+        void insert(int index, long timestamp, Version version) {
+            if (size == versions.length) {
+                timestamps = Arrays.copyOf(timestamps, size * 2);
+                versions = Arrays.copyOf(versions, size * 2);
+            }
+            System.arraycopy(timestamps, index, timestamps, index + 1, size - index);
+            System.arraycopy(versions, index, versions, index + 1, size - index);
+            timestamps[index] = timestamp;
+            versions[index] = version;
+            size++;
+        }
+
+        void add(long timestamp, Version version) {
+            insert(size, timestamp, version);
+        }
+
+        void dropFirst(int count) {
+            System.arraycopy(timestamps, count, timestamps, 0, size - count);
+            System.arraycopy(versions, count, versions, 0, size - count);
+            Arrays.fill(versions, size - count, size, null);
+            size -= count;
+        }
+
+        /** Index of the newest version recorded at or before {@code timestamp}, or -1. */
+        int lastAtOrBefore(long timestamp) {
+            int low = 0;
+            int high = size - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                if (timestamps[middle] <= timestamp) {
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return high;
+        }
+
+        /** The fields as of version {@code index}, rebuilt from the keyframe before it; null if deleted. */
+        Map<String, Object> stateAt(int index) {
+            Version version = versions[index];
+            if (version.deleted) {
+                return null;
+            }
+            if (!version.delta) {
+                return version.fields();
+            }
+            int keyframe = index;
+            while (versions[keyframe].delta) {
+                keyframe--;
+            }
+            Map<String, Object> state = new LinkedHashMap<>(versions[keyframe].fields());
+            for (int i = keyframe + 1; i <= index; i++) {
+                apply(state, versions[i].fields);
+            }
+            return Frozen.map(state);
+        }
+    }
+
+    /** An entry of the global change index. */
+    private record Change(long timestamp, String id) {
+    }
+
+    private static final Comparator<Change> CHANGE_ORDER =
+            Comparator.comparingLong(Change::timestamp).thenComparing(Change::id);
+
+    private final Map<String, History> history = new ConcurrentHashMap<>();
+    private final NavigableSet<Change> changes = new ConcurrentSkipListSet<>(CHANGE_ORDER);
+    private final HistoryOptions options;
+
+    public VersioningManager() {
+        this(HistoryOptions.defaults());
+    }
+
+    public VersioningManager(HistoryOptions options) {
+        if (options == null) {
+            throw new IllegalArgumentException("options must be non-null");
+        }
+        this.options = options;
+    }
 
     public void recordInsert(Entity entity) {
         if (entity == null) {
@@ -29,7 +163,7 @@ public class VersioningManager {
             return;
         }
         try {
-            addVersion(entity.getId(), new Version(System.currentTimeMillis(), entity.getFields(), false));
+            record(entity.getId(), System.currentTimeMillis(), entity.getFields());
         } catch (Exception e) {
             LOGGER.log(Level.SEVERE, "Failed to record insert", e);
         }
@@ -41,7 +175,7 @@ public class VersioningManager {
             return;
         }
         try {
-            addVersion(id, new Version(System.currentTimeMillis(), fields, false));
+            record(id, System.currentTimeMillis(), fields);
         } catch (Exception e) {
             LOGGER.log(Level.SEVERE, "Failed to record update for id " + id, e);
         }
@@ -53,7 +187,7 @@ public class VersioningManager {
             return;
         }
         try {
-            addVersion(id, new Version(System.currentTimeMillis(), null, true));
+            record(id, System.currentTimeMillis(), null);
         } catch (Exception e) {
             LOGGER.log(Level.SEVERE, "Failed to record delete for id " + id, e);
         }
@@ -65,22 +199,14 @@ public class VersioningManager {
             return null;
         }
         try {
-            List<Version> versions = history.get(id);
-            if (versions == null) {
+            History h = history.get(id);
+            if (h == null) {
                 return null;
             }
-            Version result = null;
-            for (Version v : versions) {
-                if (v.timestamp <= timestamp) {
-                    result = v;
-                } else {
-                    break;
-                }
+            synchronized (h) {
+                int index = h.lastAtOrBefore(timestamp);
+                return index < 0 ? null : h.stateAt(index);
             }
-            if (result == null || result.deleted) {
-                return null;
-            }
-            return deepCopy(result.fields);
         } catch (Exception e) {
             LOGGER.log(Level.SEVERE, "Failed to get version at time for id " + id, e);
             return null;
@@ -93,13 +219,28 @@ public class VersioningManager {
             return Collections.emptyList();
         }
         try {
-            List<Version> versions = history.getOrDefault(id, Collections.emptyList());
+            History h = history.get(id);
+            if (h == null) {
+                return Collections.emptyList();
+            }
             List<Map<String, Object>> out = new ArrayList<>();
-            for (Version v : versions) {
-                Map<String, Object> snapshot = v.fields == null ? new LinkedHashMap<>() : deepCopy(v.fields);
-                snapshot.put("_timestamp", v.timestamp);
-                snapshot.put("_deleted", v.deleted);
-                out.add(snapshot);
+            synchronized (h) {
+                Map<String, Object> state = null;
+                for (int i = 0; i < h.size; i++) {
+                    Version v = h.versions[i];
+                    if (v.deleted) {
+                        state = null;
+                    } else if (v.delta) {
+                        state = new LinkedHashMap<>(state);
+                        apply(state, v.fields);
+                    } else {
+                        state = v.fields();
+                    }
+                    Map<String, Object> snapshot = state == null ? new LinkedHashMap<>() : new LinkedHashMap<>(state);
+                    snapshot.put("_timestamp", h.timestamps[i]);
+                    snapshot.put("_deleted", v.deleted);
+                    out.add(snapshot);
+                }
             }
             return out;
         } catch (Exception e) {
@@ -108,19 +249,67 @@ public class VersioningManager {
         }
     }
 
+    /** The fields of every entity that existed at {@code timestamp}, by id. */
     public Map<String, Map<String, Object>> snapshotAt(long timestamp) {
         Map<String, Map<String, Object>> snapshot = new LinkedHashMap<>();
-        for (String id : history.keySet()) {
-            Map<String, Object> state = getAt(id, timestamp);
+        for (Map.Entry<String, History> entry : history.entrySet()) {
+            History h = entry.getValue();
+            Map<String, Object> state;
+            synchronized (h) {
+                int index = h.lastAtOrBefore(timestamp);
+                state = index < 0 ? null : h.stateAt(index);
+            }
             if (state != null) {
-                snapshot.put(id, state);
+                snapshot.put(entry.getKey(), state);
             }
         }
         return snapshot;
     }
 
-    public void bootstrap(Collection<PersistenceManager.LogEntry> entries) {
+    /**
+     * The entities whose state at {@code to} differs from their state at
+     * {@code from}, in the order they first changed after {@code from}.
+     */
+    public List<EntityChange> diffBetween(long from, long to) {
+        if (from >= to) {
+            return Collections.emptyList();
+        }
+        List<EntityChange> result = new ArrayList<>();
+        for (String id : idsChanged(from, to)) {
+            Map<String, Object> before = getAt(id, from);
+            Map<String, Object> after = getAt(id, to);
+            if (!Objects.equals(before, after)) {
+                result.add(new EntityChange(id, before, after));
+            }
+        }
+        return result;
+    }
+
+    /** Ids with a version recorded after {@code from} and at or before {@code to}, by first such version. */
+    private Set<String> idsChanged(long from, long to) {
+        Set<String> ids = new LinkedHashSet<>();
+        for (Change change : changes.tailSet(new Change(from + 1, ""), true)) {
+            if (change.timestamp() > to) {
+                break;
+            }
+            ids.add(change.id());
+        }
+        return ids;
+    }
+
+    /**
+     * Rebuilds history from a snapshot plus the log replayed on top of it.
+     * Snapshot entities become the first version of their id, timestamped
+     * with the snapshot time; their fields are not touched until needed.
+     */
+    public void bootstrap(PersistenceManager.LoadedState state) {
         history.clear();
+        changes.clear();
+        if (state == null) {
+            return;
+        }
+        state.forEachSnapshotEntity((id, entity) -> restore(id, state.snapshotTimestamp(), entity));
+        List<PersistenceManager.LogEntry> entries = state.history();
         if (entries == null) {
             return;
         }
@@ -132,48 +321,115 @@ public class VersioningManager {
                 continue;
             }
             switch (op) {
-                case INSERT, UPDATE -> addVersion(entry.id(), new Version(entry.timestamp(), entry.fields(), false));
-                case DELETE -> addVersion(entry.id(), new Version(entry.timestamp(), null, true));
+                case INSERT, UPDATE -> {
+                    if (entry.fields() != null) {
+                        record(entry.id(), entry.timestamp(), entry.fields());
+                    }
+                }
+                case DELETE -> record(entry.id(), entry.timestamp(), null);
             }
         }
     }
 
-    private void addVersion(String id, Version version) {
-        if (id == null || version == null) {
-            return;
+    private void restore(String id, long timestamp, Entity entity) {
+        History h = history.computeIfAbsent(id, k -> new History());
+        synchronized (h) {
+            h.add(timestamp, Version.restored(entity));
+            h.latest = entity.isLoaded() ? entity.getFields() : null;
+            h.deltas = 0;
+            changes.add(new Change(timestamp, id));
         }
-        List<Version> versions = history.computeIfAbsent(id, k -> new ArrayList<>());
-        if (!versions.isEmpty() && versions.get(versions.size() - 1).timestamp <= version.timestamp) {
-            versions.add(version);
-        } else {
-            versions.add(version);
-            versions.sort(Comparator.comparingLong(Version::timestamp));
+    }
+
+    /** Records {@code fields} as the state of {@code id} at {@code timestamp}; null fields record a deletion. */
+    private void record(String id, long timestamp, Map<String, Object> fields) {
+        History h = history.computeIfAbsent(id, k -> new History());
+        synchronized (h) {
+            if (h.size > 0 && h.timestamps[h.size - 1] > timestamp) {
+                insertEarlier(h, timestamp, fields);
+            } else if (fields == null) {
+                h.add(timestamp, Version.deletion());
+                h.latest = null;
+            } else {
+                Map<String, Object> frozen = Frozen.map(fields);
+                if (h.latest == null || h.deltas + 1 >= options.keyframeInterval()) {
+                    h.add(timestamp, Version.keyframe(frozen));
+                    h.deltas = 0;
+                } else {
+                    h.add(timestamp, Version.delta(diff(h.latest, frozen)));
+                    h.deltas++;
+                }
+                h.latest = frozen;
+            }
+            changes.add(new Change(timestamp, id));
+            prune(id, h, System.currentTimeMillis());
         }
     }
 
-    private static Map<String, Object> deepCopy(Map<String, Object> source) {
-        Map<String, Object> copy = new LinkedHashMap<>();
-        for (var entry : source.entrySet()) {
-            copy.put(entry.getKey(), deepCopyValue(entry.getValue()));
+    /**
+     * Inserts a version older than the newest one as a keyframe, turning the
+     * version after it into a keyframe as well since its delta no longer
+     * applies to its predecessor.
+     */
+    private static void insertEarlier(History h, long timestamp, Map<String, Object> fields) {
+        int at = h.lastAtOrBefore(timestamp) + 1;
+        if (h.versions[at].delta) {
+            h.versions[at] = Version.keyframe(h.stateAt(at));
         }
-        return copy;
+        h.insert(at, timestamp, fields == null ? Version.deletion() : Version.keyframe(fields));
     }
 
-    private static Object deepCopyValue(Object value) {
-        if (value instanceof Map<?, ?> map) {
-            Map<String, Object> nested = new LinkedHashMap<>();
-            for (var entry : map.entrySet()) {
-                nested.put(String.valueOf(entry.getKey()), deepCopyValue(entry.getValue()));
+    /** Drops the versions the retention options no longer cover, and their change index entries. */
+    private void prune(String id, History h, long now) {
+        int drop = Math.max(0, h.size - options.keepLast());
+        long cutoff = now - options.maxAgeMillis();
+        while (drop < h.size - 1 && h.timestamps[drop + 1] < cutoff) {
+            drop++;
+        }
+        if (drop == 0) {
+            return;
+        }
+        if (h.versions[drop].delta) {
+            h.versions[drop] = Version.keyframe(h.stateAt(drop));
+        }
+        long kept = h.timestamps[drop];
+        for (int i = 0; i < drop; i++) {
+            if (h.timestamps[i] != kept) {
+                changes.remove(new Change(h.timestamps[i], id));
             }
-            return nested;
         }
-        if (value instanceof List<?> list) {
-            List<Object> nested = new ArrayList<>();
-            for (Object o : list) {
-                nested.add(deepCopyValue(o));
+        h.dropFirst(drop);
+        int deltas = 0;
+        for (int i = h.size - 1; i >= 0 && h.versions[i].delta; i--) {
+            deltas++;
+        }
+        h.deltas = deltas;
+    }
+
+    /** The fields of {@code next} that differ from {@code previous}, with {@link #REMOVED} for dropped ones. */
+    private static Map<String, Object> diff(Map<String, Object> previous, Map<String, Object> next) {
+        Map<String, Object> changes = new LinkedHashMap<>();
+        next.forEach((key, value) -> {
+            Object old = previous.get(key);
+            if (!previous.containsKey(key) || old != value && !Objects.equals(old, value)) {
+                changes.put(key, value);
+            }
+        });
+        for (String key : previous.keySet()) {
+            if (!next.containsKey(key)) {
+                changes.put(key, REMOVED);
             }
-            return nested;
         }
-        return value;
+        return changes.isEmpty() ? Map.of() : changes;
+    }
+
+    private static void apply(Map<String, Object> state, Map<String, Object> delta) {
+        delta.forEach((key, value) -> {
+            if (value == REMOVED) {
+                state.remove(key);
+            } else {
+                state.put(key, value);
+            }
+        });
     }
 }
@@ -2,13 +2,37 @@ package com.crux;
 
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
+import com.crux.index.DocIdIterator;
+import com.crux.index.HnswOptions;
+import com.crux.index.OrdinalSet;
+import com.crux.index.VectorColumn;
+import com.crux.index.VectorKernels;
+import com.crux.index.VectorOptions;
 import com.crux.store.DocumentStore;
 import com.crux.store.Entity;
 import com.crux.query.QueryExpression;
 import com.crux.pipeline.Pipeline;
+import com.crux.persistence.Durability;
+import com.crux.persistence.PersistenceOptions;
+import com.crux.persistence.SnapshotFormat;
+import com.crux.persistence.WalFormat;
+import com.crux.version.EntityChange;
+import com.crux.version.HistoryOptions;
 
 import java.util.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.function.ToDoubleFunction;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -71,4 +95,692 @@ public class DocumentStoreTest {
         assertEquals(33.0, ((Number) reloadedAgain.get("1").get("age")).doubleValue());
         assertNotNull(reloadedAgain.getAt("1", reloadTimestamp));
     }
+
+    @Test
+    public void testConcurrentWritersOnDistinctIds(@TempDir Path tempDir) throws Exception {
+        DocumentStore store = new DocumentStore(tempDir);
+        int threads = 8;
+        int perThread = 200;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int worker = t;
+                futures.add(pool.submit(() -> {
+                    for (int i = 0; i < perThread; i++) {
+                        String id = worker + "-" + i;
+                        store.insert(new Entity(id, Map.of("worker", worker, "step", 0)));
+                        store.updatePartial(id, Map.of("step", 1));
+                        if (i % 4 == 0) {
+                            store.delete(id);
+                        }
+                        store.query(QueryExpression.field("worker", QueryExpression.Operator.EQ, worker));
+                    }
+                }));
+            }
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        int expected = threads * (perThread - perThread / 4);
+        assertEquals(expected, store.findAll().size());
+        assertEquals(expected, store.query(QueryExpression.field("step", QueryExpression.Operator.EQ, 1)).size());
+        assertTrue(store.query(QueryExpression.field("step", QueryExpression.Operator.EQ, 0)).isEmpty());
+        assertEquals(expected, new DocumentStore(tempDir).findAll().size());
+    }
+
+    @Test
+    public void testRelaxedDurabilityFlushesOnClose(@TempDir Path tempDir) throws Exception {
+        for (Durability durability : List.of(Durability.everyMillis(50), Durability.everyBytes(1 << 20))) {
+            Path dir = tempDir.resolve(durability.mode().name());
+            try (DocumentStore store = new DocumentStore(dir, PersistenceOptions.defaults().withDurability(durability))) {
+                for (int i = 0; i < 500; i++) {
+                    store.insert(new Entity("e" + i, Map.of("value", i)));
+                }
+                store.delete("e0");
+            }
+            DocumentStore reloaded = new DocumentStore(dir);
+            assertEquals(499, reloaded.findAll().size());
+            assertEquals(499.0, ((Number) reloaded.get("e499").get("value")).doubleValue());
+        }
+    }
+
+    @Test
+    public void testFrozenFieldsAreSharedAcrossVersions(@TempDir Path tempDir) throws Exception {
+        DocumentStore store = new DocumentStore(tempDir);
+        Map<String, Object> address = new HashMap<>(Map.of("city", "Belgrade"));
+        List<Object> tags = new ArrayList<>(List.of("a", "b"));
+        Map<String, Object> fields = new HashMap<>(Map.of("address", address, "tags", tags, "age", 30));
+        store.insert(new Entity("1", fields));
+        address.put("city", "Novi Sad");
+        tags.add("c");
+        fields.put("age", 31);
+        assertEquals("Belgrade", ((Map<?, ?>) store.get("1").get("address")).get("city"));
+        assertEquals(List.of("a", "b"), store.get("1").get("tags"));
+
+        long before = System.currentTimeMillis();
+        Thread.sleep(5);
+        store.updatePartial("1", Map.of("age", 32));
+        Entity old = store.getAt("1", before);
+        Entity current = store.get("1");
+        assertEquals(30, old.get("age"));
+        assertEquals(32, current.get("age"));
+        assertSame(old.get("address"), current.get("address"));
+        assertSame(old.get("tags"), current.get("tags"));
+        assertThrows(UnsupportedOperationException.class,
+                () -> ((Map<String, Object>) current.get("address")).put("city", "Nis"));
+        assertThrows(UnsupportedOperationException.class, () -> ((List<Object>) current.get("tags")).add("d"));
+        assertEquals(Boolean.FALSE, store.getHistory("1").get(0).get("_deleted"));
+    }
+
+    @Test
+    public void testDeltaHistoryKeyframesAndRetention(@TempDir Path tempDir) throws Exception {
+        DocumentStore store = new DocumentStore(tempDir, PersistenceOptions.defaults(), HnswOptions.defaults(),
+                VectorOptions.defaults(), HistoryOptions.defaults().withKeyframeInterval(4).withKeepLast(50));
+        store.insert(new Entity("1", Map.of("n", 0, "tag", "t", "address", Map.of("city", "Belgrade"))));
+        for (int i = 1; i < 120; i++) {
+            if (i % 7 == 0) {
+                store.update("1", Map.of("n", i, "address", Map.of("city", "Belgrade")));
+            } else {
+                store.updatePartial("1", Map.of("n", i, "tag", "t"));
+            }
+        }
+        List<Map<String, Object>> history = store.getHistory("1");
+        assertEquals(50, history.size());
+        for (int k = 0; k < history.size(); k++) {
+            Map<String, Object> version = history.get(k);
+            int n = 70 + k;
+            assertEquals(n, ((Number) version.get("n")).intValue());
+            assertEquals(n % 7 == 0 ? null : "t", version.get("tag"));
+            assertEquals(Map.of("city", "Belgrade"), version.get("address"));
+        }
+        assertEquals(store.get("1").getFields(), store.getAt("1", System.currentTimeMillis()).getFields());
+
+        Map<String, Object> withNull = new HashMap<>(Map.of("a", 1));
+        store.insert(new Entity("2", Map.of("a", 1)));
+        withNull.put("n", null);
+        store.update("2", withNull);
+        Map<String, Object> recorded = store.getAt("2", System.currentTimeMillis()).getFields();
+        assertTrue(recorded.containsKey("n"));
+        assertEquals(store.get("2").getFields(), recorded);
+
+        DocumentStore aging = new DocumentStore(tempDir.resolve("aging"), PersistenceOptions.defaults(),
+                HnswOptions.defaults(), VectorOptions.defaults(),
+                HistoryOptions.defaults().withMaxAge(Duration.ofMillis(1)));
+        aging.insert(new Entity("a", Map.of("v", 1)));
+        long first = System.currentTimeMillis();
+        Thread.sleep(20);
+        aging.update("a", Map.of("v", 2));
+        Thread.sleep(20);
+        aging.delete("a");
+        assertEquals(2, aging.getHistory("a").size());
+        assertNull(aging.getAt("a", first));
+        assertNull(aging.getAt("a", System.currentTimeMillis()));
+    }
+
+    @Test
+    public void testSnapshotAndDiffBetweenPointsInTime(@TempDir Path tempDir) throws Exception {
+        DocumentStore store = new DocumentStore(tempDir);
+        for (int i = 0; i < 100; i++) {
+            store.insert(new Entity("e" + i, Map.of("v", i)));
+        }
+        Thread.sleep(5);
+        long from = System.currentTimeMillis();
+        Thread.sleep(5);
+        store.updatePartial("e1", Map.of("v", -1));
+        store.delete("e2");
+        store.insert(new Entity("e200", Map.of("v", 200)));
+        store.updatePartial("e3", Map.of("v", -3));
+        store.updatePartial("e3", Map.of("v", 3));
+        Thread.sleep(5);
+        long to = System.currentTimeMillis();
+        Thread.sleep(5);
+        store.updatePartial("e4", Map.of("v", -4));
+
+        List<EntityChange> changes = store.diffBetween(from, to);
+        assertEquals(List.of("e1", "e2", "e200"), changes.stream().map(EntityChange::id).toList());
+        assertEquals(Map.of("v", 1), changes.get(0).before());
+        assertEquals(Map.of("v", -1), changes.get(0).after());
+        assertNull(changes.get(1).after());
+        assertNull(changes.get(2).before());
+        assertTrue(store.diffBetween(to, from).isEmpty());
+
+        List<Entity> before = store.snapshotAt(from);
+        assertEquals(100, before.size());
+        assertTrue(before.stream().noneMatch(e -> e.getId().equals("e200")));
+        assertEquals(100, store.snapshotAt(to).size());
+    }
+
+    @Test
+    public void testParallelPipelineMatchesSequential() {
+        List<Entity> entities = new ArrayList<>();
+        for (int i = 0; i < 50_000; i++) {
+            entities.add(new Entity("e" + i, Map.of("value", i, "group", "g" + (i % 7))));
+        }
+        ForkJoinPool pool = new ForkJoinPool(3);
+        try {
+            Set<ForkJoinPool> pools = ConcurrentHashMap.newKeySet();
+            Pipeline<Entity> parallel = Pipeline.parallel(entities, pool)
+                    .filter(e -> {
+                        pools.add(ForkJoinTask.getPool());
+                        return ((Number) e.get("value")).intValue() % 2 == 0;
+                    });
+            Map<Object, List<Entity>> groups = parallel.groupBy(e -> e.get("group"));
+            Map<Object, List<Entity>> expected = new Pipeline<>(entities)
+                    .filter(e -> ((Number) e.get("value")).intValue() % 2 == 0)
+                    .groupBy(e -> e.get("group"));
+            assertEquals(expected.keySet(), groups.keySet());
+            expected.forEach((group, members) -> assertEquals(new HashSet<>(members), new HashSet<>(groups.get(group))));
+            assertEquals(Set.of(pool), pools);
+
+            ToDoubleFunction<Entity> value = e -> ((Number) e.get("value")).doubleValue();
+            assertEquals(new Pipeline<>(entities).sum(value), Pipeline.parallel(entities, pool).sum(value), 1e-6);
+            assertEquals(24_999.5, Pipeline.parallel(entities).average(value), 1e-6);
+            assertEquals(50_000L, (long) Pipeline.parallel(entities, pool).reduce(0L, (n, e) -> n + 1, Long::sum));
+            assertEquals(entities.subList(0, 10), Pipeline.parallel(entities, pool)
+                    .filter(e -> ((Number) e.get("value")).intValue() < 10).toList());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testGroupedAggregatesMatchMaterializedGroups() {
+        List<Entity> entities = new ArrayList<>();
+        Random random = new Random(9);
+        for (int i = 0; i < 30_000; i++) {
+            entities.add(new Entity("e" + i, Map.of("value", random.nextInt(1000), "bucket", i % 13)));
+        }
+        ToDoubleFunction<Entity> value = e -> ((Number) e.get("value")).doubleValue();
+        Map<Object, List<Entity>> groups = new Pipeline<>(entities).groupBy(e -> e.get("bucket"));
+        for (Pipeline<Entity> source : List.of(new Pipeline<>(entities), Pipeline.parallel(entities))) {
+            Map<Long, Double> p90 = source.aggregateByLong(e -> ((Number) e.get("bucket")).longValue())
+                    .percentile(value, 90);
+            assertEquals(13, p90.size());
+            groups.forEach((bucket, members) -> {
+                double[] sorted = members.stream().mapToDouble(value).sorted().toArray();
+                assertEquals(sorted[(int) Math.ceil(0.9 * sorted.length) - 1], (double) p90.get(((Number) bucket).longValue()));
+            });
+        }
+        Map<Object, Long> counts = Pipeline.parallel(entities).aggregateBy(e -> e.get("bucket")).count();
+        Map<Object, Double> sums = new Pipeline<>(entities).aggregateBy(e -> e.get("bucket")).sum(value);
+        Map<Object, Double> mins = Pipeline.parallel(entities).aggregateBy(e -> e.get("bucket")).min(value);
+        Map<Object, Double> maxes = new Pipeline<>(entities).aggregateBy(e -> e.get("bucket")).max(value);
+        Map<Object, Double> averages = Pipeline.parallel(entities).aggregateBy(e -> e.get("bucket")).average(value);
+        groups.forEach((bucket, members) -> {
+            DoubleSummaryStatistics stats = members.stream().mapToDouble(value).summaryStatistics();
+            assertEquals(stats.getCount(), (long) counts.get(bucket));
+            assertEquals(stats.getSum(), sums.get(bucket), 1e-6);
+            assertEquals(stats.getMin(), (double) mins.get(bucket));
+            assertEquals(stats.getMax(), (double) maxes.get(bucket));
+            assertEquals(stats.getAverage(), averages.get(bucket), 1e-9);
+        });
+        assertThrows(IllegalArgumentException.class,
+                () -> new Pipeline<>(entities).aggregateBy(e -> e.get("bucket")).percentile(value, 101));
+    }
+
+    @Test
+    public void testStorePipelinePushesFilterOrderAndLimitIntoIndexes(@TempDir Path tempDir) {
+        DocumentStore store = new DocumentStore(tempDir);
+        for (int i = 0; i < 500; i++) {
+            Map<String, Object> fields = new HashMap<>();
+            fields.put("category", i % 4 == 0 ? "book" : "toy");
+            if (i % 10 != 0) {
+                fields.put("price", (i * 37) % 101);
+            }
+            store.insert(new Entity("p" + i, fields));
+        }
+        QueryExpression books = QueryExpression.field("category", QueryExpression.Operator.EQ, "book");
+        assertEquals(ids(store.query(books)), ids(Pipeline.from(store, books).toList()));
+        assertEquals(500, Pipeline.from(store, null).toList().size());
+
+        for (boolean descending : new boolean[] {false, true}) {
+            List<Entity> expected = new Pipeline<>(store.query(books)).orderBy("price", descending).toList();
+            List<Entity> pushed = Pipeline.from(store, books).orderBy("price", descending).toList();
+            assertEquals(expected.size(), pushed.size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals(expected.get(i).get("price"), pushed.get(i).get("price"));
+            }
+            assertNull(pushed.get(pushed.size() - 1).get("price"));
+            List<Object> top = Pipeline.from(store, books).orderBy("price", descending).limit(5)
+                    .map(e -> e.get("price")).toList();
+            assertEquals(expected.subList(0, 5).stream().map(e -> e.get("price")).toList(), top);
+        }
+        QueryExpression cheap = QueryExpression.field("price", QueryExpression.Operator.LT, 5);
+        for (boolean descending : new boolean[] {false, true}) {
+            List<Entity> expected = new Pipeline<>(store.query(cheap)).orderBy("price", descending).toList();
+            assertFalse(expected.isEmpty());
+            assertEquals(expected.stream().map(Entity::getId).toList(),
+                    Pipeline.from(store, cheap).orderBy("price", descending).toList().stream().map(Entity::getId).toList());
+        }
+        assertEquals(3, Pipeline.from(store, null).limit(3).toList().size());
+        assertEquals(List.of("book"), Pipeline.from(store, books).limit(7).map(e -> e.get("category"))
+                .toList().stream().distinct().toList());
+        store.close();
+    }
+
+    @Test
+    public void testTopNMatchesFullSortWithOffsets(@TempDir Path tempDir) {
+        List<Entity> entities = new ArrayList<>();
+        Random random = new Random(21);
+        for (int i = 0; i < 20_000; i++) {
+            Map<String, Object> fields = new HashMap<>();
+            if (i % 50 != 0) {
+                fields.put("price", random.nextInt(300));
+            }
+            entities.add(new Entity("e" + i, fields));
+        }
+        Comparator<Entity> byPrice = Comparator.comparing(
+                e -> (Integer) e.get("price"), Comparator.nullsLast(Comparator.<Integer>naturalOrder()));
+        List<Entity> sorted = entities.stream().sorted(byPrice).toList();
+        assertEquals(sorted.subList(35, 60), new Pipeline<>(entities).orderBy("price", false).offset(35).limit(25).toList());
+        assertEquals(sorted.subList(35, 60), Pipeline.parallel(entities).orderBy(byPrice).offset(30).offset(5).limit(25).toList());
+        assertEquals(sorted.subList(19_990, 20_000), new Pipeline<>(entities).orderBy(byPrice).offset(19_990).limit(50).toList());
+        assertEquals(sorted.subList(100, 20_000), new Pipeline<>(entities).orderBy(byPrice).offset(100).toList());
+        assertEquals(List.of(), new Pipeline<>(entities).orderBy(byPrice).limit(0).toList());
+        assertEquals(sorted.subList(1, 20_000), new Pipeline<>(entities).orderBy(byPrice).offset(1).limit(Long.MAX_VALUE).toList());
+        assertEquals(List.of(), new Pipeline<>(entities).orderBy(byPrice).offset(Long.MAX_VALUE).offset(5).limit(3).toList());
+
+        DocumentStore store = new DocumentStore(tempDir);
+        entities.subList(0, 2000).forEach(store::insert);
+        List<Object> expected = new Pipeline<>(entities.subList(0, 2000)).orderBy("price", true)
+                .map(e -> e.get("price")).toList().subList(10, 15);
+        assertEquals(expected, Pipeline.from(store, null).orderBy("price", true).offset(10).limit(5)
+                .map(e -> e.get("price")).toList());
+        assertEquals(expected, Pipeline.from(store, null).orderBy("price", true).limit(15).offset(10)
+                .map(e -> e.get("price")).toList());
+        assertEquals(1990, Pipeline.from(store, null).offset(10).limit(Long.MAX_VALUE).toList().size());
+        assertEquals(0, Pipeline.from(store, null).offset(Long.MAX_VALUE).offset(Long.MAX_VALUE).toList().size());
+        store.close();
+    }
+
+    private static Set<String> ids(Collection<Entity> entities) {
+        Set<String> ids = new HashSet<>();
+        entities.forEach(e -> ids.add(e.getId()));
+        return ids;
+    }
+
+    @Test
+    public void testBitmapQueriesOverDenseAndSparsePostings(@TempDir Path tempDir) {
+        DocumentStore store = new DocumentStore(tempDir, PersistenceOptions.defaults()
+                .withDurability(Durability.everyBytes(1 << 20)));
+        for (int i = 0; i < 10_000; i++) {
+            store.insert(new Entity("e" + i, Map.of("value", i, "mod", i % 3)));
+        }
+        for (int i = 0; i < 10_000; i += 7) {
+            store.delete("e" + i);
+        }
+
+        QueryExpression large = QueryExpression.field("value", QueryExpression.Operator.GTE, 100);
+        QueryExpression mod0 = QueryExpression.field("mod", QueryExpression.Operator.EQ, 0);
+        QueryExpression small = QueryExpression.field("value", QueryExpression.Operator.LT, 50);
+        int[] expected = new int[4];
+        for (int i = 0; i < 10_000; i++) {
+            if (i % 7 == 0) {
+                continue;
+            }
+            if (i >= 100 && i % 3 == 0) expected[0]++;
+            if (i < 50 || i % 3 == 0) expected[1]++;
+            if (i % 3 != 0) expected[2]++;
+            if (i >= 100 && i % 3 != 0) expected[3]++;
+        }
+        assertEquals(expected[0], store.query(QueryExpression.and(large, mod0)).size());
+        assertEquals(expected[1], store.query(QueryExpression.or(small, mod0)).size());
+        assertEquals(expected[2], store.query(QueryExpression.not(mod0)).size());
+        assertEquals(expected[3], store.query(QueryExpression.and(large, QueryExpression.not(mod0))).size());
+        assertEquals(expected[2], store.query(QueryExpression.field("mod", QueryExpression.Operator.NE, 0)).size());
+        store.close();
+    }
+
+    @Test
+    public void testTrigramIndexFollowsUpdatesAndDeletes(@TempDir Path tempDir) {
+        DocumentStore store = new DocumentStore(tempDir);
+        String[] words = {"alpha", "bravo", "charlie", "delta", "echo"};
+        for (int i = 0; i < 500; i++) {
+            store.insert(new Entity("e" + i, Map.of("text", words[i % 5] + " No. " + i)));
+        }
+        store.createTrigramIndex("text");
+        store.insert(new Entity("late", Map.of("text", "CHARLIE late")));
+        store.update("e2", Map.of("text", "renamed"));
+        store.delete("e7");
+        store.update("e1", Map.of("text", "now charlie too"));
+
+        Set<String> ids = new HashSet<>();
+        store.query(QueryExpression.contains("text", "harl")).forEach(e -> ids.add(e.getId()));
+        Set<String> expected = new HashSet<>(Set.of("late", "e1"));
+        for (int i = 2; i < 500; i += 5) {
+            expected.add("e" + i);
+        }
+        expected.remove("e2");
+        expected.remove("e7");
+        assertEquals(expected, ids);
+        // needles shorter than a trigram and ones spanning words still work
+        assertEquals(11, store.query(QueryExpression.contains("text", "o. 49")).size());
+        assertEquals(0, store.query(QueryExpression.contains("text", "zzz")).size());
+        assertEquals(500, store.query(QueryExpression.contains("text", "e")).size()
+                + store.query(QueryExpression.not(QueryExpression.contains("text", "e"))).size());
+        store.close();
+    }
+
+    @Test
+    public void testHnswSearchRecallAndMaintenance(@TempDir Path tempDir) {
+        DocumentStore store = new DocumentStore(tempDir, PersistenceOptions.defaults()
+                .withDurability(Durability.everyBytes(1 << 20)), HnswOptions.defaults().withM(8));
+        Random random = new Random(7);
+        for (int i = 0; i < 2000; i++) {
+            List<Double> vector = new ArrayList<>();
+            for (int d = 0; d < 16; d++) {
+                vector.add(random.nextGaussian());
+            }
+            store.insert(new Entity("v" + i, Map.of("vector", vector, "n", i)));
+        }
+        int hits = 0;
+        for (int q = 0; q < 20; q++) {
+            Set<String> approximate = new HashSet<>();
+            store.findSimilar("v" + q, 10).forEach(e -> approximate.add(e.getId()));
+            for (Entity e : store.findSimilarExact("v" + q, 10)) {
+                if (approximate.contains(e.getId())) hits++;
+            }
+        }
+        assertTrue(hits >= 180, "recall@10 too low: " + hits + "/200");
+
+        Entity nearest = store.findSimilarExact("v0", 1).get(0);
+        store.updatePartial(nearest.getId(), Map.of("n", -1));
+        assertEquals(nearest.getId(), store.findSimilar("v0", 1).get(0).getId());
+        store.delete(nearest.getId());
+        assertFalse(store.findSimilar("v0", 10).stream().anyMatch(e -> e.getId().equals(nearest.getId())));
+        store.update("v1", Map.of("vector", List.of(1.0, 2.0)));
+        assertTrue(store.findSimilar("v1", 5).isEmpty());
+        assertTrue(store.findSimilar("nope", 3).isEmpty());
+        assertTrue(store.findSimilarExact("nope", 3).isEmpty());
+        for (int i = 2; i < 1500; i++) {
+            store.delete("v" + i);
+        }
+        assertEquals(10, store.findSimilar("v0", 10).size());
+        store.close();
+    }
+
+    @Test
+    public void testVectorColumnKernelsMatchNaiveMath() {
+        Random random = new Random(3);
+        VectorColumn column = new VectorColumn();
+        float[][] vectors = new float[50][];
+        for (int i = 0; i < vectors.length; i++) {
+            vectors[i] = new float[13];
+            for (int d = 0; d < 13; d++) {
+                vectors[i][d] = (float) random.nextGaussian();
+            }
+            assertTrue(column.put(i * 3, vectors[i]));
+        }
+        assertFalse(column.put(1, new float[4]));
+        column.remove(0);
+        column.remove(3);
+        assertTrue(column.put(200, vectors[0]));
+        assertEquals(49, column.size());
+        assertNull(column.get(3));
+        assertArrayEquals(vectors[0], column.get(200));
+
+        float[] query = vectors[7];
+        column.forEach((ordinal, arena, offset, norm) -> {
+            float[] v = ordinal == 200 ? vectors[0] : vectors[ordinal / 3];
+            double dot = 0, qq = 0, vv = 0, l2 = 0;
+            for (int d = 0; d < 13; d++) {
+                dot += query[d] * v[d];
+                qq += query[d] * query[d];
+                vv += v[d] * v[d];
+                l2 += (query[d] - v[d]) * (query[d] - v[d]);
+            }
+            assertEquals(Math.sqrt(vv), norm, 1e-4);
+            assertEquals(dot / Math.sqrt(qq * vv), VectorKernels.cosine(query, 0,
+                    VectorKernels.norm(query, 0, 13), arena, offset, norm, 13), 1e-5);
+            assertEquals(l2, VectorKernels.l2Squared(query, 0, arena, offset, 13), 1e-3);
+        });
+    }
+
+    @Test
+    public void testFilteredSimilarityMatchesBruteForce(@TempDir Path tempDir) {
+        DocumentStore store = new DocumentStore(tempDir, PersistenceOptions.defaults()
+                .withDurability(Durability.everyBytes(1 << 20)), HnswOptions.defaults().withM(8));
+        Random random = new Random(11);
+        Map<String, float[]> vectors = new HashMap<>();
+        for (int i = 0; i < 6000; i++) {
+            List<Double> vector = new ArrayList<>();
+            float[] raw = new float[8];
+            for (int d = 0; d < 8; d++) {
+                raw[d] = (float) random.nextGaussian();
+                vector.add((double) raw[d]);
+            }
+            vectors.put("v" + i, raw);
+            store.insert(new Entity("v" + i, Map.of("vector", vector, "category", i % 5 == 0 ? "x" : "y")));
+        }
+        for (String category : Arrays.asList(null, "x", "y")) {
+            QueryExpression filter = category == null ? null
+                    : QueryExpression.field("category", QueryExpression.Operator.EQ, category);
+            float[] query = vectors.get("v1");
+            List<String> expected = vectors.keySet().stream()
+                    .filter(id -> !id.equals("v1"))
+                    .filter(id -> category == null || (Integer.parseInt(id.substring(1)) % 5 == 0) == category.equals("x"))
+                    .sorted(Comparator.comparingDouble((String id) -> cosine(query, vectors.get(id))).reversed())
+                    .limit(10)
+                    .toList();
+            List<String> exact = store.findSimilarExact("v1", 10, filter).stream().map(Entity::getId).toList();
+            assertEquals(expected, exact);
+            List<Entity> approximate = store.findSimilar("v1", 10, filter);
+            assertEquals(10, approximate.size());
+            if (category != null) {
+                assertTrue(approximate.stream().allMatch(e -> category.equals(e.getFields().get("category"))));
+            }
+        }
+        store.close();
+    }
+
+    @Test
+    public void testQuantizedVectorsRerankAtFullPrecision(@TempDir Path tempDir) {
+        DocumentStore store = new DocumentStore(tempDir, PersistenceOptions.defaults()
+                .withDurability(Durability.everyBytes(1 << 20)), HnswOptions.defaults(),
+                VectorOptions.defaults().withQuantized(true));
+        Random random = new Random(5);
+        for (int i = 0; i < 3000; i++) {
+            List<Double> vector = new ArrayList<>();
+            for (int d = 0; d < 32; d++) {
+                vector.add(random.nextGaussian());
+            }
+            store.insert(new Entity("v" + i, Map.of("vector", vector)));
+        }
+        int hits = 0;
+        for (int q = 0; q < 20; q++) {
+            Set<String> approximate = new HashSet<>();
+            store.findSimilar("v" + q, 10).forEach(e -> approximate.add(e.getId()));
+            for (Entity e : store.findSimilarExact("v" + q, 10)) {
+                if (approximate.contains(e.getId())) hits++;
+            }
+        }
+        assertTrue(hits >= 190, "recall@10 too low: " + hits + "/200");
+
+        VectorColumn column = new VectorColumn(true);
+        float[] vector = {0.5f, -1.27f, 0.01f, 0f, 1.0f};
+        assertTrue(column.put(4, vector));
+        float[] decoded = column.get(4);
+        for (int d = 0; d < vector.length; d++) {
+            assertEquals(vector[d], decoded[d], 0.01f);
+        }
+        assertThrows(IllegalStateException.class, () -> column.forEach((ordinal, arena, offset, norm) -> { }));
+        store.close();
+    }
+
+    private static double cosine(float[] a, float[] b) {
+        double dot = 0, aa = 0, bb = 0;
+        for (int d = 0; d < a.length; d++) {
+            dot += a[d] * b[d];
+            aa += a[d] * a[d];
+            bb += b[d] * b[d];
+        }
+        return dot / Math.sqrt(aa * bb);
+    }
+
+    @Test
+    public void testCursorsAgreeWithBitmapOperations() {
+        Random random = new Random(42);
+        OrdinalSet dense = new OrdinalSet();
+        OrdinalSet sparse = new OrdinalSet();
+        OrdinalSet excluded = new OrdinalSet();
+        for (int i = 0; i < 200_000; i++) {
+            if (random.nextInt(3) > 0) dense.add(i);
+            if (random.nextInt(500) == 0) sparse.add(i);
+            if (i % 5 == 0) excluded.add(i);
+        }
+        OrdinalSet expectedAnd = dense.copy().and(sparse).andNot(excluded);
+        DocIdIterator and = DocIdIterator.andNot(
+                DocIdIterator.and(List.of(dense.iterator(), sparse.iterator())), excluded.iterator());
+        List<Integer> actual = new ArrayList<>();
+        for (int d = and.nextDoc(); d != DocIdIterator.NO_MORE_DOCS; d = and.nextDoc()) {
+            actual.add(d);
+        }
+        assertEquals(Arrays.stream(expectedAnd.toArray()).boxed().toList(), actual);
+
+        DocIdIterator or = DocIdIterator.or(List.of(sparse.iterator(), excluded.iterator()));
+        assertEquals(70_000, or.advance(70_000));
+        int count = 1;
+        while (or.nextDoc() != DocIdIterator.NO_MORE_DOCS) {
+            count++;
+        }
+        int expectedTail = 0;
+        for (int d : sparse.copy().or(excluded).toArray()) {
+            if (d >= 70_000) expectedTail++;
+        }
+        assertEquals(expectedTail, count);
+    }
+
+    @Test
+    public void testCheckpointRunsAlongsideWriters(@TempDir Path tempDir) throws Exception {
+        try (DocumentStore store = new DocumentStore(tempDir)) {
+            for (int i = 0; i < 500; i++) {
+                store.insert(new Entity("e" + i, Map.of("value", i)));
+            }
+            ExecutorService pool = Executors.newSingleThreadExecutor();
+            Future<?> writer = pool.submit(() -> {
+                for (int i = 0; i < 500; i++) {
+                    store.updatePartial("e" + i, Map.of("value", -i));
+                    if (i % 10 == 0) {
+                        store.delete("e" + i);
+                    }
+                    store.insert(new Entity("n" + i, Map.of("value", i)));
+                }
+            });
+            try {
+                for (int round = 0; round < 3; round++) {
+                    store.checkpointAsync().get();
+                }
+                writer.get();
+            } finally {
+                pool.shutdown();
+            }
+        }
+
+        DocumentStore reloaded = new DocumentStore(tempDir);
+        assertEquals(950, reloaded.findAll().size());
+        assertNull(reloaded.get("e10"));
+        assertEquals(-11L, ((Number) reloaded.get("e11").get("value")).longValue());
+        assertEquals(499L, ((Number) reloaded.get("n499").get("value")).longValue());
+        try (var files = Files.list(tempDir)) {
+            assertTrue(files.noneMatch(p -> p.getFileName().toString().equals("wal-000001.log")));
+        }
+    }
+
+    @Test
+    public void testWalRotatesAndRecyclesSegments(@TempDir Path tempDir) throws Exception {
+        PersistenceOptions options = PersistenceOptions.defaults().withSegmentBytes(512);
+        try (DocumentStore store = new DocumentStore(tempDir, options)) {
+            for (int i = 0; i < 100; i++) {
+                store.insert(new Entity("e" + i, Map.of("value", i)));
+            }
+            assertTrue(walFiles(tempDir, "wal-0").size() > 1);
+            assertTrue(Files.exists(tempDir.resolve("wal.manifest")));
+
+            store.saveSnapshot();
+            List<String> free = walFiles(tempDir, "wal-free-");
+            assertFalse(free.isEmpty());
+            for (int i = 0; i < 50; i++) {
+                store.delete("e" + i);
+            }
+            assertTrue(walFiles(tempDir, "wal-free-").size() < free.size());
+        }
+
+        DocumentStore reloaded = new DocumentStore(tempDir, options);
+        assertEquals(50, reloaded.findAll().size());
+        assertNull(reloaded.get("e0"));
+        assertEquals(99L, ((Number) reloaded.get("e99").get("value")).longValue());
+    }
+
+    private static List<String> walFiles(Path dir, String prefix) throws Exception {
+        try (var files = Files.list(dir)) {
+            return files.map(p -> p.getFileName().toString()).filter(n -> n.startsWith(prefix)).toList();
+        }
+    }
+
+    @Test
+    public void testReplayStopsAtTornWalTail(@TempDir Path tempDir) throws Exception {
+        for (WalFormat format : WalFormat.values()) {
+            Path dir = tempDir.resolve(format.name());
+            PersistenceOptions options = PersistenceOptions.defaults().withWalFormat(format);
+            try (DocumentStore store = new DocumentStore(dir, options)) {
+                store.insert(new Entity("a", Map.of("name", "Ada", "tags", List.of("x", "y"), "n", 1)));
+                store.insert(new Entity("b", Map.of("name", "Bob", "nested", Map.of("ok", true))));
+            }
+            Path wal = dir.resolve("wal-000001.log");
+            try (FileChannel channel = FileChannel.open(wal, StandardOpenOption.WRITE)) {
+                channel.truncate(channel.size() - 3);
+            }
+
+            try (DocumentStore reloaded = new DocumentStore(dir, options)) {
+                assertEquals(1, reloaded.findAll().size());
+                assertEquals(List.of("x", "y"), reloaded.get("a").get("tags"));
+                assertNull(reloaded.get("b"));
+                reloaded.insert(new Entity("c", Map.of("name", "Cy")));
+            }
+            DocumentStore again = new DocumentStore(dir, options);
+            assertEquals(2, again.findAll().size());
+            assertEquals("Cy", again.get("c").get("name"));
+            assertEquals(format == WalFormat.BINARY, Files.readString(wal, StandardCharsets.ISO_8859_1).startsWith("CRUXWAL"));
+        }
+    }
+
+    @Test
+    public void testBinarySnapshotLoadsEntitiesLazily(@TempDir Path tempDir) throws Exception {
+        long beforeSnapshot;
+        try (DocumentStore store = new DocumentStore(tempDir)) {
+            for (int i = 0; i < 50; i++) {
+                store.insert(new Entity("e" + i, Map.of("value", i, "tags", List.of("t" + i % 3))));
+            }
+            store.saveSnapshot();
+            beforeSnapshot = System.currentTimeMillis();
+            Thread.sleep(5);
+            store.updatePartial("e1", Map.of("value", 100));
+            store.delete("e2");
+        }
+        assertTrue(Files.exists(tempDir.resolve("snapshot.bin")));
+
+        DocumentStore reloaded = new DocumentStore(tempDir);
+        assertEquals(49, reloaded.findAll().size());
+        assertFalse(reloaded.get("e10").isLoaded());
+        assertEquals(10L, ((Number) reloaded.get("e10").get("value")).longValue());
+        assertTrue(reloaded.get("e10").isLoaded());
+
+        assertEquals(17, reloaded.query(QueryExpression.field("tags.0", QueryExpression.Operator.EQ, "t0")).size());
+        assertEquals(1, reloaded.query(QueryExpression.field("value", QueryExpression.Operator.GTE, 100)).size());
+        assertEquals(1.0, ((Number) reloaded.getAt("e1", beforeSnapshot).get("value")).doubleValue());
+        assertNotNull(reloaded.getAt("e2", beforeSnapshot));
+        assertNull(reloaded.get("e2"));
+
+        PersistenceOptions json = PersistenceOptions.defaults().withSnapshotFormat(SnapshotFormat.JSON);
+        try (DocumentStore store = new DocumentStore(tempDir, json)) {
+            store.saveSnapshot();
+        }
+        assertTrue(Files.exists(tempDir.resolve("snapshot.json")));
+        assertFalse(Files.exists(tempDir.resolve("snapshot.bin")));
+        assertEquals(49, new DocumentStore(tempDir).findAll().size());
+    }
 }
@@ -1,13 +1,18 @@
 package com.crux;
 
 import com.crux.query.FilterParser;
+import com.crux.query.QueryExpression;
 import com.crux.store.DocumentStore;
 import com.crux.store.Entity;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 
 import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -77,6 +82,50 @@ public class FilterParserTest {
         assertEquals("2", resLike.get(0).getId());
     }
 
+    @Test
+    public void testLikePatternShapes(@TempDir Path tempDir) {
+        DocumentStore store = new DocumentStore(tempDir);
+        String[] titles = {"Data Engineering", "Data Science", "DATA lake", "database", "Computer Science", "big data"};
+        for (int i = 0; i < titles.length; i++) {
+            store.insert(new Entity(String.valueOf(i + 1), Map.of("title", titles[i], "pattern", "%SCIENCE")));
+        }
+        FilterParser parser = new FilterParser();
+        assertEquals(Set.of("1", "2", "3", "4"), ids(store, parser, "title like \"data%\""));
+        assertEquals(Set.of("2", "5"), ids(store, parser, "title like \"%science\""));
+        assertEquals(Set.of("1"), ids(store, parser, "title like \"%ngin%\""));
+        assertEquals(Set.of("1", "2", "3", "4"), ids(store, parser, "title like \"d_ta%\""));
+        assertEquals(Set.of("2"), ids(store, parser, "title like \"data science\""));
+        assertEquals(Set.of("1", "2", "3", "4"), ids(store, parser, "title like \"%a%e%\""));
+        assertEquals(Set.of("2", "5"), ids(store, parser, "title like &pattern"));
+
+        store.createTrigramIndex("title");
+        assertEquals(Set.of("1", "2", "3", "4"), ids(store, parser, "title like \"%ata%e%\""));
+        assertEquals(Set.of("5"), ids(store, parser, "title like \"%com%ence\""));
+
+        store.delete("4");
+        store.update("2", Map.of("title", "Art"));
+        assertEquals(Set.of("1", "3"), ids(store, parser, "title like \"data%\""));
+        assertEquals(Set.of("1", "3"), ids(store, parser, "title like \"%ata%e%\""));
+    }
+
+    @Test
+    public void testMatchesUsesWordIndex(@TempDir Path tempDir) {
+        DocumentStore store = new DocumentStore(tempDir);
+        store.insert(new Entity("1", Map.of("text", "Fast search engine", "kind", "a", "tag", "engine")));
+        store.insert(new Entity("2", Map.of("text", "searching is slow", "kind", "a", "tag", "slow")));
+        store.insert(new Entity("3", Map.of("text", "Search, then index!", "kind", "b", "tag", "nothing")));
+        FilterParser parser = new FilterParser();
+        assertEquals(Set.of("1", "3"), ids(store, parser, "text matches \"search\""));
+        assertEquals(Set.of("1", "2"), ids(store, parser, "text matches \"engine slow\""));
+        assertEquals(Set.of("1"), ids(store, parser, "text matches \"index engine\" and kind == \"a\""));
+        assertEquals(Set.of("1", "2"), ids(store, parser, "text matches &tag"));
+        assertEquals(Set.of(), ids(store, parser, "text matches \"sear\""));
+    }
+
+    private static Set<String> ids(DocumentStore store, FilterParser parser, String filter) {
+        return store.query(parser.parse(filter)).stream().map(Entity::getId).collect(Collectors.toSet());
+    }
+
     @Test
     public void testNotOperator(@TempDir Path tempDir) {
         DocumentStore store = new DocumentStore(tempDir);
@@ -100,4 +149,93 @@ public class FilterParserTest {
         assertEquals(1, res.size());
         assertEquals(uuid, res.get(0).getId());
     }
+
+    @Test
+    public void testPlannedConjunctionsMatchWrittenSemantics(@TempDir Path tempDir) {
+        DocumentStore store = new DocumentStore(tempDir);
+        for (int i = 0; i < 2000; i++) {
+            store.insert(new Entity("e" + i, Map.of(
+                    "n", i,
+                    "kind", i % 100 == 0 ? "rare" : "common",
+                    "name", "item-" + i,
+                    "limit", i % 2 == 0 ? i : i + 1)));
+        }
+        FilterParser parser = new FilterParser();
+        Set<String> expected = new HashSet<>();
+        for (int i = 0; i < 2000; i += 100) {
+            if (i > 10 && !Set.of(200, 400, 500, 800, 1200, 1600).contains(i)) {
+                expected.add("e" + i);
+            }
+        }
+        var res = store.query(parser.parse("n > 10 and kind == rare and n != 500 and not n == 200 and n == &limit"
+                + " and not (n == 400 or n == 800 or n == 1200 or n == 1600)"));
+        assertEquals(expected, res.stream().map(Entity::getId).collect(Collectors.toSet()));
+
+        assertEquals(1, store.query(parser.parse("name like \"item-1%\" and n < 2 and n >= 1")).size());
+        assertEquals(1999, store.query(parser.parse("n != 7")).size());
+    }
+
+    @Test
+    public void testLargeConjunctionsLeapfrogWithoutChangingResults(@TempDir Path tempDir) {
+        DocumentStore store = new DocumentStore(tempDir);
+        for (int i = 0; i < 3000; i++) {
+            store.insert(new Entity("e" + i, Map.of("n", i, "even", i % 2 == 0, "twice", i % 3 == 0 ? i * 2 : i)));
+        }
+        FilterParser parser = new FilterParser();
+        String filter = "n >= 100 and n < 2900 and even == true and not n < 500 and n != 1000"
+                + " and twice == &n * 2 and not (twice == &n * 2 and n > 2800)";
+        Set<String> expected = new HashSet<>();
+        for (int i = 500; i <= 2800; i++) {
+            if (i % 6 == 0 && i != 1000) {
+                expected.add("e" + i);
+            }
+        }
+        assertEquals(expected, ids(store, parser, filter));
+        assertEquals(expected.size(), store.explain(parser.parse(filter)).actual());
+        assertEquals(1499, store.query(parser.parse("even == false and n != 1 and n >= 0")).size());
+    }
+
+    @Test
+    public void testOrderLimitAndOffsetClauses() {
+        FilterParser parser = new FilterParser();
+        var query = parser.parseQuery("kind == book and limit > 2 order by item.price DESC offset 40 limit 20");
+        assertEquals("item.price", query.orderBy());
+        assertTrue(query.descending());
+        assertEquals(40, query.offset());
+        assertEquals(20, query.limit());
+        assertTrue(query.filter() instanceof QueryExpression.And);
+
+        var plain = parser.parseQuery("kind == book");
+        assertNull(plain.orderBy());
+        assertEquals(0, plain.offset());
+        assertEquals(-1, plain.limit());
+        assertFalse(parser.parseQuery("n > 1 order by n asc").descending());
+
+        assertThrows(RuntimeException.class, () -> parser.parseQuery("n > 1 limit -3"));
+        assertThrows(RuntimeException.class, () -> parser.parseQuery("n > 1 limit 3 limit 4"));
+        assertThrows(RuntimeException.class, () -> parser.parseQuery("n > 1 order price"));
+        assertThrows(RuntimeException.class, () -> parser.parseQuery("n > 1 sorted"));
+    }
+
+    @Test
+    public void testCompiledExpressionsKeepInterpretedSemantics(@TempDir Path tempDir) {
+        DocumentStore store = new DocumentStore(tempDir);
+        store.insert(new Entity("1", Map.of("a", 4, "b", 2, "tags", List.of(3, 9), "name", "x")));
+        store.insert(new Entity("2", Map.of("a", 10, "b", 5, "tags", List.of(1), "name", "y")));
+        store.insert(new Entity("3", Map.of("b", 7, "name", "z")));
+        FilterParser parser = new FilterParser();
+        assertEquals(Set.of("1"), ids(store, parser, "a = &b * 2 and a == (&tags.0 + 5) / 2"));
+        assertEquals(Set.of("3"), ids(store, parser, "b >= &a / 2 + 1"));
+        assertEquals(Set.of(), ids(store, parser, "a == &b - 7"));
+        assertEquals(Set.of("1", "2", "3"), ids(store, parser, "a != &b * 0 - 1 and a != &b + 4"));
+        assertEquals(Set.of("1"), ids(store, parser, "tags.1 > &a * 2"));
+        assertEquals(Set.of(), ids(store, parser, "tags.5 > -1 or tags.x > -1"));
+        assertEquals(Set.of("2"), ids(store, parser, "name == &name + \"\" and a > 5"));
+
+        Entity first = store.get("1");
+        assertEquals(12.0, parser.parseValueExpression("(&a + &b) * 2 + &tags.0 - 1 + 2 * 3 - 3 - 2 * 2 - 1").eval(first));
+        assertEquals(-6.0, parser.parseValueExpression("&missing - (&a + &b)").eval(first));
+        assertEquals("x!", parser.parseValueExpression("&name + \"!\"").eval(first));
+        assertNull(parser.parseValueExpression("&name * &name").eval(first));
+    }
 }
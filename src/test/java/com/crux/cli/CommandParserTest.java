@@ -1,5 +1,6 @@
 package com.crux.cli;
 
+import com.crux.query.QueryProfile;
 import com.crux.store.DocumentStore;
 import com.crux.store.Entity;
 import com.google.gson.Gson;
@@ -119,6 +120,20 @@ public class CommandParserTest {
         assertEquals("1", result.get(0).get("id"));
     }
 
+    @Test
+    public void testGetEntitiesOrdersAndPagesResults(@TempDir Path tempDir) throws Exception {
+        CliHarness harness = createHarness(tempDir);
+        for (int i = 0; i < 30; i++) {
+            insertEntity(harness, "p" + i, Map.of("kind", i % 3 == 0 ? "book" : "toy", "price", (i * 7) % 30));
+        }
+        String output = executeAndCapture(
+                parse("get entities using filter kind == \"toy\" order by price desc limit 3 offset 1"), harness.cli);
+        List<Map<String, Object>> result = new Gson().fromJson(output, List.class);
+        assertEquals(List.of(28.0, 26.0, 25.0), result.stream().map(e -> e.get("price")).toList());
+        assertThrows(RuntimeException.class,
+                () -> parse("get entities using filter kind == \"toy\" limit many").execute(harness.cli));
+    }
+
     @Test
     public void testGetFieldOutputsNestedValue(@TempDir Path tempDir) throws Exception {
         CliHarness harness = createHarness(tempDir);
@@ -168,6 +183,8 @@ public class CommandParserTest {
         List<Map<String, Object>> result = new Gson().fromJson(output, List.class);
         assertEquals(1, result.size());
         assertEquals("close", result.get(0).get("tag"));
+        assertEquals("[]", executeAndCapture(parse("find similar unknown 3"), harness.cli));
+        assertEquals("[]", executeAndCapture(parse("find similar unknown 3 exact"), harness.cli));
     }
 
     @Test
@@ -218,10 +235,54 @@ public class CommandParserTest {
         CliHarness harness = createHarness(tempDir);
         insertEntity(harness, "1", Map.of("name", "Alice"));
         executeAndCapture(parse("persist snapshot"), harness.cli);
-        assertTrue(Files.exists(tempDir.resolve("snapshot.json")));
+        assertTrue(Files.exists(tempDir.resolve("snapshot.bin")));
         assertFalse(Files.exists(tempDir.resolve("wal.log")));
     }
 
+    @Test
+    public void testExplainShowsIndexAndScanSteps(@TempDir Path tempDir) throws Exception {
+        CliHarness harness = createHarness(tempDir);
+        for (int i = 0; i < 10; i++) {
+            insertEntity(harness, "e" + i, Map.of("age", i, "score", i * 2, "bench", 7));
+        }
+        String output = executeAndCapture(parse("explain age >= 5 and score > &bench"), harness.cli);
+        assertTrue(output.startsWith("AND"), output);
+        assertTrue(output.contains("-> INDEX age >="), output);
+        assertTrue(output.contains("-> FILTER score > &bench"), output);
+        assertTrue(output.contains("actual 5"), output);
+        assertFalse(output.contains("SCAN"), output);
+
+        QueryProfile profile = harness.store.explain(harness.cli.parser.parse("score > &bench"));
+        assertEquals(QueryProfile.Kind.SCAN, profile.kind());
+        assertEquals(6, profile.actual());
+        assertTrue(profile.scans());
+        assertThrows(RuntimeException.class, () -> parse("explain"));
+    }
+
+    @Test
+    public void testSearchTextRanksByRelevance(@TempDir Path tempDir) throws Exception {
+        CliHarness harness = createHarness(tempDir);
+        insertEntity(harness, "1", Map.of("description", "Red running shoes for trail running"));
+        insertEntity(harness, "2", Map.of("description", "Blue shoes"));
+        insertEntity(harness, "3", Map.of("description", "A red scarf, a red hat and red gloves for the long winter evenings"));
+        insertEntity(harness, "4", Map.of("description", "Garden hose"));
+        insertEntity(harness, "5", Map.of("description", "Running socks"));
+
+        List<Entity> ranked = harness.store.searchText("description", "running shoes", 10);
+        assertEquals(List.of("1", "2", "5"), ranked.stream().map(Entity::getId).toList());
+
+        String output = executeAndCapture(parse("search text description \"RED\" 1"), harness.cli);
+        List<?> printed = new Gson().fromJson(output, List.class);
+        assertEquals(1, printed.size());
+        assertEquals("3", ((Map<?, ?>) printed.get(0)).get("id"));
+
+        harness.store.update("3", Map.of("description", "plain scarf"));
+        harness.store.delete("1");
+        assertTrue(harness.store.searchText("description", "red", 5).isEmpty());
+        assertThrows(RuntimeException.class, () -> parse("search text description"));
+        assertThrows(RuntimeException.class, () -> parse("search text description red many"));
+    }
+
     @Test
     public void testHelpCommandPrintsUsage(@TempDir Path tempDir) throws Exception {
         CliHarness harness = createHarness(tempDir);